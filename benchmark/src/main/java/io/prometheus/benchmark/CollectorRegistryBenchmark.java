@@ -0,0 +1,101 @@
+package io.prometheus.benchmark;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Scrapes a registry of 20 collectors, sequentially or with a collect executor of the given size.
+ * <p>
+ * Each collector waits for blockMicros before returning a gauge, like a collector that queries another system.
+ */
+@State(Scope.Benchmark)
+public class CollectorRegistryBenchmark {
+
+  @Param({"0", "4"})
+  int collectThreads;
+
+  @Param({"0", "200"})
+  long blockMicros;
+
+  ExecutorService executor;
+  io.prometheus.client.CollectorRegistry registry;
+
+  class BlockingCollector extends io.prometheus.client.Collector {
+    final String name;
+
+    BlockingCollector(String name) {
+      this.name = name;
+    }
+
+    public List<MetricFamilySamples> collect() {
+      if (blockMicros > 0) {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(blockMicros));
+      }
+      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+      mfs.add(new io.prometheus.client.GaugeMetricFamily(name, "some description..", 42));
+      return mfs;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    if (collectThreads > 0) {
+      executor = Executors.newFixedThreadPool(collectThreads);
+    }
+    registry = new io.prometheus.client.CollectorRegistry(false, executor);
+    for (int i = 0; i < 20; i++) {
+      new BlockingCollector("name" + i).register(registry);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int scrape() {
+    int families = 0;
+    Enumeration<io.prometheus.client.Collector.MetricFamilySamples> mfs = registry.metricFamilySamples();
+    while (mfs.hasMoreElements()) {
+      mfs.nextElement();
+      families++;
+    }
+    return families;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    Options opt = new OptionsBuilder()
+      .include(CollectorRegistryBenchmark.class.getSimpleName())
+      .warmupIterations(5)
+      .measurementIterations(4)
+      .threads(1)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,116 @@
+package io.prometheus.benchmark;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The cost of the CollectorRegistry itself, for a registry of collectors that return no metrics.
+ * <p>
+ * registerAndScrape has one thread registering and unregistering a collector while another scrapes.
+ * getSampleValue reads one child of a labelled counter registered after the other collectors.
+ */
+@State(Scope.Benchmark)
+public class CollectorRegistryIndexBenchmark {
+
+  @Param({"100", "10000"})
+  int collectorCount;
+
+  io.prometheus.client.CollectorRegistry registry;
+  io.prometheus.client.Collector extra;
+  String[] labelNames = {"path"};
+  String[] labelValues = {"/api"};
+
+  static class EmptyCollector extends io.prometheus.client.Collector {
+    public List<MetricFamilySamples> collect() {
+      return Collections.emptyList();
+    }
+  }
+
+  @Setup
+  public void setup() {
+    registry = new io.prometheus.client.CollectorRegistry();
+    for (int i = 0; i < collectorCount; i++) {
+      new EmptyCollector().register(registry);
+    }
+    extra = new EmptyCollector();
+    io.prometheus.client.Counter counter = io.prometheus.client.Counter.build()
+      .name("requests_total")
+      .help("some description..")
+      .labelNames("path")
+      .register(registry);
+    for (int i = 0; i < 100; i++) {
+      counter.labels("/path" + i).inc();
+    }
+    counter.labels("/api").inc();
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Double getSampleValue() {
+    return registry.getSampleValue("requests_total", labelNames, labelValues);
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public boolean scrape() {
+    Enumeration<io.prometheus.client.Collector.MetricFamilySamples> mfs = registry.metricFamilySamples();
+    return mfs.hasMoreElements();
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void registerAndUnregister() {
+    registry.register(extra);
+    registry.unregister(extra);
+  }
+
+  @Benchmark
+  @Group("registerAndScrape")
+  @GroupThreads(1)
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public boolean registerAndScrapeScrape() {
+    return scrape();
+  }
+
+  @Benchmark
+  @Group("registerAndScrape")
+  @GroupThreads(1)
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void registerAndScrapeRegister() {
+    registerAndUnregister();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    Options opt = new OptionsBuilder()
+      .include(CollectorRegistryIndexBenchmark.class.getSimpleName())
+      .warmupIterations(5)
+      .measurementIterations(4)
+      .threads(1)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,109 @@
+package io.prometheus.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Writes the text format for a registry with a labelled counter, gauge, histogram and summary of the given number
+ * of children each, discarding the output. The OutputStream benchmarks encode it as UTF-8.
+ */
+@State(Scope.Benchmark)
+public class ExpositionBenchmark {
+
+  @Param({"100", "10000"})
+  int children;
+
+  io.prometheus.client.CollectorRegistry registry;
+  Writer writer;
+  OutputStream out;
+
+  @Setup
+  public void setup() {
+    registry = new io.prometheus.client.CollectorRegistry();
+    io.prometheus.client.Counter counter = io.prometheus.client.Counter.build()
+      .name("counter").help("some description..").labelNames("path", "status").register(registry);
+    io.prometheus.client.Gauge gauge = io.prometheus.client.Gauge.build()
+      .name("gauge").help("some description..").labelNames("path", "status").register(registry);
+    io.prometheus.client.Histogram histogram = io.prometheus.client.Histogram.build()
+      .name("histogram").help("some description..").labelNames("path", "status").register(registry);
+    io.prometheus.client.Summary summary = io.prometheus.client.Summary.build()
+      .name("summary").help("some description..").labelNames("path", "status").register(registry);
+    for (int i = 0; i < children; i++) {
+      String path = "/api/v1/resource" + i;
+      counter.labels(path, "200").inc(i);
+      gauge.labels(path, "200").set(i);
+      histogram.labels(path, "200").observe(i % 10);
+      summary.labels(path, "200").observe(i);
+    }
+    writer = new Writer() {
+      public void write(char[] cbuf, int off, int len) {}
+      public void write(int c) {}
+      public void write(String str, int off, int len) {}
+      public void flush() {}
+      public void close() {}
+    };
+    out = new OutputStream() {
+      public void write(int b) {}
+      public void write(byte[] b, int off, int len) {}
+    };
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void writeEnumeration() throws IOException {
+    io.prometheus.client.exporter.common.TextFormat.write004(writer, registry.metricFamilySamples());
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void writeRegistry() throws IOException {
+    io.prometheus.client.exporter.common.TextFormat.write004(writer, registry, Collections.<String>emptySet());
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void writeOutputStreamWriter() throws IOException {
+    Writer writer = new OutputStreamWriter(out, "UTF-8");
+    io.prometheus.client.exporter.common.TextFormat.write004(writer, registry, Collections.<String>emptySet());
+    writer.flush();
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void writeOutputStream() throws IOException {
+    io.prometheus.client.exporter.common.TextFormat.write004(out, registry, Collections.<String>emptySet());
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    Options opt = new OptionsBuilder()
+      .include(ExpositionBenchmark.class.getSimpleName())
+      .warmupIterations(5)
+      .measurementIterations(4)
+      .threads(1)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
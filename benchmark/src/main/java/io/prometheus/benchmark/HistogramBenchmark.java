@@ -0,0 +1,132 @@
+package io.prometheus.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares how Histogram.Child.observe finds the bucket for different bucket layouts and counts.
+ * <p>
+ * linearScanBaseline is the search previously used for all histograms, without updating any bucket.
+ * singleBucketObserve has no search to do, so shows the cost of the rest of observe.
+ */
+@State(Scope.Thread)
+public class HistogramBenchmark {
+
+  @Param({"10", "20", "40", "60"})
+  int bucketCount;
+
+  double[] exponentialBounds;
+  double[] exponentialValues;
+  double[] linearValues;
+  int next;
+
+  io.prometheus.client.Histogram.Child arbitraryBuckets;
+  io.prometheus.client.Histogram.Child linearBuckets;
+  io.prometheus.client.Histogram.Child exponentialBuckets;
+  io.prometheus.client.Histogram.Child singleBucket;
+
+  @Setup
+  public void setup() {
+    exponentialBounds = new double[bucketCount + 1];
+    for (int i = 0; i < bucketCount; i++) {
+      exponentialBounds[i] = 0.001 * Math.pow(1.3, i);
+    }
+    exponentialBounds[bucketCount] = Double.POSITIVE_INFINITY;
+
+    arbitraryBuckets = io.prometheus.client.Histogram.build()
+      .name("name")
+      .help("some description..")
+      .buckets(exponentialBounds).create().labels();
+    linearBuckets = io.prometheus.client.Histogram.build()
+      .name("name")
+      .help("some description..")
+      .linearBuckets(0.01, 0.01, bucketCount).create().labels();
+    exponentialBuckets = io.prometheus.client.Histogram.build()
+      .name("name")
+      .help("some description..")
+      .exponentialBuckets(0.001, 1.3, bucketCount).create().labels();
+    singleBucket = io.prometheus.client.Histogram.build()
+      .name("name")
+      .help("some description..")
+      .buckets(Double.POSITIVE_INFINITY).create().labels();
+
+    // Observations spread across all the buckets, plus a few beyond the largest.
+    Random random = new Random(0);
+    exponentialValues = new double[1024];
+    linearValues = new double[1024];
+    for (int i = 0; i < 1024; i++) {
+      exponentialValues[i] = 0.001 * Math.pow(1.3, random.nextDouble() * (bucketCount + 1));
+      linearValues[i] = 0.01 * random.nextDouble() * (bucketCount + 1);
+    }
+  }
+
+  private int nextIndex() {
+    return next = (next + 1) & 1023;
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public int linearScanBaseline() {
+    double amt = exponentialValues[nextIndex()];
+    for (int i = 0; i < exponentialBounds.length; ++i) {
+      if (amt <= exponentialBounds[i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void binarySearchObserve() {
+    arbitraryBuckets.observe(exponentialValues[nextIndex()]);
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void linearBucketsObserve() {
+    linearBuckets.observe(linearValues[nextIndex()]);
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void exponentialBucketsObserve() {
+    exponentialBuckets.observe(exponentialValues[nextIndex()]);
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void singleBucketObserve() {
+    singleBucket.observe(exponentialValues[nextIndex()]);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    Options opt = new OptionsBuilder()
+      .include(HistogramBenchmark.class.getSimpleName())
+      .warmupIterations(5)
+      .measurementIterations(4)
+      .threads(1)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,121 @@
+package io.prometheus.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Label lookups of an existing child, run with <code>-prof gc</code> to see the allocations per lookup.
+ */
+@State(Scope.Benchmark)
+public class LabelsBenchmark {
+
+  io.prometheus.client.Counter oneLabel;
+  io.prometheus.client.Counter twoLabels;
+  io.prometheus.client.Counter threeLabels;
+  io.prometheus.client.Counter fourLabels;
+  String[] fourLabelValues;
+  io.prometheus.client.Counter enumAndIntLabels;
+
+  enum Method {
+    GET, POST, PUT, DELETE
+  }
+
+  @Setup
+  public void setup() {
+    oneLabel = io.prometheus.client.Counter.build()
+      .name("name")
+      .help("some description..")
+      .labelNames("some").create();
+    twoLabels = io.prometheus.client.Counter.build()
+      .name("name")
+      .help("some description..")
+      .labelNames("some", "group").create();
+    threeLabels = io.prometheus.client.Counter.build()
+      .name("name")
+      .help("some description..")
+      .labelNames("some", "group", "more").create();
+    fourLabels = io.prometheus.client.Counter.build()
+      .name("name")
+      .help("some description..")
+      .labelNames("some", "group", "more", "labels").create();
+    fourLabelValues = new String[]{"test", "group", "more", "labels"};
+    enumAndIntLabels = io.prometheus.client.Counter.build()
+      .name("name")
+      .help("some description..")
+      .labelNames("method", "code")
+      .enumLabel("method", Method.class)
+      .intLabel("code", 100, 599).create();
+
+    // Populate some other children, so lookups aren't trivially the only entry.
+    for (int i = 0; i < 100; i++) {
+      oneLabel.labels("test" + i);
+      twoLabels.labels("test" + i, "group");
+      threeLabels.labels("test" + i, "group", "more");
+      fourLabels.labels("test" + i, "group", "more", "labels");
+    }
+    oneLabel.labels("test");
+    twoLabels.labels("test", "group");
+    threeLabels.labels("test", "group", "more");
+    fourLabels.labels(fourLabelValues);
+    enumAndIntLabels.labels(Method.GET, 200);
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public io.prometheus.client.Counter.Child oneLabelBenchmark() {
+    return oneLabel.labels("test");
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public io.prometheus.client.Counter.Child twoLabelsBenchmark() {
+    return twoLabels.labels("test", "group");
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public io.prometheus.client.Counter.Child threeLabelsBenchmark() {
+    return threeLabels.labels("test", "group", "more");
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public io.prometheus.client.Counter.Child fourLabelsArrayBenchmark() {
+    return fourLabels.labels(fourLabelValues);
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public io.prometheus.client.Counter.Child enumAndIntLabelsBenchmark() {
+    return enumAndIntLabels.labels(Method.GET, 200);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    Options opt = new OptionsBuilder()
+      .include(LabelsBenchmark.class.getSimpleName())
+      .warmupIterations(5)
+      .measurementIterations(4)
+      .addProfiler("gc")
+      .threads(4)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
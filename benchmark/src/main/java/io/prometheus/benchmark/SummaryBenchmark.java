@@ -2,14 +2,18 @@ package io.prometheus.benchmark;
 
 import com.codahale.metrics.MetricRegistry;
 
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
@@ -26,6 +30,7 @@ public class SummaryBenchmark {
   io.prometheus.client.Summary prometheusSimpleSummary;
   io.prometheus.client.Summary.Child prometheusSimpleSummaryChild;
   io.prometheus.client.Summary prometheusSimpleSummaryNoLabels;
+  io.prometheus.client.Summary.Child prometheusSimpleSummaryQuantilesChild;
   io.prometheus.client.Histogram prometheusSimpleHistogram;
   io.prometheus.client.Histogram.Child prometheusSimpleHistogramChild;
   io.prometheus.client.Histogram prometheusSimpleHistogramNoLabels;
@@ -49,6 +54,15 @@ public class SummaryBenchmark {
       .help("some description..")
       .create();
 
+    prometheusSimpleSummaryQuantilesChild = io.prometheus.client.Summary.build()
+      .name("name")
+      .help("some description..")
+      .quantile(0.5, 0.05)
+      .quantile(0.9, 0.01)
+      .quantile(0.99, 0.001)
+      .labelNames("some", "group").create()
+      .labels("test", "group");
+
     prometheusSimpleHistogram = io.prometheus.client.Histogram.build()
       .name("name")
       .help("some description..")
@@ -99,6 +113,67 @@ public class SummaryBenchmark {
     prometheusSimpleSummaryNoLabels.observe(1); 
   }
 
+  /**
+   * Per thread observed values, as quantiles over a constant are not representative.
+   */
+  @State(Scope.Thread)
+  public static class Values {
+    double[] values = new double[1024];
+    int next;
+
+    @Setup
+    public void setup() {
+      Random random = new Random(Thread.currentThread().getId());
+      for (int i = 0; i < values.length; i++) {
+        values[i] = random.nextDouble() * 100;
+      }
+    }
+
+    double next() {
+      next = (next + 1) & (values.length - 1);
+      return values[next];
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusSimpleSummaryQuantilesChildBenchmark(Values values) {
+    prometheusSimpleSummaryQuantilesChild.observe(values.next());
+  }
+
+  /**
+   * Many threads observing the same Summary with quantiles, regardless of the -t option.
+   */
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Threads(8)
+  public void prometheusSimpleSummaryQuantilesChildContendedBenchmark(Values values) {
+    prometheusSimpleSummaryQuantilesChild.observe(values.next());
+  }
+
+  /**
+   * Eight threads observing while another one scrapes the quantiles.
+   */
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Group("prometheusSimpleSummaryQuantilesScraped")
+  @GroupThreads(8)
+  public void prometheusSimpleSummaryQuantilesScrapedObserve(Values values) {
+    prometheusSimpleSummaryQuantilesChild.observe(values.next());
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Group("prometheusSimpleSummaryQuantilesScraped")
+  @GroupThreads(1)
+  public io.prometheus.client.Summary.Child.Value prometheusSimpleSummaryQuantilesScrapedGet() {
+    return prometheusSimpleSummaryQuantilesChild.get();
+  }
+
   @Benchmark
   @BenchmarkMode({Mode.AverageTime})
   @OutputTimeUnit(TimeUnit.NANOSECONDS)
@@ -0,0 +1,93 @@
+package io.prometheus.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the Summary quantile engines, with one or six targeted quantiles.
+ * <p>
+ * get reads all quantiles of a child that has already seen a million observations.
+ */
+@State(Scope.Thread)
+public class SummaryQuantilesBenchmark {
+
+  @Param({"CKMS", "LOG_BUCKETS"})
+  String engine;
+
+  @Param({"1", "6"})
+  int quantileCount;
+
+  double[] values;
+  int next;
+
+  io.prometheus.client.Summary.Child observed;
+  io.prometheus.client.Summary.Child filled;
+
+  private io.prometheus.client.Summary.Child newChild() {
+    double[][] quantiles = {{0.99, 0.001}, {0.5, 0.05}, {0.9, 0.01}, {0.75, 0.02}, {0.95, 0.005}, {0.999, 0.0001}};
+    io.prometheus.client.Summary.Builder builder = io.prometheus.client.Summary.build()
+      .name("name")
+      .help("some description..")
+      .quantileEngine(io.prometheus.client.Summary.QuantileEngine.valueOf(engine));
+    for (int i = 0; i < quantileCount; i++) {
+      builder.quantile(quantiles[i][0], quantiles[i][1]);
+    }
+    return builder.create().labels();
+  }
+
+  @Setup
+  public void setup() {
+    // Latency like values, spanning a few orders of magnitude.
+    Random random = new Random(0);
+    values = new double[1024];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = 0.01 * Math.exp(random.nextGaussian());
+    }
+
+    observed = newChild();
+    filled = newChild();
+    for (int i = 0; i < 1000000; i++) {
+      filled.observe(values[i & 1023] * (1 + i % 7));
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void observe() {
+    next = (next + 1) & 1023;
+    observed.observe(values[next]);
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public io.prometheus.client.Summary.Child.Value get() {
+    return filled.get();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    Options opt = new OptionsBuilder()
+      .include(SummaryQuantilesBenchmark.class.getSimpleName())
+      .warmupIterations(5)
+      .measurementIterations(4)
+      .threads(1)
+      .forks(1)
+      .build();
+
+    new Runner(opt).run();
+  }
+}
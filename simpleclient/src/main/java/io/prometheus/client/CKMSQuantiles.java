@@ -10,6 +10,9 @@ package io.prometheus.client;
 //  - Changed the package name.
 //  - Make get() return NaN when no sample was observed.
 //  - Make class package private
+//  - Replaced the LinkedList of Items with parallel arrays, and merge the sorted
+//    buffer into them in place in insertBatch().
+//  - Extend QuantileEstimator, and added merge() to query quantiles over several instances.
 
 /*
  Copyright 2012 Andrew Wang (andrew@umbrant.com)
@@ -28,8 +31,6 @@ package io.prometheus.client;
  */
 
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.ListIterator;
 
 /**
  * Implementation of the Cormode, Korn, Muthukrishnan, and Srivastava algorithm
@@ -48,22 +49,20 @@ import java.util.ListIterator;
  * "Space-efficient online computation of quantile summaries" in SIGMOD 2001
  * 
  */
-class CKMSQuantiles {
+class CKMSQuantiles extends QuantileEstimator {
     /**
      * Total number of items in stream.
      */
     private int count = 0;
 
     /**
-     * Used for tracking incremental compression.
+     * Current sampled items, maintained in sorted order with error bounds.
+     * Item i is (values[i], g[i], delta[i]), for i below sampleSize.
      */
-    private int compressIdx = 0;
-
-    /**
-     * Current list of sampled items, maintained in sorted order with error
-     * bounds.
-     */
-    protected LinkedList<Item> sample;
+    private double[] values = new double[0];
+    private int[] g = new int[0];
+    private int[] delta = new int[0];
+    private int sampleSize = 0;
 
     /**
      * Buffers incoming items to be inserted in batch.
@@ -79,7 +78,6 @@ class CKMSQuantiles {
 
     public CKMSQuantiles(Quantile[] quantiles) {
         this.quantiles = quantiles;
-        this.sample = new LinkedList<Item>();
     }
 
     /**
@@ -109,30 +107,76 @@ class CKMSQuantiles {
         insertBatch();
         compress();
 
-        if (sample.size() == 0) {
+        if (sampleSize == 0) {
             return Double.NaN;
         }
 
         int rankMin = 0;
         int desired = (int) (q * count);
+        double maxError = desired + (allowableError(desired, sampleSize) / 2);
 
-        ListIterator<Item> it = sample.listIterator();
-        Item prev, cur;
-        cur = it.next();
-        while (it.hasNext()) {
-            prev = cur;
-            cur = it.next();
-
-            rankMin += prev.g;
+        for (int i = 1; i < sampleSize; i++) {
+            rankMin += g[i - 1];
 
-            if (rankMin + cur.g + cur.delta > desired
-                    + (allowableError(desired) / 2)) {
-                return prev.value;
+            if (rankMin + g[i] + delta[i] > maxError) {
+                return values[i - 1];
             }
         }
 
         // edge case of wanting max value
-        return sample.getLast().value;
+        return values[sampleSize - 1];
+    }
+
+    @Override
+    CKMSQuantiles newEstimator() {
+        return new CKMSQuantiles(quantiles);
+    }
+
+    /**
+     * Combine the samples of several CKMSQuantiles, to query quantiles over
+     * the union of their streams. Items keep their own error bounds, so the
+     * rank error of the result is at most the sum of the parts' rank errors,
+     * which is the same fraction of the combined count.
+     */
+    @Override
+    CKMSQuantiles merge(QuantileEstimator[] parts) {
+        CKMSQuantiles result = new CKMSQuantiles(quantiles);
+        for (QuantileEstimator p : parts) {
+            CKMSQuantiles part = (CKMSQuantiles) p;
+            synchronized (part) {
+                part.insertBatch();
+                part.compress();
+                result.mergeSamples(part);
+            }
+        }
+        return result;
+    }
+
+    private synchronized void mergeSamples(CKMSQuantiles other) {
+        int newSize = sampleSize + other.sampleSize;
+        double[] newValues = new double[newSize];
+        int[] newG = new int[newSize];
+        int[] newDelta = new int[newSize];
+        int i = 0;
+        int j = 0;
+        for (int n = 0; n < newSize; n++) {
+            if (j == other.sampleSize || (i < sampleSize && values[i] <= other.values[j])) {
+                newValues[n] = values[i];
+                newG[n] = g[i];
+                newDelta[n] = delta[i];
+                i++;
+            } else {
+                newValues[n] = other.values[j];
+                newG[n] = other.g[j];
+                newDelta[n] = other.delta[j];
+                j++;
+            }
+        }
+        values = newValues;
+        g = newG;
+        delta = newDelta;
+        sampleSize = newSize;
+        count += other.count;
     }
 
     /**
@@ -144,14 +188,15 @@ class CKMSQuantiles {
      * 
      * @param rank
      *            the index in the list of samples
+     * @param size
+     *            the current number of samples
      */
-    private double allowableError(int rank) {
+    private double allowableError(int rank, int size) {
         // NOTE: according to CKMS, this should be count, not size, but this
         // leads
         // to error larger than the error bounds. Leaving it like this is
         // essentially a HACK, and blows up memory, but does "work".
         // int size = count;
-        int size = sample.size();
         double minError = size + 1;
 
         for (Quantile q : quantiles) {
@@ -169,6 +214,12 @@ class CKMSQuantiles {
         return minError;
     }
 
+    /**
+     * Merge the sorted buffer into the samples, in place from the largest
+     * value down so that no scratch arrays are needed. The error bounds of
+     * each inserted item are computed against the sample as it would be at
+     * that point when inserting in ascending order.
+     */
     private boolean insertBatch() {
         if (bufferCount == 0) {
             return false;
@@ -176,47 +227,43 @@ class CKMSQuantiles {
 
         Arrays.sort(buffer, 0, bufferCount);
 
-        // Base case: no samples
-        int start = 0;
-        if (sample.size() == 0) {
-            Item newItem = new Item(buffer[0], 1, 0);
-            sample.add(newItem);
-            start++;
-            count++;
+        int newSize = sampleSize + bufferCount;
+        if (values.length < newSize) {
+            // Leave room for the sample to grow without reallocating each batch.
+            int capacity = newSize + newSize / 2;
+            values = Arrays.copyOf(values, capacity);
+            g = Arrays.copyOf(g, capacity);
+            delta = Arrays.copyOf(delta, capacity);
         }
 
-        ListIterator<Item> it = sample.listIterator();
-        Item item = it.next();
-
-        for (int i = start; i < bufferCount; i++) {
-            double v = buffer[i];
-            while (it.nextIndex() < sample.size() && item.value < v) {
-                item = it.next();
+        int i = sampleSize;  // Existing items not yet moved.
+        for (int b = bufferCount - 1; b >= 0; b--) {
+            double v = buffer[b];
+            while (i > 0 && values[i - 1] > v) {
+                i--;
+                values[i + b + 1] = values[i];
+                g[i + b + 1] = g[i];
+                delta[i + b + 1] = delta[i];
             }
 
-            // If we found that bigger item, back up so we insert ourselves
-            // before it
-            if (item.value > v) {
-                it.previous();
-            }
-
-            // We use different indexes for the edge comparisons, because of the
-            // above
-            // if statement that adjusts the iterator
-            int delta;
-            if (it.previousIndex() == 0 || it.nextIndex() == sample.size()) {
-                delta = 0;
-            } 
-            else {
-                delta = ((int) Math.floor(allowableError(it.nextIndex()))) - 1;
+            // The new item ends up at index n, with b new items before it.
+            int n = i + b;
+            int size = sampleSize + b;
+            int d;
+            // Smallest and largest items are known exactly.
+            if (n == 0 || i == sampleSize) {
+                d = 0;
+            } else {
+                d = ((int) Math.floor(allowableError(n, size))) - 1;
             }
 
-            Item newItem = new Item(v, 1, delta);
-            it.add(newItem);
-            count++;
-            item = newItem;
+            values[n] = v;
+            g[n] = 1;
+            delta[n] = d;
         }
 
+        count += bufferCount;
+        sampleSize = newSize;
         bufferCount = 0;
         return true;
     }
@@ -227,48 +274,37 @@ class CKMSQuantiles {
      * it with the adjacent item if it is.
      */
     private void compress() {
-        if (sample.size() < 2) {
+        if (sampleSize < 2) {
             return;
         }
 
-        ListIterator<Item> it = sample.listIterator();
-        int removed = 0;
-
-        Item prev = null;
-        Item next = it.next();
-
-        while (it.hasNext()) {
-            prev = next;
-            next = it.next();
-
-            if (prev.g + next.g + next.delta <= allowableError(it.previousIndex())) {
-                next.g += prev.g;
-                // Remove prev. it.remove() kills the last thing returned.
-                it.previous();
-                it.previous();
-                it.remove();
-                // it.next() is now equal to next, skip it back forward again
-                it.next();
-                removed++;
+        // Compacts in place: items below w are kept, and prev is the item at
+        // index w of the compressed sample, not written yet.
+        int size = sampleSize;
+        int w = 0;
+        double prevValue = values[0];
+        int prevG = g[0];
+        int prevDelta = delta[0];
+
+        for (int r = 1; r < sampleSize; r++) {
+            if (prevG + g[r] + delta[r] <= allowableError(w + 1, size)) {
+                // Merge prev into the next item.
+                g[r] += prevG;
+                size--;
+            } else {
+                values[w] = prevValue;
+                g[w] = prevG;
+                delta[w] = prevDelta;
+                w++;
             }
+            prevValue = values[r];
+            prevG = g[r];
+            prevDelta = delta[r];
         }
-    }
-
-    private class Item {
-        public final double value;
-        public int g;
-        public final int delta;
-
-        public Item(double value, int lower_delta, int delta) {
-            this.value = value;
-            this.g = lower_delta;
-            this.delta = delta;
-        }
-
-        @Override
-        public String toString() {
-            return String.format("%d, %d, %d", value, g, delta);
-        }
+        values[w] = prevValue;
+        g[w] = prevG;
+        delta[w] = prevDelta;
+        sampleSize = w + 1;
     }
 
     public static class Quantile {
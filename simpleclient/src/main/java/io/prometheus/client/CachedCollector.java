@@ -0,0 +1,103 @@
+package io.prometheus.client;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a Collector that is expensive to collect, reusing its metrics for a while.
+ * <p>
+ * Example usage:
+ * <pre>
+ * {@code
+ *   new CachedCollector(new HibernateStatisticsCollector(sessionFactory, "app"), 10, TimeUnit.SECONDS).register();
+ * }
+ * </pre>
+ * Scrapes within the maximum age of the last collection get its result. Once it is too old, the next
+ * scrape collects again, and concurrent scrapes wait for that collection rather than each collecting.
+ * If collecting fails, waiting scrapes try again themselves. A scrape interrupted while waiting gets the
+ * previous collection if there is one, even if it's too old.
+ * <p>
+ * Every scrape gets the same cached list, so callers of {@link #collect} must not modify it or the
+ * {@link MetricFamilySamples} in it.
+ * <p>
+ * If the wrapped collector is a {@link Collector.Describable} its description is passed on, otherwise
+ * {@link #describe} collects.
+ */
+public class CachedCollector extends Collector implements Collector.Describable {
+  private final Collector collector;
+  private final long maxAgeNanos;
+  private final SimpleTimer.TimeProvider timeProvider;
+
+  private final Object lock = new Object();
+  private List<MetricFamilySamples> cached;  // Guarded by lock.
+  private long cachedAtNanos;
+  private boolean collecting;
+
+  /**
+   * @param collector the Collector to cache, which shouldn't also be registered itself.
+   * @param maxAge how long to reuse a collection for.
+   */
+  public CachedCollector(Collector collector, long maxAge, TimeUnit unit) {
+    this(collector, maxAge, unit, SimpleTimer.defaultTimeProvider);
+  }
+
+  CachedCollector(Collector collector, long maxAge, TimeUnit unit, SimpleTimer.TimeProvider timeProvider) {
+    if (collector == null) {
+      throw new IllegalArgumentException("Collector cannot be null.");
+    }
+    if (maxAge < 0) {
+      throw new IllegalArgumentException("maxAge cannot be " + maxAge);
+    }
+    this.collector = collector;
+    this.maxAgeNanos = unit.toNanos(maxAge);
+    this.timeProvider = timeProvider;
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    synchronized (lock) {
+      while (true) {
+        if (cached != null && timeProvider.nanoTime() - cachedAtNanos < maxAgeNanos) {
+          return cached;
+        }
+        if (!collecting) {
+          collecting = true;
+          break;
+        }
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          if (cached != null) {
+            return cached;
+          }
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    List<MetricFamilySamples> result = null;
+    try {
+      result = collector.collect();
+    } finally {
+      synchronized (lock) {
+        collecting = false;
+        if (result != null) {
+          // Age from the end of the collection, so a slow collection isn't immediately stale.
+          cached = result;
+          cachedAtNanos = timeProvider.nanoTime();
+        }
+        lock.notifyAll();
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public List<MetricFamilySamples> describe() {
+    if (collector instanceof Describable) {
+      return ((Describable) collector).describe();
+    }
+    return collect();
+  }
+}
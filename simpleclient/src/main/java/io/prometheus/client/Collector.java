@@ -1,7 +1,14 @@
 
 package io.prometheus.client;
 
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
@@ -18,6 +25,28 @@ public abstract class Collector {
    * Return all of the metrics of this Collector.
    */
   public abstract List<MetricFamilySamples> collect();
+
+  /**
+   * Return the metrics of this Collector with the given sample names, or all of them if includedNames is empty.
+   * <p>
+   * Metric families without any of those samples are left out. This filters the result of {@link #collect()},
+   * Collectors that can avoid creating the other samples should override it.
+   */
+  public List<MetricFamilySamples> collect(Set<String> includedNames) {
+    return filter(collect(), includedNames);
+  }
+
+  /**
+   * Pass the metrics of this Collector with the given sample names to the visitor, or all of them if includedNames
+   * is empty.
+   * <p>
+   * This visits the result of {@link #collect(Set)}. Collectors that can produce their samples directly should
+   * override it, so that exposition doesn't have to create MetricFamilySamples for them.
+   */
+  public void collect(Set<String> includedNames, SampleVisitor visitor) throws IOException {
+    visit(collect(includedNames), visitor);
+  }
+
   public enum Type {
     COUNTER,
     GAUGE,
@@ -147,6 +176,84 @@ public abstract class Collector {
     List<MetricFamilySamples> describe();
   }
 
+  /**
+   * Receives metrics one sample at a time, see {@link Collector#collect(Set, SampleVisitor)}.
+   */
+  public interface SampleVisitor {
+    /**
+     * Start a metric family, the samples visited until the next family belong to it.
+     */
+    void visitFamily(String name, Type type, String help) throws IOException;
+
+    /**
+     * A sample with the given labels, followed by the extra label if extraLabelName isn't null.
+     * <p>
+     * The extra label is how histograms and summaries add <code>le</code> and <code>quantile</code> without
+     * copying the label lists, which are shared with the collector and mustn't be modified.
+     */
+    void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                     String extraLabelName, String extraLabelValue, double value) throws IOException;
+  }
+
+  /**
+   * Label values that keep an exporter's serialized form of them.
+   * <p>
+   * The label values of a child of a {@link SimpleCollector} never change, so it passes them to exporters as
+   * these, and what an exporter stores is dropped along with the child. The list can't be modified.
+   */
+  public static final class CachingLabelValues extends AbstractList<String> implements RandomAccess {
+    private final String[] values;
+    private volatile Object serialized;
+
+    CachingLabelValues(String[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public String get(int index) {
+      return values[index];
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+
+    @Override
+    public Object[] toArray() {
+      return Arrays.copyOf(values, values.length, Object[].class);
+    }
+
+    /**
+     * What was stored with {@link #setSerialized}, or null.
+     */
+    public Object getSerialized() {
+      return serialized;
+    }
+
+    /**
+     * Store a serialized form of these label values, replacing any stored before.
+     */
+    public void setSerialized(Object serialized) {
+      this.serialized = serialized;
+    }
+  }
+
+  public interface AsyncCollectable {
+    /**
+     *  Start collecting the metrics of this Collector, returning them
+     *  as {@link Collector#collect} would once they are available.
+     *
+     *  This is for collectors that wait on other systems. A
+     *  CollectorRegistry starts all async collections at the beginning
+     *  of a scrape, so they proceed concurrently with the rest of the
+     *  scrape, and if the registry has a scrape deadline a late collection
+     *  doesn't delay the scrape beyond it. The same Future may be returned
+     *  to several scrapes, callers don't modify its result.
+     */
+    Future<List<MetricFamilySamples>> collectAsync();
+  }
+
 
   /* Various utility functions for implementing Collectors. */
 
@@ -163,6 +270,49 @@ public abstract class Collector {
   private static final Pattern METRIC_LABEL_NAME_RE = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
   private static final Pattern RESERVED_METRIC_LABEL_NAME_RE = Pattern.compile("__.*");
 
+  /**
+   * Whether {@link #collect(Set)} should return samples with the given name.
+   */
+  protected static boolean isIncluded(Set<String> includedNames, String sampleName) {
+    return includedNames.isEmpty() || includedNames.contains(sampleName);
+  }
+
+  /**
+   * The given metric families with only the included samples, without modifying them.
+   */
+  static List<MetricFamilySamples> filter(List<MetricFamilySamples> mfs, Set<String> includedNames) {
+    if (includedNames.isEmpty()) {
+      return mfs;
+    }
+    List<MetricFamilySamples> result = new ArrayList<MetricFamilySamples>(mfs.size());
+    for (MetricFamilySamples family : mfs) {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        if (includedNames.contains(sample.name)) {
+          samples.add(sample);
+        }
+      }
+      if (samples.size() == family.samples.size() && !samples.isEmpty()) {
+        result.add(family);
+      } else if (!samples.isEmpty()) {
+        result.add(new MetricFamilySamples(family.name, family.type, family.help, samples));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Pass the given metric families to the visitor.
+   */
+  static void visit(List<MetricFamilySamples> mfs, SampleVisitor visitor) throws IOException {
+    for (MetricFamilySamples family : mfs) {
+      visitor.visitFamily(family.name, family.type, family.help);
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        visitor.visitSample(sample.name, sample.labelNames, sample.labelValues, null, null, sample.value);
+      }
+    }
+  }
+
   /**
    * Throw an exception if the metric name is invalid.
    */
@@ -1,16 +1,27 @@
 package io.prometheus.client;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A registry of Collectors.
@@ -20,6 +31,31 @@ import java.util.Set;
  * Creating a registry other than the default is primarily useful for unittests, or
  * pushing a subset of metrics to the <a href="https://github.com/prometheus/pushgateway">Pushgateway</a>
  * from batch jobs.
+ * <p>
+ * Collectors are collected in the order they were registered. By default this happens one after another on
+ * the scraping thread. If some collectors are slow, for example because they query other systems, a registry
+ * can instead be given an Executor to collect them concurrently:
+ * <pre>
+ * {@code
+ *   CollectorRegistry registry = new CollectorRegistry(true, Executors.newFixedThreadPool(4));
+ * }
+ * </pre>
+ * Metrics are still returned in registration order, so the output is the same either way.
+ * <p>
+ * So that one stuck collector can't fail every scrape, a registry can also have a scrape deadline:
+ * <pre>
+ * {@code
+ *   CollectorRegistry registry = new CollectorRegistry(true, Executors.newFixedThreadPool(4), 5, TimeUnit.SECONDS, true);
+ * }
+ * </pre>
+ * A collector that hasn't finished by the deadline is left to finish in the background, and the scrape gets
+ * its last collection instead, or nothing from it if serving stale metrics is disabled or there is no last
+ * collection. Either way it is counted in the {@value #DEADLINE_EXCEEDED} metric, labelled with the
+ * collector's class. A collector that is still running isn't started again by later scrapes.
+ * <p>
+ * The deadline applies to collectors run by the Executor and to {@link Collector.AsyncCollectable}
+ * collectors. Without an Executor, other collectors are run on the scraping thread and so can only be
+ * skipped once the deadline has passed.
  */
 public class CollectorRegistry {
   /**
@@ -28,17 +64,66 @@ public class CollectorRegistry {
   public static final CollectorRegistry defaultRegistry = new CollectorRegistry(true);
 
 
-  private final Map<Collector, List<String>> collectorsToNames = new HashMap<Collector, List<String>>();
-  private final Map<String, Collector> namesToCollectors = new HashMap<String, Collector>();
+  private final Object writeLock = new Object();
+  // Guarded by writeLock, in registration order.
+  private final Map<Collector, List<String>> collectorsToNames = new LinkedHashMap<Collector, List<String>>();
+  // Changed only while holding writeLock, read without locking.
+  private final ConcurrentMap<String, Collector> namesToCollectors = new ConcurrentHashMap<String, Collector>();
+  // The registered collectors, or null after they've changed until the next scrape. Never modified, so
+  // scrapes can use it without locking or copying.
+  private volatile Collector[] collectors = new Collector[0];
+
+  /**
+   * The name of the counter of collections that didn't finish by the scrape deadline.
+   */
+  public static final String DEADLINE_EXCEEDED = "collector_registry_deadline_exceeded_total";
 
   private final boolean autoDescribe;
+  private final Executor collectExecutor;
+  private final long scrapeDeadlineNanos;
+  private final boolean serveStale;
+
+  // Only used with a scrape deadline. Collections in flight are shared by scrapes of the same names, the last
+  // collections are only kept of all names.
+  private final ConcurrentMap<CollectionKey, CollectionTask> inFlight = new ConcurrentHashMap<CollectionKey, CollectionTask>();
+  private final ConcurrentMap<Collector, List<Collector.MetricFamilySamples>> lastCollections =
+      new ConcurrentHashMap<Collector, List<Collector.MetricFamilySamples>>();
+  private final Map<List<String>, Long> deadlinesExceeded = new LinkedHashMap<List<String>, Long>();
 
   public CollectorRegistry() {
     this(false);
   }
 
   public CollectorRegistry(boolean autoDescribe) {
+    this(autoDescribe, null);
+  }
+
+  /**
+   * @param collectExecutor used to collect the registered Collectors concurrently during a scrape,
+   *     or null to collect them on the scraping thread. The registry doesn't shut it down.
+   */
+  public CollectorRegistry(boolean autoDescribe, Executor collectExecutor) {
+    this(autoDescribe, collectExecutor, 0, TimeUnit.SECONDS, false);
+  }
+
+  /**
+   * @param collectExecutor used to collect the registered Collectors concurrently during a scrape,
+   *     or null to collect them on the scraping thread. The registry doesn't shut it down.
+   * @param scrapeDeadline how long a scrape waits for collectors, or 0 to wait for them however long they take.
+   *     A collection that misses it is shared with later scrapes of the same names until it finishes, and one of all
+   *     names with any scrape.
+   * @param serveStale whether to return the last collection of a collector that misses the deadline. Only collections
+   *     of all names are kept, filtered scrapes get the matching part of those.
+   */
+  public CollectorRegistry(boolean autoDescribe, Executor collectExecutor, long scrapeDeadline, TimeUnit unit,
+                           boolean serveStale) {
+    if (scrapeDeadline < 0) {
+      throw new IllegalArgumentException("scrapeDeadline cannot be " + scrapeDeadline);
+    }
     this.autoDescribe = autoDescribe;
+    this.collectExecutor = collectExecutor;
+    this.scrapeDeadlineNanos = unit.toNanos(scrapeDeadline);
+    this.serveStale = serveStale;
   }
 
   /**
@@ -48,7 +133,7 @@ public class CollectorRegistry {
    */
   public void register(Collector m) {
     List<String> names = collectorNames(m);
-    synchronized (collectorsToNames) {
+    synchronized (writeLock) {
       for (String name : names) {
         if (namesToCollectors.containsKey(name)) {
           throw new IllegalArgumentException("Collector already registered that provides name: " + name);
@@ -58,6 +143,7 @@ public class CollectorRegistry {
         namesToCollectors.put(name, m);
       }
       collectorsToNames.put(m, names);
+      collectors = null;
     }
   }
 
@@ -65,11 +151,13 @@ public class CollectorRegistry {
    * Unregister a Collector.
    */
   public void unregister(Collector m) {
-    synchronized (collectorsToNames) {
+    synchronized (writeLock) {
       for (String name : collectorsToNames.get(m)) {
         namesToCollectors.remove(name);
       }
       collectorsToNames.remove(m);
+      collectors = null;
+      lastCollections.remove(m);
     }
   }
 
@@ -77,19 +165,32 @@ public class CollectorRegistry {
    * Unregister all Collectors.
    */
   public void clear() {
-    synchronized (collectorsToNames) {
+    synchronized (writeLock) {
+      collectors = null;
       collectorsToNames.clear();
       namesToCollectors.clear();
+      lastCollections.clear();
     }
   }
 
   /**
    * A snapshot of the current collectors.
    */
-  private Set<Collector> collectors() {
-    synchronized (collectorsToNames) {
-      return new HashSet<Collector>(collectorsToNames.keySet());
+  private List<Collector> collectors() {
+    return Arrays.asList(collectorsArray());
+  }
+
+  private Collector[] collectorsArray() {
+    Collector[] result = collectors;
+    if (result == null) {
+      synchronized (writeLock) {
+        result = collectors;
+        if (result == null) {
+          result = collectors = collectorsToNames.keySet().toArray(new Collector[0]);
+        }
+      }
     }
+    return result;
   }
 
   private List<String> collectorNames(Collector m) {
@@ -131,33 +232,69 @@ public class CollectorRegistry {
     return new MetricFamilySamplesEnumeration(includedNames);
   }
 
+  /**
+   * Pass the metrics of all registered collectors with the given sample names to the visitor, or all of them if
+   * includedNames is empty.
+   * <p>
+   * This visits the same metrics as {@link #filteredMetricFamilySamples}. Collectors collected on the scraping
+   * thread visit their samples directly, see {@link Collector#collect(Set, Collector.SampleVisitor)}.
+   */
+  public void visitMetricFamilySamples(Set<String> includedNames, Collector.SampleVisitor visitor)
+      throws IOException {
+    new MetricFamilySamplesEnumeration(includedNames, false).visit(visitor);
+  }
+
   class MetricFamilySamplesEnumeration implements Enumeration<Collector.MetricFamilySamples> {
 
-    private final Iterator<Collector> collectorIter;
+    private final List<Collector> collectors;
+    private final long deadline;
+    private final List<Future<List<Collector.MetricFamilySamples>>> collections;
+    private int collectorIndex;
+    private boolean deadlinesExceededReturned;
     private Iterator<Collector.MetricFamilySamples> metricFamilySamples;
     private Collector.MetricFamilySamples next;
     private Set<String> includedNames;
 
     MetricFamilySamplesEnumeration(Set<String> includedNames) {
-      this.includedNames = includedNames;
-      collectorIter = includedCollectorIterator(includedNames);
-      findNextElement();
+      this(includedNames, true);
+    }
+
+    /**
+     * @param enumerate false if the metrics are to be visited instead.
+     */
+    MetricFamilySamplesEnumeration(Set<String> includedNames, boolean enumerate) {
+      // Copied when collections may outlive the scrape, as they're shared by the names.
+      this.includedNames = scrapeDeadlineNanos > 0 && !includedNames.isEmpty()
+          ? new HashSet<String>(includedNames) : includedNames;
+      collectors = includedCollectors(includedNames);
+      deadline = System.nanoTime() + scrapeDeadlineNanos;
+      collections = startCollections(collectors);
+      if (enumerate) {
+        findNextElement();
+      }
     }
 
-    private Iterator<Collector> includedCollectorIterator(Set<String> includedNames) {
+    private List<Collector> includedCollectors(Set<String> includedNames) {
       if (includedNames.isEmpty()) {
-        return collectors().iterator();
+        return collectors();
       } else {
-        HashSet<Collector> collectors = new HashSet<Collector>();
-        synchronized (namesToCollectors) {
-          for (Map.Entry<String, Collector> entry : namesToCollectors.entrySet()) {
-            if (includedNames.contains(entry.getKey())) {
-              collectors.add(entry.getValue());
+        Set<Collector> included = new HashSet<Collector>();
+        for (String name : includedNames) {
+          Collector collector = namesToCollectors.get(name);
+          if (collector != null) {
+            included.add(collector);
+          }
+        }
+        List<Collector> collectors = new ArrayList<Collector>(included.size());
+        if (!included.isEmpty()) {
+          // In registration order.
+          for (Collector collector : collectorsArray()) {
+            if (included.contains(collector)) {
+              collectors.add(collector);
             }
           }
         }
-
-        return collectors.iterator();
+        return collectors;
       }
     }
 
@@ -165,43 +302,178 @@ public class CollectorRegistry {
       this(Collections.<String>emptySet());
     }
 
-    private void findNextElement() {
-      next = null;
+    /**
+     * Starts the async collections, and hands collections to the collectExecutor. Returns null to collect
+     * sequentially if there is nothing to start.
+     * <p>
+     * Without a deadline the first collector is left for the scraping thread, as its result is needed first.
+     */
+    private List<Future<List<Collector.MetricFamilySamples>>> startCollections(List<Collector> collectors) {
+      boolean concurrent = collectExecutor != null && collectors.size() > 1;
+      if (!concurrent && scrapeDeadlineNanos == 0 && !anyAsync(collectors)) {
+        return null;
+      }
+      List<Future<List<Collector.MetricFamilySamples>>> collections =
+          new ArrayList<Future<List<Collector.MetricFamilySamples>>>(collectors.size());
+      boolean runNextHere = scrapeDeadlineNanos == 0;
+      for (Collector collector : collectors) {
+        if (collector instanceof Collector.AsyncCollectable) {
+          collections.add(((Collector.AsyncCollectable) collector).collectAsync());
+          continue;
+        }
+        CollectionTask collection = new CollectionTask(collector, includedNames);
+        if (scrapeDeadlineNanos > 0) {
+          // Share a collection still running from an earlier scrape of the same names, or of all of them,
+          // rather than taking another thread.
+          CollectionTask running = null;
+          if (!includedNames.isEmpty()) {
+            running = inFlight.get(new CollectionKey(collector, Collections.<String>emptySet()));
+          }
+          if (running == null) {
+            running = startInFlight(collection);
+          }
+          if (running != null) {
+            collections.add(running);
+            continue;
+          }
+        }
+        if (runNextHere || collectExecutor == null) {
+          runNextHere = false;
+        } else {
+          try {
+            collectExecutor.execute(collection);
+            collection.submitted = true;
+          } catch (RejectedExecutionException e) {
+            // Collected on the scraping thread instead.
+          }
+        }
+        collections.add(collection);
+      }
+      return collections;
+    }
 
-      while (metricFamilySamples != null && metricFamilySamples.hasNext()) {
-        next = filter(metricFamilySamples.next());
-        if (next != null) {
-          return;
+    /**
+     * Returns the unfinished collection of the collector, or null if the given collection is to be started.
+     */
+    private CollectionTask startInFlight(CollectionTask collection) {
+      while (true) {
+        CollectionTask running = inFlight.putIfAbsent(collection.key, collection);
+        if (running == null || !running.isDone()) {
+          return running;
         }
+        // Finished, but done() hasn't removed it yet.
+        inFlight.remove(collection.key, running);
       }
+    }
 
-      if (next == null) {
-        while (collectorIter.hasNext()) {
-          metricFamilySamples = collectorIter.next().collect().iterator();
-          while (metricFamilySamples.hasNext()) {
-            next = filter(metricFamilySamples.next());
-            if (next != null) {
-              return;
-            }
+    private boolean anyAsync(List<Collector> collectors) {
+      for (Collector collector : collectors) {
+        if (collector instanceof Collector.AsyncCollectable) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private List<Collector.MetricFamilySamples> collectNext() {
+      int i = collectorIndex++;
+      Collector collector = collectors.get(i);
+      if (collections == null) {
+        return collector.collect(includedNames);
+      }
+      Future<List<Collector.MetricFamilySamples>> collection = collections.get(i);
+      if (collection instanceof CollectionTask) {
+        CollectionTask task = (CollectionTask) collection;
+        if (scrapeDeadlineNanos == 0) {
+          // Runs the collection here if the executor hasn't started it yet, so a busy executor can't stall the
+          // scrape. This does nothing if it has already started.
+          task.run();
+        } else if (!task.submitted && deadline - System.nanoTime() > 0) {
+          // Only collections the executor didn't take, as the scrape couldn't give up on them at the deadline.
+          task.run();
+        }
+      }
+      try {
+        List<Collector.MetricFamilySamples> result;
+        if (scrapeDeadlineNanos == 0) {
+          result = collection.get();
+        } else {
+          result = collection.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (!(collection instanceof CollectionTask)) {
+            storeLastCollection(collector, result);
           }
         }
+        if (scrapeDeadlineNanos > 0 || !(collection instanceof CollectionTask)) {
+          return Collector.filter(result, includedNames);
+        }
+        return result;
+      } catch (TimeoutException e) {
+        return Collector.filter(deadlineExceeded(collector), includedNames);
+      } catch (InterruptedException e) {
+        cancelCollections();
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        cancelCollections();
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
       }
     }
 
-    private Collector.MetricFamilySamples filter(Collector.MetricFamilySamples next) {
-      if (includedNames.isEmpty()) {
-        return next;
-      } else {
-        Iterator<Collector.MetricFamilySamples.Sample> it = next.samples.iterator();
-        while (it.hasNext()) {
-            if (!includedNames.contains(it.next().name)) {
-                it.remove();
-            }
+    private void cancelCollections() {
+      if (scrapeDeadlineNanos == 0) {
+        // Otherwise collections may be shared with other scrapes, so are left to finish.
+        for (int i = collectorIndex; i < collections.size(); i++) {
+          collections.get(i).cancel(false);
+        }
+      }
+      collectorIndex = collections.size();
+    }
+
+    private void findNextElement() {
+      next = null;
+
+      while (metricFamilySamples == null || !metricFamilySamples.hasNext()) {
+        if (collectorIndex < collectors.size()) {
+          metricFamilySamples = collectNext().iterator();
+        } else if (scrapeDeadlineNanos > 0 && !deadlinesExceededReturned) {
+          deadlinesExceededReturned = true;
+          metricFamilySamples = Collector.filter(
+              Collections.singletonList(deadlinesExceededFamily()), includedNames).iterator();
+        } else {
+          return;
+        }
+      }
+      next = metricFamilySamples.next();
+    }
+
+    /**
+     * Visits the metrics rather than enumerating them. Without collections to wait for, collectors visit their
+     * samples directly.
+     */
+    void visit(Collector.SampleVisitor visitor) throws IOException {
+      while (collectorIndex < collectors.size()) {
+        if (collections == null) {
+          collectors.get(collectorIndex++).collect(includedNames, visitor);
+          continue;
         }
-        if (next.samples.size() == 0) {
-          return null;
+        try {
+          Collector.visit(collectNext(), visitor);
+        } catch (IOException e) {
+          // Nobody will read the rest, e.g. the client went away.
+          cancelCollections();
+          throw e;
         }
-        return next;
+      }
+      if (scrapeDeadlineNanos > 0) {
+        Collector.visit(Collector.filter(Collections.singletonList(deadlinesExceededFamily()), includedNames),
+            visitor);
       }
     }
 
@@ -219,10 +491,107 @@ public class CollectorRegistry {
     }
   }
 
+  /**
+   * A collector and the names collected of it.
+   */
+  private static final class CollectionKey {
+    final Collector collector;
+    final Set<String> includedNames;
+
+    CollectionKey(Collector collector, Set<String> includedNames) {
+      this.collector = collector;
+      this.includedNames = includedNames;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CollectionKey)) {
+        return false;
+      }
+      CollectionKey other = (CollectionKey) obj;
+      return collector == other.collector && includedNames.equals(other.includedNames);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(collector) + includedNames.hashCode();
+    }
+  }
+
+  /**
+   * Collects a Collector, recording the result of all its names for later scrapes if it's needed after the deadline.
+   */
+  private class CollectionTask extends FutureTask<List<Collector.MetricFamilySamples>> {
+    private final CollectionKey key;
+    volatile boolean submitted;
+
+    CollectionTask(final Collector collector, final Set<String> includedNames) {
+      super(new Callable<List<Collector.MetricFamilySamples>>() {
+        public List<Collector.MetricFamilySamples> call() {
+          return collector.collect(includedNames);
+        }
+      });
+      this.key = new CollectionKey(collector, includedNames);
+    }
+
+    @Override
+    protected void done() {
+      if (scrapeDeadlineNanos == 0) {
+        return;
+      }
+      inFlight.remove(key, this);
+      // Filtered collections would be incomplete for other scrapes.
+      if (!isCancelled() && key.includedNames.isEmpty()) {
+        try {
+          storeLastCollection(key.collector, get());
+        } catch (Exception e) {
+          // Failed, keep any previous collection.
+        }
+      }
+    }
+  }
+
+  private void storeLastCollection(Collector collector, List<Collector.MetricFamilySamples> mfs) {
+    if (!serveStale) {
+      return;
+    }
+    synchronized (writeLock) {
+      // Don't keep collections of collectors that were unregistered while collecting.
+      if (collectorsToNames.containsKey(collector)) {
+        lastCollections.put(collector, mfs);
+      }
+    }
+  }
+
+  private List<Collector.MetricFamilySamples> deadlineExceeded(Collector collector) {
+    List<Collector.MetricFamilySamples> last = lastCollections.get(collector);
+    List<String> labelValues = Arrays.asList(collector.getClass().getName(), last != null ? "stale" : "omitted");
+    synchronized (deadlinesExceeded) {
+      Long count = deadlinesExceeded.get(labelValues);
+      deadlinesExceeded.put(labelValues, count == null ? 1 : count + 1);
+    }
+    if (last == null) {
+      return Collections.emptyList();
+    }
+    return last;
+  }
+
+  private Collector.MetricFamilySamples deadlinesExceededFamily() {
+    CounterMetricFamily family = new CounterMetricFamily(DEADLINE_EXCEEDED,
+        "Collections that didn't finish by the scrape deadline, and whether a stale collection was returned instead.",
+        Arrays.asList("collector", "result"));
+    synchronized (deadlinesExceeded) {
+      for (Map.Entry<List<String>, Long> entry : deadlinesExceeded.entrySet()) {
+        family.addMetric(entry.getKey(), entry.getValue());
+      }
+    }
+    return family;
+  }
+
   /**
    * Returns the given value, or null if it doesn't exist.
    * <p>
-   * This is inefficient, and intended only for use in unittests.
+   * See {@link #getSampleValue(String, String[], String[])}.
    */
   public Double getSampleValue(String name) {
     return getSampleValue(name, new String[]{}, new String[]{});
@@ -231,10 +600,20 @@ public class CollectorRegistry {
   /**
    * Returns the given value, or null if it doesn't exist.
    * <p>
-   * This is inefficient, and intended only for use in unittests.
+   * {@link Counter}s, {@link Gauge}s, {@link Summary}s and {@link Histogram}s are read directly, without
+   * collecting anything else. A collector known to provide the name is collected with only that name, and
+   * if no collector is known to provide it everything is collected, so this is inefficient for names of
+   * collectors that aren't {@link Collector.Describable} in a registry without auto describe.
    */
   public Double getSampleValue(String name, String[] labelNames, String[] labelValues) {
-    for (Collector.MetricFamilySamples metricFamilySamples : Collections.list(metricFamilySamples())) {
+    Collector collector = namesToCollectors.get(name);
+    if (collector instanceof SimpleCollector) {
+      return ((SimpleCollector<?>) collector).getSampleValue(name, labelNames, labelValues);
+    }
+    Enumeration<Collector.MetricFamilySamples> mfs = collector != null
+        ? filteredMetricFamilySamples(Collections.singleton(name))
+        : metricFamilySamples();
+    for (Collector.MetricFamilySamples metricFamilySamples : Collections.list(mfs)) {
       for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
         if (sample.name.equals(name)
                 && Arrays.equals(sample.labelNames.toArray(), labelNames)
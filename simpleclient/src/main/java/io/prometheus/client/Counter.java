@@ -1,9 +1,11 @@
 package io.prometheus.client;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Counter metric, to track counts of events or running totals.
@@ -106,7 +108,7 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
    * <em>Warning:</em> References to a Child become invalid after using
    * {@link SimpleCollector#remove} or {@link SimpleCollector#clear},
    */
-  public static class Child {
+  public static class Child extends TouchedChild {
     private final DoubleAdder value = new DoubleAdder();
     /**
      * Increment the counter by 1.
@@ -122,6 +124,7 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
       if (amt < 0) {
         throw new IllegalArgumentException("Amount to increment must be non-negative.");
       }
+      touch();
       value.add(amt);
     }
     /**
@@ -156,15 +159,43 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
 
   @Override
   public List<MetricFamilySamples> collect() {
+    return collect(Collections.<String>emptySet());
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect(Set<String> includedNames) {
+    expireIdleChildren();
     List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(children.size());
-    for(Map.Entry<List<String>, Child> c: children.entrySet()) {
-      samples.add(new MetricFamilySamples.Sample(fullname, labelNames, c.getKey(), c.getValue().get()));
+    if (isIncluded(includedNames, fullname)) {
+      for(Map.Entry<List<String>, Child> c: children.entrySet()) {
+        samples.add(new MetricFamilySamples.Sample(fullname, labelNames, c.getKey(), c.getValue().get()));
+      }
+    }
+    return familySamplesList(Type.COUNTER, samples, includedNames);
+  }
+
+  @Override
+  public void collect(Set<String> includedNames, SampleVisitor visitor) throws IOException {
+    expireIdleChildren();
+    if (visitFamily(Type.COUNTER, isIncluded(includedNames, fullname), includedNames, visitor)) {
+      for(Map.Entry<List<String>, Child> c: children.entrySet()) {
+        visitor.visitSample(fullname, labelNames, c.getKey(), null, null, c.getValue().get());
+      }
+    }
+    visitOtherFamilies(includedNames, visitor);
+  }
+
+  @Override
+  Double getSampleValue(String name, String[] labelNames, String[] labelValues) {
+    if (!name.equals(fullname)) {
+      return super.getSampleValue(name, labelNames, labelValues);
     }
-    return familySamplesList(Type.COUNTER, samples);
+    Child child = sampleChild(labelNames, labelValues, null);
+    return child == null ? null : child.get();
   }
 
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.<MetricFamilySamples>singletonList(new CounterMetricFamily(fullname, help, labelNames));
+    return describeList(new CounterMetricFamily(fullname, help, labelNames));
   }
 }
@@ -1,10 +1,12 @@
 package io.prometheus.client;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Gauge metric, to report instantaneous values.
@@ -132,7 +134,7 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
    * <em>Warning:</em> References to a Child become invalid after using
    * {@link SimpleCollector#remove} or {@link SimpleCollector#clear},
    */
-  public static class Child {
+  public static class Child extends TouchedChild {
     private final DoubleAdder value = new DoubleAdder();
 
     static TimeProvider timeProvider = new TimeProvider();
@@ -146,6 +148,7 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
      * Increment the gauge by the given amount.
      */
     public void inc(double amt) {
+      touch();
       value.add(amt);
     }
     /**
@@ -158,12 +161,14 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
      * Decrement the gauge by the given amount.
      */
     public void dec(double amt) {
+      touch();
       value.add(-amt);
     }
     /**
      * Set the gauge to the given value.
      */
     public void set(double val) {
+      touch();
       synchronized(this) {
         value.reset();
         // If get() were called here it'd see an invalid value, so use a lock.
@@ -290,16 +295,44 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
 
   @Override
   public List<MetricFamilySamples> collect() {
+    return collect(Collections.<String>emptySet());
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect(Set<String> includedNames) {
+    expireIdleChildren();
     List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(children.size());
-    for(Map.Entry<List<String>, Child> c: children.entrySet()) {
-      samples.add(new MetricFamilySamples.Sample(fullname, labelNames, c.getKey(), c.getValue().get()));
+    if (isIncluded(includedNames, fullname)) {
+      for(Map.Entry<List<String>, Child> c: children.entrySet()) {
+        samples.add(new MetricFamilySamples.Sample(fullname, labelNames, c.getKey(), c.getValue().get()));
+      }
+    }
+    return familySamplesList(Type.GAUGE, samples, includedNames);
+  }
+
+  @Override
+  public void collect(Set<String> includedNames, SampleVisitor visitor) throws IOException {
+    expireIdleChildren();
+    if (visitFamily(Type.GAUGE, isIncluded(includedNames, fullname), includedNames, visitor)) {
+      for(Map.Entry<List<String>, Child> c: children.entrySet()) {
+        visitor.visitSample(fullname, labelNames, c.getKey(), null, null, c.getValue().get());
+      }
+    }
+    visitOtherFamilies(includedNames, visitor);
+  }
+
+  @Override
+  Double getSampleValue(String name, String[] labelNames, String[] labelValues) {
+    if (!name.equals(fullname)) {
+      return super.getSampleValue(name, labelNames, labelValues);
     }
-    return familySamplesList(Type.GAUGE, samples);
+    Child child = sampleChild(labelNames, labelValues, null);
+    return child == null ? null : child.get();
   }
 
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.<MetricFamilySamples>singletonList(new GaugeMetricFamily(fullname, help, labelNames));
+    return describeList(new GaugeMetricFamily(fullname, help, labelNames));
   }
 
   static class TimeProvider {
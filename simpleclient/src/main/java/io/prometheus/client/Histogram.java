@@ -1,10 +1,12 @@
 package io.prometheus.client;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Histogram metric, to track distributions of events.
@@ -58,21 +60,62 @@ import java.util.Map;
  * {@link Histogram.Builder#linearBuckets(double, double, int) linearBuckets} and
  * {@link Histogram.Builder#exponentialBuckets(double, double, int) exponentialBuckets}
  * offer easy ways to set common bucket patterns.
+ * <p>
+ * If the distribution spans many orders of magnitude, {@link Histogram.Builder#sparseBuckets(double) sparseBuckets}
+ * creates exponentially growing buckets on demand instead, only for the ranges that were observed:
+ * <pre>
+ * {@code
+ *     static final Histogram requestLatency = Histogram.build()
+ *         .sparseBuckets(0.05)        // Bucket bounds are within 5% of the observed values.
+ *         .maxExportedBuckets(40)     // Merge neighbouring buckets to export at most 40 bucket series.
+ *         .name("requests_latency_seconds").help("Request latency in seconds.").register();
+ * }
+ * </pre>
+ * The buckets are exported as normal <code>_bucket</code> series, but the set of
+ * <code>le</code> values depends on what has been observed.
  */
 public class Histogram extends SimpleCollector<Histogram.Child> implements Collector.Describable {
-  private final double[] buckets;
+  private final double[] buckets;  // null for sparse buckets.
+  private final BucketSearch bucketSearch;
+  private final double sparseRelativeError;
+  private final int maxExportedBuckets;
 
   Histogram(Builder b) {
     super(b);
-    buckets = b.buckets;
+    sparseRelativeError = b.sparseRelativeError;
+    maxExportedBuckets = b.maxExportedBuckets;
+    if (sparseRelativeError > 0) {
+      buckets = null;
+      bucketSearch = null;
+    } else {
+      buckets = b.buckets;
+      bucketSearch = b.bucketSearch();
+    }
     initializeNoLabelsChild();
   }
 
   public static class Builder extends SimpleCollector.Builder<Builder, Histogram> {
     private double[] buckets = new double[]{.005, .01, .025, .05, .075, .1, .25, .5, .75, 1, 2.5, 5, 7.5, 10};
+    // Set by linearBuckets and exponentialBuckets, so observe() can compute the bucket directly.
+    private boolean linear;
+    private boolean exponential;
+    private double start;
+    private double widthOrFactor;
+    private double sparseRelativeError;
+    private int maxExportedBuckets = 64;
 
     @Override
     public Histogram create() {
+      for (String label: labelNames) {
+        if (label.equals("le")) {
+            throw new IllegalStateException("Histogram cannot have a label named 'le'.");
+        }
+      }
+      dontInitializeNoLabelsChild = true;
+      if (sparseRelativeError > 0) {
+        return new Histogram(this);
+      }
+
       for (int i = 0; i < buckets.length - 1; i++) {
         if (buckets[i] >= buckets[i + 1]) {
           throw new IllegalStateException("Histogram buckets must be in increasing order: "
@@ -82,11 +125,6 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       if (buckets.length == 0) {
           throw new IllegalStateException("Histogram must have at least one bucket.");
       }
-      for (String label: labelNames) {
-        if (label.equals("le")) {
-            throw new IllegalStateException("Histogram cannot have a label named 'le'.");
-        }
-      }
 
       // Append infinity bucket if it's not already there.
       if (buckets[buckets.length - 1] != Double.POSITIVE_INFINITY) {
@@ -95,7 +133,6 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
         tmp[buckets.length] = Double.POSITIVE_INFINITY;
         buckets = tmp;
       }
-      dontInitializeNoLabelsChild = true;
       return new Histogram(this);
     }
 
@@ -104,6 +141,9 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       */
     public Builder buckets(double... buckets) {
       this.buckets = buckets;
+      linear = false;
+      exponential = false;
+      sparseRelativeError = 0;
       return this;
     }
 
@@ -115,6 +155,11 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       for (int i = 0; i < count; i++){
         buckets[i] = start + i*width;
       }
+      linear = width > 0;
+      exponential = false;
+      sparseRelativeError = 0;
+      this.start = start;
+      this.widthOrFactor = width;
       return this;
     }
     /**
@@ -125,9 +170,57 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       for (int i = 0; i < count; i++) {
         buckets[i] = start * Math.pow(factor, i);
       }
+      linear = false;
+      exponential = start > 0 && factor > 1;
+      sparseRelativeError = 0;
+      this.start = start;
+      this.widthOrFactor = factor;
       return this;
     }
 
+    /**
+      * Use exponentially growing buckets that are only created once a value falls into them,
+      * instead of fixed buckets.
+      * <p>
+      * Each bucket's upper bound is <code>1 + relativeError</code> times the previous one, so any observation
+      * is within relativeError of the upper bound of its bucket. Observations &lt;= 0 share one bucket with upper bound 0.
+      */
+    public Builder sparseBuckets(double relativeError) {
+      if (relativeError < 0.0001 || relativeError > 1) {
+        throw new IllegalArgumentException("Relative error " + relativeError + " invalid: Expected number between 0.0001 and 1.0.");
+      }
+      sparseRelativeError = relativeError;
+      return this;
+    }
+
+    /**
+      * Set the maximum number of <code>_bucket</code> series exported per child for
+      * {@link #sparseBuckets}, including <code>+Inf</code>. Default is 64.
+      * <p>
+      * If more buckets have observations, neighbouring buckets are merged for the export.
+      */
+    public Builder maxExportedBuckets(int maxExportedBuckets) {
+      if (maxExportedBuckets < 3) {
+        throw new IllegalArgumentException("maxExportedBuckets cannot be " + maxExportedBuckets);
+      }
+      this.maxExportedBuckets = maxExportedBuckets;
+      return this;
+    }
+
+    /**
+     * Pick how observe() finds the bucket, must be called after the infinity bucket was added.
+     */
+    BucketSearch bucketSearch() {
+      if (linear) {
+        return new LinearBucketSearch(buckets, start, widthOrFactor);
+      } else if (exponential) {
+        return new ExponentialBucketSearch(buckets, start, widthOrFactor);
+      } else if (buckets.length <= LINEAR_SCAN_MAX_BUCKETS) {
+        return new LinearScanBucketSearch(buckets);
+      }
+      return new BinaryBucketSearch(buckets);
+    }
+
   }
 
   /**
@@ -149,7 +242,151 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
 
   @Override
   protected Child newChild() {
-    return new Child(buckets);
+    if (sparseRelativeError > 0) {
+      return new Child(new SparseBuckets(sparseRelativeError), maxExportedBuckets);
+    }
+    return new Child(buckets, bucketSearch);
+  }
+
+  // Up to this many buckets a linear scan beats a binary search.
+  static final int LINEAR_SCAN_MAX_BUCKETS = 8;
+
+  /**
+   * Finds the bucket an observation falls into.
+   */
+  abstract static class BucketSearch {
+    final double[] upperBounds;
+    final String[] leLabelValues;  // The upper bounds formatted for the le label.
+
+    BucketSearch(double[] upperBounds) {
+      this.upperBounds = upperBounds;
+      leLabelValues = new String[upperBounds.length];
+      for (int i = 0; i < upperBounds.length; i++) {
+        leLabelValues[i] = doubleToGoString(upperBounds[i]);
+      }
+    }
+
+    /**
+     * Return the index of the first upper bound that is &gt;= amt. amt must not be NaN.
+     */
+    abstract int indexOf(double amt);
+
+    /**
+     * Correct an estimate of {@link #indexOf} that may be off due to rounding.
+     */
+    final int adjust(double amt, int i) {
+      while (amt > upperBounds[i]) {
+        i++;
+      }
+      while (i > 0 && amt <= upperBounds[i - 1]) {
+        i--;
+      }
+      return i;
+    }
+  }
+
+  static final class LinearScanBucketSearch extends BucketSearch {
+    LinearScanBucketSearch(double[] upperBounds) {
+      super(upperBounds);
+    }
+
+    @Override
+    int indexOf(double amt) {
+      int i = 0;
+      // The last bucket is +Inf, so this always terminates.
+      while (amt > upperBounds[i]) {
+        i++;
+      }
+      return i;
+    }
+  }
+
+  static final class BinaryBucketSearch extends BucketSearch {
+    BinaryBucketSearch(double[] upperBounds) {
+      super(upperBounds);
+    }
+
+    @Override
+    int indexOf(double amt) {
+      int low = 0;
+      int high = upperBounds.length - 1;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (amt <= upperBounds[mid]) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return low;
+    }
+  }
+
+  /**
+   * For buckets from {@link Builder#linearBuckets}.
+   */
+  static final class LinearBucketSearch extends BucketSearch {
+    private final double start;
+    private final double width;
+
+    LinearBucketSearch(double[] upperBounds, double start, double width) {
+      super(upperBounds);
+      this.start = start;
+      this.width = width;
+    }
+
+    @Override
+    int indexOf(double amt) {
+      double pos = (amt - start) / width;
+      int last = upperBounds.length - 1;
+      if (pos <= 0) {
+        return adjust(amt, 0);
+      }
+      if (pos >= last) {
+        return adjust(amt, last);
+      }
+      return adjust(amt, (int)pos);
+    }
+  }
+
+  /**
+   * For buckets from {@link Builder#exponentialBuckets} with a positive start and factor above 1.
+   */
+  static final class ExponentialBucketSearch extends BucketSearch {
+    private final double start;
+    private final double inverseStart;
+    private final double inverseLog2Factor;
+
+    ExponentialBucketSearch(double[] upperBounds, double start, double factor) {
+      super(upperBounds);
+      this.start = start;
+      this.inverseStart = 1 / start;
+      this.inverseLog2Factor = Math.log(2) / Math.log(factor);
+    }
+
+    @Override
+    int indexOf(double amt) {
+      if (amt <= start) {
+        return 0;
+      }
+      double pos = approximateLog2(amt * inverseStart) * inverseLog2Factor;
+      int last = upperBounds.length - 1;
+      if (pos >= last) {
+        return adjust(amt, last);
+      }
+      return adjust(amt, (int)pos);
+    }
+
+    /**
+     * log2 of a positive normal double, to within 0.09. Much cheaper than Math.log,
+     * and adjust() corrects the estimate anyway.
+     */
+    static double approximateLog2(double x) {
+      long bits = Double.doubleToRawLongBits(x);
+      int exponent = (int)((bits >>> 52) & 0x7ff) - 1023;
+      double mantissa = Double.longBitsToDouble((bits & 0x000fffffffffffffL) | 0x3ff0000000000000L);
+      return exponent + mantissa - 1;
+    }
   }
 
   /**
@@ -187,7 +424,7 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
    * <em>Warning:</em> References to a Child become invalid after using
    * {@link SimpleCollector#remove} or {@link SimpleCollector#clear}.
    */
-  public static class Child {
+  public static class Child extends TouchedChild {
 
     /**
      * Executes runnable code (i.e. a Java 8 Lambda) and observes a duration of how long it took to run.
@@ -210,22 +447,43 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
     public static class Value {
       public final double sum;
       public final double[] buckets;
+      /**
+       * The upper bounds of the buckets, null if not known.
+       */
+      public final double[] upperBounds;
 
       public Value(double sum, double[] buckets) {
+        this(sum, buckets, null);
+      }
+
+      public Value(double sum, double[] buckets, double[] upperBounds) {
         this.sum = sum;
         this.buckets = buckets;
+        this.upperBounds = upperBounds;
       }
     }
 
-    private Child(double[] buckets) {
-      upperBounds = buckets;
+    private Child(double[] buckets, BucketSearch bucketSearch) {
+      this.bucketSearch = bucketSearch;
       cumulativeCounts = new DoubleAdder[buckets.length];
       for (int i = 0; i < buckets.length; ++i) {
         cumulativeCounts[i] = new DoubleAdder();
       }
+      sparseBuckets = null;
+      maxExportedBuckets = 0;
     }
-    private final double[] upperBounds;
+
+    private Child(SparseBuckets sparseBuckets, int maxExportedBuckets) {
+      this.sparseBuckets = sparseBuckets;
+      this.maxExportedBuckets = maxExportedBuckets;
+      bucketSearch = null;
+      cumulativeCounts = null;
+    }
+    private final BucketSearch bucketSearch;
     private final DoubleAdder[] cumulativeCounts;
+    // Only one of sparseBuckets and cumulativeCounts is set.
+    private final SparseBuckets sparseBuckets;
+    private final int maxExportedBuckets;
     private final DoubleAdder sum = new DoubleAdder();
 
 
@@ -233,12 +491,12 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
      * Observe the given amount.
      */
     public void observe(double amt) {
-      for (int i = 0; i < upperBounds.length; ++i) {
-        // The last bucket is +Inf, so we always increment.
-        if (amt <= upperBounds[i]) {
-          cumulativeCounts[i].add(1);
-          break;
-        }
+      touch();
+      if (sparseBuckets != null) {
+        sparseBuckets.observe(amt);
+      } else if (!Double.isNaN(amt)) {
+        // NaN isn't in any bucket.
+        cumulativeCounts[bucketSearch.indexOf(amt)].add(1);
       }
       sum.add(amt);
     }
@@ -256,13 +514,17 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
      * <em>Warning:</em> The definition of {@link Value} is subject to change.
      */
     public Value get() {
+      if (sparseBuckets != null) {
+        SparseBuckets.Snapshot snapshot = sparseBuckets.snapshot(maxExportedBuckets);
+        return new Value(sum.sum(), snapshot.cumulativeCounts, snapshot.upperBounds);
+      }
       double[] buckets = new double[cumulativeCounts.length];
       double acc = 0;
       for (int i = 0; i < cumulativeCounts.length; ++i) {
         acc += cumulativeCounts[i].sum();
         buckets[i] = acc;
       }
-      return new Value(sum.sum(), buckets);
+      return new Value(sum.sum(), buckets, bucketSearch.upperBounds.clone());
     }
   }
 
@@ -294,32 +556,129 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
 
   @Override
   public List<MetricFamilySamples> collect() {
+    return collect(Collections.<String>emptySet());
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect(Set<String> includedNames) {
+    expireIdleChildren();
+    boolean includeBuckets = isIncluded(includedNames, fullname + "_bucket");
+    boolean includeCount = isIncluded(includedNames, fullname + "_count");
+    boolean includeSum = isIncluded(includedNames, fullname + "_sum");
     List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+    if (!includeBuckets && !includeCount && !includeSum) {
+      return familySamplesList(Type.HISTOGRAM, samples, includedNames);
+    }
     for(Map.Entry<List<String>, Child> c: children.entrySet()) {
       Child.Value v = c.getValue().get();
-      List<String> labelNamesWithLe = new ArrayList<String>(labelNames);
-      labelNamesWithLe.add("le");
-      for (int i = 0; i < v.buckets.length; ++i) {
-        List<String> labelValuesWithLe = new ArrayList<String>(c.getKey());
-        labelValuesWithLe.add(doubleToGoString(buckets[i]));
-        samples.add(new MetricFamilySamples.Sample(fullname + "_bucket", labelNamesWithLe, labelValuesWithLe, v.buckets[i]));
+      if (includeBuckets) {
+        List<String> labelNamesWithLe = new ArrayList<String>(labelNames);
+        labelNamesWithLe.add("le");
+        for (int i = 0; i < v.buckets.length; ++i) {
+          List<String> labelValuesWithLe = new ArrayList<String>(c.getKey());
+          labelValuesWithLe.add(doubleToGoString(v.upperBounds[i]));
+          samples.add(new MetricFamilySamples.Sample(fullname + "_bucket", labelNamesWithLe, labelValuesWithLe, v.buckets[i]));
+        }
+      }
+      if (includeCount) {
+        samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, c.getKey(), v.buckets[v.buckets.length-1]));
+      }
+      if (includeSum) {
+        samples.add(new MetricFamilySamples.Sample(fullname + "_sum", labelNames, c.getKey(), v.sum));
+      }
+    }
+
+    return familySamplesList(Type.HISTOGRAM, samples, includedNames);
+  }
+
+  @Override
+  public void collect(Set<String> includedNames, SampleVisitor visitor) throws IOException {
+    expireIdleChildren();
+    String bucketName = fullname + "_bucket";
+    String countName = fullname + "_count";
+    String sumName = fullname + "_sum";
+    boolean includeBuckets = isIncluded(includedNames, bucketName);
+    boolean includeCount = isIncluded(includedNames, countName);
+    boolean includeSum = isIncluded(includedNames, sumName);
+    if (visitFamily(Type.HISTOGRAM, includeBuckets || includeCount || includeSum, includedNames, visitor)) {
+      for(Map.Entry<List<String>, Child> c: children.entrySet()) {
+        Child child = c.getValue();
+        double count;
+        if (child.sparseBuckets != null) {
+          Child.Value v = child.get();
+          if (includeBuckets) {
+            for (int i = 0; i < v.buckets.length; ++i) {
+              visitor.visitSample(bucketName, labelNames, c.getKey(), "le", doubleToGoString(v.upperBounds[i]),
+                  v.buckets[i]);
+            }
+          }
+          count = v.buckets[v.buckets.length - 1];
+        } else {
+          // Accumulates the buckets as it visits them, rather than taking a snapshot first.
+          String[] le = child.bucketSearch.leLabelValues;
+          double acc = 0;
+          for (int i = 0; i < child.cumulativeCounts.length; ++i) {
+            acc += child.cumulativeCounts[i].sum();
+            if (includeBuckets) {
+              visitor.visitSample(bucketName, labelNames, c.getKey(), "le", le[i], acc);
+            }
+          }
+          count = acc;
+        }
+        if (includeCount) {
+          visitor.visitSample(countName, labelNames, c.getKey(), null, null, count);
+        }
+        if (includeSum) {
+          visitor.visitSample(sumName, labelNames, c.getKey(), null, null, child.sum.sum());
+        }
       }
-      samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, c.getKey(), v.buckets[buckets.length-1]));
-      samples.add(new MetricFamilySamples.Sample(fullname + "_sum", labelNames, c.getKey(), v.sum));
     }
+    visitOtherFamilies(includedNames, visitor);
+  }
 
-    return familySamplesList(Type.HISTOGRAM, samples);
+  @Override
+  Double getSampleValue(String name, String[] labelNames, String[] labelValues) {
+    if (name.equals(fullname + "_bucket")) {
+      Child child = sampleChild(labelNames, labelValues, "le");
+      if (child == null) {
+        return null;
+      }
+      Child.Value v = child.get();
+      String le = labelValues[labelValues.length - 1];
+      for (int i = 0; i < v.buckets.length; ++i) {
+        if (doubleToGoString(v.upperBounds[i]).equals(le)) {
+          return v.buckets[i];
+        }
+      }
+      return null;
+    }
+    if (name.equals(fullname + "_count") || name.equals(fullname + "_sum")) {
+      Child child = sampleChild(labelNames, labelValues, null);
+      if (child == null) {
+        return null;
+      }
+      Child.Value v = child.get();
+      return name.equals(fullname + "_count") ? v.buckets[v.buckets.length - 1] : v.sum;
+    }
+    return super.getSampleValue(name, labelNames, labelValues);
   }
 
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.singletonList(
+    return describeList(
             new MetricFamilySamples(fullname, Type.HISTOGRAM, help, Collections.<MetricFamilySamples.Sample>emptyList()));
   }
 
+  /**
+   * The fixed buckets, null if using sparse buckets.
+   */
   double[] getBuckets() {
     return buckets;
   }
 
+  BucketSearch getBucketSearch() {
+    return bucketSearch;
+  }
+
 
 }
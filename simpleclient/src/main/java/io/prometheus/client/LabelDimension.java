@@ -0,0 +1,105 @@
+package io.prometheus.client;
+
+/**
+ * A label whose values come from a small closed set, either an enum or a bounded int range.
+ * <p>
+ * Each value has an offset in <code>[0, size())</code>, which {@link SimpleCollector} uses to keep
+ * children in a dense array. The exported label values are computed once up front.
+ */
+class LabelDimension {
+  final String labelName;
+  private final Class<?> enumClass;  // null for int ranges.
+  private final int min;
+  private final String[] values;
+
+  private LabelDimension(String labelName, Class<?> enumClass, int min, String[] values) {
+    this.labelName = labelName;
+    this.enumClass = enumClass;
+    this.min = min;
+    this.values = values;
+  }
+
+  /**
+   * Label values are the <code>toString()</code> of the enum constants.
+   */
+  static LabelDimension ofEnum(String labelName, Class<? extends Enum<?>> enumClass) {
+    Enum<?>[] constants = enumClass.getEnumConstants();
+    if (constants == null || constants.length == 0) {
+      throw new IllegalArgumentException("Enum " + enumClass.getName() + " has no constants.");
+    }
+    String[] values = new String[constants.length];
+    for (int i = 0; i < constants.length; i++) {
+      values[i] = constants[i].toString();
+    }
+    return new LabelDimension(labelName, enumClass, 0, values);
+  }
+
+  /**
+   * Label values are the decimal representation of the ints from min to max inclusive.
+   */
+  static LabelDimension ofIntRange(String labelName, int min, int max) {
+    if (max < min) {
+      throw new IllegalArgumentException("Label range cannot be empty: " + min + " > " + max);
+    }
+    long size = (long)max - min + 1;
+    if (size > SimpleCollector.MAX_INDEXED_CHILDREN) {
+      throw new IllegalArgumentException("Label range too large: " + min + " to " + max);
+    }
+    String[] values = new String[(int)size];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Integer.toString(min + i);
+    }
+    return new LabelDimension(labelName, null, min, values);
+  }
+
+  int size() {
+    return values.length;
+  }
+
+  String value(int offset) {
+    return values[offset];
+  }
+
+  /**
+   * The offset of an exported label value, or -1 if it isn't one of them.
+   */
+  int offset(String value) {
+    if (enumClass == null) {
+      long offset;
+      try {
+        offset = Integer.parseInt(value) - (long)min;
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+      // Such as "+1" or "01", which parse but aren't what's exported.
+      return offset >= 0 && offset < values.length && values[(int)offset].equals(value) ? (int)offset : -1;
+    }
+    for (int i = 0; i < values.length; i++) {
+      if (values[i].equals(value)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  int offset(Enum<?> value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Label cannot be null.");
+    }
+    if (value.getDeclaringClass() != enumClass) {
+      throw new IllegalArgumentException("Label " + labelName + " does not take values of " + value.getDeclaringClass().getName());
+    }
+    return value.ordinal();
+  }
+
+  int offset(int value) {
+    if (enumClass != null) {
+      throw new IllegalArgumentException("Label " + labelName + " does not take int values.");
+    }
+    int offset = value - min;
+    if (offset < 0 || offset >= values.length) {
+      throw new IllegalArgumentException("Label " + labelName + " value out of range: " + value);
+    }
+    return offset;
+  }
+}
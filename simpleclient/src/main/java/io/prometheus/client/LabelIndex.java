@@ -0,0 +1,253 @@
+package io.prometheus.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Index from label values to children, used by {@link SimpleCollector#labels}.
+ * <p>
+ * Lookups compare the label value strings directly, so a hit allocates nothing.
+ * The table is a chained hash table of immutable nodes: reads are lock-free, while
+ * writes must be serialised by the caller. Removal replaces the affected chain, and
+ * growing the table publishes a fresh array, so readers always see a consistent chain.
+ * <p>
+ * If tracking touches, lookups also flag the node they found, which {@link #sweep} uses to find
+ * idle children. The flag is only written when not yet set, so hits on busy children stay read-only.
+ */
+class LabelIndex<Child> {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private volatile AtomicReferenceArray<Node<Child>> table =
+      new AtomicReferenceArray<Node<Child>>(INITIAL_CAPACITY);
+  private int size;
+  private final boolean trackTouches;
+
+  LabelIndex(boolean trackTouches) {
+    this.trackTouches = trackTouches;
+  }
+
+  static final class Node<Child> {
+    final int hash;
+    final String[] labelValues;
+    final Child child;
+    final Node<Child> next;
+    // Never expired by sweep().
+    final boolean pinned;
+    volatile boolean touched = true;
+
+    Node(int hash, String[] labelValues, Child child, boolean pinned, Node<Child> next) {
+      this.hash = hash;
+      this.labelValues = labelValues;
+      this.child = child;
+      this.pinned = pinned;
+      this.next = next;
+    }
+
+    /**
+     * Copy with a different next node.
+     */
+    Node<Child> withNext(Node<Child> next) {
+      Node<Child> n = new Node<Child>(hash, labelValues, child, pinned, next);
+      n.touched = touched;
+      return n;
+    }
+  }
+
+  /**
+   * Same as {@link java.util.List#hashCode} of the label values.
+   */
+  static int hash(String[] labelValues) {
+    int h = 1;
+    for (String v : labelValues) {
+      h = 31 * h + v.hashCode();
+    }
+    return h;
+  }
+
+  static int hash(String v1) {
+    return 31 + v1.hashCode();
+  }
+
+  static int hash(String v1, String v2) {
+    return 31 * hash(v1) + v2.hashCode();
+  }
+
+  static int hash(String v1, String v2, String v3) {
+    return 31 * hash(v1, v2) + v3.hashCode();
+  }
+
+  private static int indexFor(int hash, int length) {
+    return (hash ^ (hash >>> 16)) & (length - 1);
+  }
+
+  private Node<Child> first(int hash) {
+    AtomicReferenceArray<Node<Child>> t = table;
+    return t.get(indexFor(hash, t.length()));
+  }
+
+  private Child found(Node<Child> n) {
+    if (trackTouches && !n.touched) {
+      n.touched = true;
+    }
+    return n.child;
+  }
+
+  Child get(int hash, String[] labelValues) {
+    for (Node<Child> n = first(hash); n != null; n = n.next) {
+      if (n.hash == hash && equals(n.labelValues, labelValues)) {
+        return found(n);
+      }
+    }
+    return null;
+  }
+
+  Child get(int hash, String v1) {
+    for (Node<Child> n = first(hash); n != null; n = n.next) {
+      String[] l = n.labelValues;
+      if (n.hash == hash && l.length == 1 && l[0].equals(v1)) {
+        return found(n);
+      }
+    }
+    return null;
+  }
+
+  Child get(int hash, String v1, String v2) {
+    for (Node<Child> n = first(hash); n != null; n = n.next) {
+      String[] l = n.labelValues;
+      if (n.hash == hash && l.length == 2 && l[0].equals(v1) && l[1].equals(v2)) {
+        return found(n);
+      }
+    }
+    return null;
+  }
+
+  Child get(int hash, String v1, String v2, String v3) {
+    for (Node<Child> n = first(hash); n != null; n = n.next) {
+      String[] l = n.labelValues;
+      if (n.hash == hash && l.length == 3 && l[0].equals(v1) && l[1].equals(v2) && l[2].equals(v3)) {
+        return found(n);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Add or replace the child for the given label values. Callers must hold the write lock.
+   */
+  void put(String[] labelValues, Child child) {
+    put(labelValues, child, false);
+  }
+
+  /**
+   * Add or replace the child for the given label values, pinned children are never returned by
+   * {@link #sweep}. Callers must hold the write lock.
+   */
+  void put(String[] labelValues, Child child, boolean pinned) {
+    int hash = hash(labelValues);
+    remove(hash, labelValues);
+    if (size + 1 > table.length() * 3 / 4) {
+      resize();
+    }
+    AtomicReferenceArray<Node<Child>> t = table;
+    int i = indexFor(hash, t.length());
+    t.set(i, new Node<Child>(hash, labelValues, child, pinned, t.get(i)));
+    size++;
+  }
+
+  /**
+   * Remove the child for the given label values. Callers must hold the write lock.
+   */
+  void remove(String[] labelValues) {
+    remove(hash(labelValues), labelValues);
+  }
+
+  private void remove(int hash, String[] labelValues) {
+    AtomicReferenceArray<Node<Child>> t = table;
+    int i = indexFor(hash, t.length());
+    Node<Child> head = t.get(i);
+    Node<Child> target = head;
+    while (target != null && !(target.hash == hash && equals(target.labelValues, labelValues))) {
+      target = target.next;
+    }
+    if (target == null) {
+      return;
+    }
+    // Nodes are immutable, so copy everything in front of the removed node.
+    Node<Child> rebuilt = target.next;
+    for (Node<Child> n = head; n != target; n = n.next) {
+      rebuilt = n.withNext(rebuilt);
+    }
+    t.set(i, rebuilt);
+    size--;
+  }
+
+  /**
+   * Remove all children. Callers must hold the write lock.
+   */
+  void clear() {
+    table = new AtomicReferenceArray<Node<Child>>(INITIAL_CAPACITY);
+    size = 0;
+  }
+
+  /**
+   * Flag the node for the given label values as touched, for lookups that don't go through this index.
+   */
+  void touch(String[] labelValues) {
+    int hash = hash(labelValues);
+    for (Node<Child> n = first(hash); n != null; n = n.next) {
+      if (n.hash == hash && equals(n.labelValues, labelValues)) {
+        n.touched = true;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Return the label values of unpinned children neither looked up nor updated since the previous sweep,
+   * and clear the touched flags of all others. Callers must hold the write lock.
+   */
+  List<String[]> sweep() {
+    List<String[]> idle = new ArrayList<String[]>();
+    AtomicReferenceArray<Node<Child>> t = table;
+    for (int i = 0; i < t.length(); i++) {
+      for (Node<Child> n = t.get(i); n != null; n = n.next) {
+        if (n.pinned) {
+          continue;
+        }
+        // Children kept by callers are only updated, not looked up.
+        boolean updated = n.child instanceof TouchedChild && ((TouchedChild) n.child).clearTouched();
+        if (n.touched) {
+          n.touched = false;
+        } else if (!updated) {
+          idle.add(n.labelValues);
+        }
+      }
+    }
+    return idle;
+  }
+
+  private void resize() {
+    AtomicReferenceArray<Node<Child>> old = table;
+    AtomicReferenceArray<Node<Child>> t = new AtomicReferenceArray<Node<Child>>(old.length() * 2);
+    for (int i = 0; i < old.length(); i++) {
+      for (Node<Child> n = old.get(i); n != null; n = n.next) {
+        int j = indexFor(n.hash, t.length());
+        t.set(j, n.withNext(t.get(j)));
+      }
+    }
+    table = t;
+  }
+
+  private static boolean equals(String[] a, String[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    for (int i = 0; i < a.length; i++) {
+      if (!a[i].equals(b[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,187 @@
+package io.prometheus.client;
+
+/**
+ * Quantiles with a relative error on the value, from counts in logarithmically sized buckets.
+ * <p>
+ * This is the DDSketch approach: bucket <code>i</code> counts values in <code>(gamma^(i-1), gamma^i]</code> with
+ * <code>gamma = (1 + relativeError) / (1 - relativeError)</code>, and a quantile is reported as the value in the
+ * middle of its bucket, which is within the relative error of any value in the bucket. Negative values are counted
+ * the same way by magnitude, and values too small to index in a zero bucket.
+ * <p>
+ * Each sign keeps at most {@link #MAX_BUCKETS} consecutive buckets, when the observed range grows beyond that the
+ * buckets closest to zero are merged. Memory is therefore bounded regardless of the number of observations, and the
+ * cost of an insert doesn't depend on the number of quantiles. Merging adds up the counts, so it is exact.
+ */
+class LogBucketQuantiles extends QuantileEstimator {
+  static final int MAX_BUCKETS = 2048;
+  // Smaller magnitudes go in the zero bucket, their logarithm would not be finite.
+  private static final double MIN_INDEXABLE = Double.MIN_NORMAL;
+
+  private final double relativeError;
+  private final double gamma;
+  private final double inverseLogGamma;
+  private final int maxIndex;
+  private final Buckets positive = new Buckets();
+  private final Buckets negative = new Buckets();
+  private long zeroCount;
+
+  LogBucketQuantiles(double relativeError) {
+    this.relativeError = relativeError;
+    gamma = (1 + relativeError) / (1 - relativeError);
+    inverseLogGamma = 1 / Math.log(gamma);
+    // Infinite values are counted in the bucket after the one for the largest double.
+    maxIndex = index(Double.MAX_VALUE) + 1;
+  }
+
+  /**
+   * Counts for a range of consecutive bucket indexes, growing as needed.
+   */
+  private static final class Buckets {
+    long[] counts = new long[0];
+    int minIndex;  // Index of counts[0].
+    int lowest;    // Lowest and highest index with a count, when total is not 0.
+    int highest;
+    long total;
+
+    void add(int index, long count) {
+      if (total == 0) {
+        ensureRange(index, index);
+        lowest = highest = index;
+      } else {
+        if (index < lowest) {
+          // Merge buckets that would not fit into the lowest one kept.
+          index = Math.max(index, highest - MAX_BUCKETS + 1);
+        }
+        if (index > highest) {
+          collapseBelow(index - MAX_BUCKETS + 1);
+        }
+        ensureRange(Math.min(index, lowest), Math.max(index, highest));
+        lowest = Math.min(index, lowest);
+        highest = Math.max(index, highest);
+      }
+      counts[index - minIndex] += count;
+      total += count;
+    }
+
+    long count(int index) {
+      return counts[index - minIndex];
+    }
+
+    private void collapseBelow(int newLowest) {
+      if (lowest >= newLowest) {
+        return;
+      }
+      long collapsed = 0;
+      for (int i = lowest; i < newLowest && i <= highest; i++) {
+        collapsed += counts[i - minIndex];
+        counts[i - minIndex] = 0;
+      }
+      if (newLowest > highest) {
+        // Everything collapses into the new lowest bucket, start over with just that one.
+        counts = new long[0];
+        ensureRange(newLowest, newLowest);
+        highest = newLowest;
+      }
+      counts[newLowest - minIndex] += collapsed;
+      lowest = newLowest;
+    }
+
+    private void ensureRange(int low, int high) {
+      if (counts.length > 0 && low >= minIndex && high < minIndex + counts.length) {
+        return;
+      }
+      // Leave some room on both sides, but never more than MAX_BUCKETS in total.
+      int needed = high - low + 1;
+      int length = Math.min(Math.max(needed * 2, 32), Math.max(needed, MAX_BUCKETS));
+      int newMinIndex = low - (length - needed) / 2;
+      long[] newCounts = new long[length];
+      if (total > 0 && counts.length > 0) {
+        System.arraycopy(counts, lowest - minIndex, newCounts, lowest - newMinIndex, highest - lowest + 1);
+      }
+      counts = newCounts;
+      minIndex = newMinIndex;
+    }
+  }
+
+  private int index(double magnitude) {
+    return (int) Math.ceil(Math.log(magnitude) * inverseLogGamma);
+  }
+
+  private double value(int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  @Override
+  synchronized void insert(double value) {
+    if (value >= MIN_INDEXABLE) {
+      positive.add(Math.min(index(value), maxIndex), 1);
+    } else if (value <= -MIN_INDEXABLE) {
+      negative.add(Math.min(index(-value), maxIndex), 1);
+    } else if (!Double.isNaN(value)) {
+      zeroCount++;
+    }
+  }
+
+  @Override
+  synchronized double get(double q) {
+    long count = negative.total + zeroCount + positive.total;
+    if (count == 0) {
+      return Double.NaN;
+    }
+    // Zero based rank of the requested value.
+    long rank = (long) (q * (count - 1));
+    long seen = 0;
+    if (rank < negative.total) {
+      // Most negative values first.
+      for (int i = negative.highest; i >= negative.lowest; i--) {
+        seen += negative.count(i);
+        if (seen > rank) {
+          return -value(i);
+        }
+      }
+    }
+    seen = negative.total + zeroCount;
+    if (rank < seen) {
+      return 0;
+    }
+    for (int i = positive.lowest; i < positive.highest; i++) {
+      seen += positive.count(i);
+      if (seen > rank) {
+        return value(i);
+      }
+    }
+    return value(positive.highest);
+  }
+
+  @Override
+  LogBucketQuantiles newEstimator() {
+    return new LogBucketQuantiles(relativeError);
+  }
+
+  @Override
+  LogBucketQuantiles merge(QuantileEstimator[] parts) {
+    LogBucketQuantiles result = new LogBucketQuantiles(relativeError);
+    for (QuantileEstimator p : parts) {
+      LogBucketQuantiles part = (LogBucketQuantiles) p;
+      synchronized (part) {
+        addAll(result.positive, part.positive);
+        addAll(result.negative, part.negative);
+        result.zeroCount += part.zeroCount;
+      }
+    }
+    return result;
+  }
+
+  private static void addAll(Buckets to, Buckets from) {
+    if (from.total == 0) {
+      return;
+    }
+    // Highest first, so that collapsing happens at most once.
+    for (int i = from.highest; i >= from.lowest; i--) {
+      long c = from.count(i);
+      if (c != 0) {
+        to.add(i, c);
+      }
+    }
+  }
+}
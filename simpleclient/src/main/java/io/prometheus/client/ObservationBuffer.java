@@ -0,0 +1,176 @@
+package io.prometheus.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free buffer of observations, drained by a single thread at a time.
+ * <p>
+ * Writers append to one of several stripes, picked by thread id, without taking any lock.
+ * A full stripe is swapped for an empty one and queued for {@link #drain}, which also takes the
+ * remaining stripes. Writers never wait for each other or for a drain, and never call {@link #consume}.
+ * Once more than {@link #MAX_QUEUED} buffers are queued because nothing drained them for a while, a shared
+ * background thread drains them. If writers outpace it until {@link #MAX_RETAINED} buffers are queued,
+ * the oldest ones are discarded to bound the memory held, so the most recent observations remain.
+ * Observations are passed to {@link #consume} with the drain lock held, so it is never called concurrently.
+ */
+abstract class ObservationBuffer {
+  static final int BUFFER_SIZE = 128;
+  static final int MAX_QUEUED = 64;
+  static final int MAX_RETAINED = 2 * MAX_QUEUED;
+  // Claim counters are set to this once a buffer is swapped out, so late writers retry with a fresh buffer.
+  private static final int CLOSED = Integer.MAX_VALUE / 2;
+  private static final int STRIPES = stripes();
+
+  private final AtomicReferenceArray<Buffer> stripes = new AtomicReferenceArray<Buffer>(STRIPES);
+  private final ConcurrentLinkedQueue<Buffer> full = new ConcurrentLinkedQueue<Buffer>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final AtomicLong dropped = new AtomicLong();
+  private final ReentrantLock drainLock = new ReentrantLock();
+
+  private static int stripes() {
+    int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+    int result = 1;
+    while (result < cpus) {
+      result <<= 1;
+    }
+    return result;
+  }
+
+  private static final class Buffer {
+    final double[] values = new double[BUFFER_SIZE];
+    final AtomicInteger claimed = new AtomicInteger();
+    final AtomicInteger written = new AtomicInteger();
+    // Number of valid values, set when closed.
+    volatile int size;
+
+    void close() {
+      size = Math.min(claimed.getAndSet(CLOSED), BUFFER_SIZE);
+    }
+  }
+
+  /**
+   * Handle the first {@code count} observations in {@code values}, called with the drain lock held.
+   */
+  abstract void consume(double[] values, int count);
+
+  void add(double value) {
+    int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+    while (true) {
+      Buffer b = stripes.get(stripe);
+      if (b == null) {
+        stripes.compareAndSet(stripe, null, new Buffer());
+        continue;
+      }
+      int i = b.claimed.getAndIncrement();
+      if (i < BUFFER_SIZE) {
+        b.values[i] = value;
+        b.written.incrementAndGet();
+        return;
+      }
+      // Full, or being drained. Whoever swaps it out queues it.
+      if (stripes.compareAndSet(stripe, b, new Buffer())) {
+        b.close();
+        full.add(b);
+        int n = queued.incrementAndGet();
+        if (n > MAX_RETAINED) {
+          Buffer oldest = full.poll();
+          if (oldest != null) {
+            queued.decrementAndGet();
+            dropped.addAndGet(oldest.size);
+          }
+        }
+        if (n > MAX_QUEUED && scheduled.compareAndSet(false, true)) {
+          Drainer.INSTANCE.schedule(this);
+        }
+      }
+    }
+  }
+
+  /**
+   * Number of observations discarded because more than {@link #MAX_RETAINED} buffers were queued.
+   */
+  long dropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Pass all observations buffered so far to {@link #consume}.
+   */
+  void drain() {
+    drainLock.lock();
+    try {
+      for (int i = 0; i < STRIPES; i++) {
+        Buffer b = stripes.get(i);
+        // Empty stripes are left for the writers to reuse, others are recreated on the next write.
+        if (b != null && b.claimed.get() > 0 && stripes.compareAndSet(i, b, null)) {
+          b.close();
+          full.add(b);
+          queued.incrementAndGet();
+        }
+      }
+      // Only what is queued now, or writers that keep up with the drain would keep it going forever.
+      drainFull(queued.get());
+    } finally {
+      drainLock.unlock();
+    }
+  }
+
+  private void drainFull(int max) {
+    Buffer b;
+    while (max-- > 0 && (b = full.poll()) != null) {
+      queued.decrementAndGet();
+      int size = b.size;
+      // Writers that claimed a slot before the buffer was closed may still be writing to it.
+      while (b.written.get() < size) {
+        Thread.yield();
+      }
+      consume(b.values, size);
+    }
+  }
+
+  /**
+   * Drains the buffers that writers scheduled, on a single daemon thread shared by all buffers.
+   */
+  private static final class Drainer extends Thread {
+    static final Drainer INSTANCE = new Drainer();
+
+    private final ConcurrentLinkedQueue<ObservationBuffer> pending = new ConcurrentLinkedQueue<ObservationBuffer>();
+
+    private Drainer() {
+      super("prometheus-observation-drainer");
+      setDaemon(true);
+      start();
+    }
+
+    void schedule(ObservationBuffer buffer) {
+      pending.add(buffer);
+      LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        ObservationBuffer buffer = pending.poll();
+        if (buffer == null) {
+          LockSupport.park(this);
+          continue;
+        }
+        // Cleared first, so writers that queue more during the drain schedule it again.
+        buffer.scheduled.set(false);
+        buffer.drainLock.lock();
+        try {
+          buffer.drainFull(buffer.queued.get());
+        } finally {
+          buffer.drainLock.unlock();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package io.prometheus.client;
+
+/**
+ * Estimates quantiles of a stream of observations, for {@link TimeWindowQuantiles}.
+ * <p>
+ * Estimators created from one another with {@link #newEstimator} have the same settings, and can be merged
+ * to get the quantiles over the union of their streams.
+ */
+abstract class QuantileEstimator {
+
+  abstract void insert(double value);
+
+  /**
+   * The estimated value at quantile q, or NaN if nothing was inserted.
+   */
+  abstract double get(double q);
+
+  /**
+   * A new empty estimator with the same settings as this one.
+   */
+  abstract QuantileEstimator newEstimator();
+
+  /**
+   * A new estimator with the contents of all parts, which were created by {@link #newEstimator} of this one.
+   * The parts are not modified.
+   */
+  abstract QuantileEstimator merge(QuantileEstimator[] parts);
+}
@@ -1,10 +1,18 @@
 package io.prometheus.client;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Common functionality for {@link Gauge}, {@link Counter}, {@link Summary} and {@link Histogram}.
@@ -32,6 +40,34 @@ import java.util.List;
  * <p>
  * {@link #remove} and {@link #clear} can be used to remove children.
  * <p>
+ * To protect against label values with unbounded cardinality, such as user ids ending up in a label,
+ * {@link SimpleCollector.Builder#maxChildren maxChildren} limits the number of children.
+ * Once reached, new label values get the child for {@link SimpleCollector.Builder#overflowLabelValues overflowLabelValues},
+ * or else a child that isn't exported. These are counted in <code>&lt;name&gt;_children_rejected_total</code>.
+ * <p>
+ * For label values that are only used for a while, such as pod names or connection ids,
+ * {@link SimpleCollector.Builder#expireIdleChildrenAfterSeconds expireIdleChildrenAfterSeconds} removes
+ * children that were neither looked up with {@link #labels} nor updated within that time.
+ * <p>
+ * If every label takes its values from an enum or a small int range, declare this with
+ * {@link SimpleCollector.Builder#enumLabel enumLabel} and {@link SimpleCollector.Builder#intLabel intLabel}.
+ * Children are then also kept in an array, and the {@link #labels(Enum)} and {@link #labels(int)} family
+ * of methods find them without hashing or comparing strings:
+ * <pre>
+ * {@code
+ *   static final Counter requests = Counter.build()
+ *       .name("requests_total").help("Total requests.")
+ *       .labelNames("method", "code")
+ *       .enumLabel("method", HttpMethod.class)
+ *       .intLabel("code", 100, 599)
+ *       .register();
+ *
+ *   requests.labels(HttpMethod.GET, 200).inc();
+ * }
+ * </pre>
+ * The exported label values are the enum's <code>toString()</code> and the decimal int,
+ * so <code>requests.labels("GET", "200")</code> returns the same Child.
+ * <p>
  * <em>Warning #1:</em> Metrics that don't always export something are difficult to monitor, if you know in advance
  * what labels will be in use you should initialise them be calling {@link #labels}.
  * This is done for you for metrics with no labels.
@@ -51,7 +87,31 @@ public abstract class SimpleCollector<Child> extends Collector {
   protected final String help;
   protected final List<String> labelNames;
 
+  // Keys are CachingLabelValues, so exporters can keep their serialized labels for as long as the child exists.
   protected final ConcurrentMap<List<String>, Child> children = new ConcurrentHashMap<List<String>, Child>();
+  // Allocation-free lookups for labels(), kept in sync with children. Also used as the lock for updates.
+  private final LabelIndex<Child> labelIndex;
+
+  /**
+   * Maximum number of label value combinations of collectors using {@link Builder#enumLabel}
+   * and {@link Builder#intLabel}.
+   */
+  static final int MAX_INDEXED_CHILDREN = 1 << 14;
+  // Set if all labels have a LabelDimension, then children are also kept in indexedChildren.
+  private final LabelDimension[] labelDimensions;
+  private final AtomicReferenceArray<Child> indexedChildren;
+  // Limit on the number of children, not counting the overflow child. 0 if unlimited.
+  private final int maxChildren;
+  private final String[] overflowLabelValues;  // null to drop observations beyond the limit.
+  private final int overflowHash;
+  private volatile int childCount;
+  private volatile Child droppedChild;
+  private final DoubleAdder rejectedChildren = new DoubleAdder();
+  // Children neither looked up nor updated for this long are removed by collect(), 0 if they never expire.
+  private final long idleChildTtlMillis;
+  private volatile long lastSweepMillis;
+  // Touched flags of indexedChildren, as lookups by index bypass labelIndex. Null unless expiring children.
+  private final AtomicIntegerArray indexedTouched;
   protected Child noLabelsChild;
 
   /**
@@ -68,13 +128,287 @@ public abstract class SimpleCollector<Child> extends Collector {
         throw new IllegalArgumentException("Label cannot be null.");
       }
     }
-    List<String> key = Arrays.asList(labelValues);
-    Child c = children.get(key);
+    Child c = labelIndex.get(LabelIndex.hash(labelValues), labelValues);
+    if (c != null) {
+      return c;
+    }
+    return addChild(labelValues.clone());
+  }
+
+  /**
+   * Return the Child with the given label, creating it if needed.
+   * <p>
+   * Equivalent to {@link #labels(String...)}, but doesn't allocate when the Child already exists.
+   */
+  public Child labels(String labelValue1) {
+    checkLabelCount(1);
+    checkLabelValue(labelValue1);
+    Child c = labelIndex.get(LabelIndex.hash(labelValue1), labelValue1);
+    if (c != null) {
+      return c;
+    }
+    return addChild(new String[]{labelValue1});
+  }
+
+  /**
+   * Return the Child with the given labels, creating it if needed.
+   * <p>
+   * Equivalent to {@link #labels(String...)}, but doesn't allocate when the Child already exists.
+   */
+  public Child labels(String labelValue1, String labelValue2) {
+    checkLabelCount(2);
+    checkLabelValue(labelValue1);
+    checkLabelValue(labelValue2);
+    Child c = labelIndex.get(LabelIndex.hash(labelValue1, labelValue2), labelValue1, labelValue2);
+    if (c != null) {
+      return c;
+    }
+    return addChild(new String[]{labelValue1, labelValue2});
+  }
+
+  /**
+   * Return the Child with the given labels, creating it if needed.
+   * <p>
+   * Equivalent to {@link #labels(String...)}, but doesn't allocate when the Child already exists.
+   */
+  public Child labels(String labelValue1, String labelValue2, String labelValue3) {
+    checkLabelCount(3);
+    checkLabelValue(labelValue1);
+    checkLabelValue(labelValue2);
+    checkLabelValue(labelValue3);
+    Child c = labelIndex.get(LabelIndex.hash(labelValue1, labelValue2, labelValue3),
+        labelValue1, labelValue2, labelValue3);
+    if (c != null) {
+      return c;
+    }
+    return addChild(new String[]{labelValue1, labelValue2, labelValue3});
+  }
+
+  /**
+   * Return the Child with the given label, creating it if needed.
+   * <p>
+   * The label must have been declared with {@link Builder#enumLabel}.
+   */
+  public Child labels(Enum<?> labelValue1) {
+    checkIndexed(1);
+    return indexedChild(labelDimensions[0].offset(labelValue1));
+  }
+
+  /**
+   * Return the Child with the given label, creating it if needed.
+   * <p>
+   * The label must have been declared with {@link Builder#intLabel}.
+   */
+  public Child labels(int labelValue1) {
+    checkIndexed(1);
+    return indexedChild(labelDimensions[0].offset(labelValue1));
+  }
+
+  /**
+   * Return the Child with the given labels, creating it if needed.
+   * <p>
+   * The labels must have been declared with {@link Builder#enumLabel}.
+   */
+  public Child labels(Enum<?> labelValue1, Enum<?> labelValue2) {
+    checkIndexed(2);
+    return indexedChild(labelDimensions[0].offset(labelValue1) * labelDimensions[1].size()
+        + labelDimensions[1].offset(labelValue2));
+  }
+
+  /**
+   * Return the Child with the given labels, creating it if needed.
+   * <p>
+   * The labels must have been declared with {@link Builder#enumLabel} and {@link Builder#intLabel}.
+   */
+  public Child labels(Enum<?> labelValue1, int labelValue2) {
+    checkIndexed(2);
+    return indexedChild(labelDimensions[0].offset(labelValue1) * labelDimensions[1].size()
+        + labelDimensions[1].offset(labelValue2));
+  }
+
+  /**
+   * Return the Child with the given labels, creating it if needed.
+   * <p>
+   * The labels must have been declared with {@link Builder#intLabel} and {@link Builder#enumLabel}.
+   */
+  public Child labels(int labelValue1, Enum<?> labelValue2) {
+    checkIndexed(2);
+    return indexedChild(labelDimensions[0].offset(labelValue1) * labelDimensions[1].size()
+        + labelDimensions[1].offset(labelValue2));
+  }
+
+  /**
+   * Return the Child with the given labels, creating it if needed.
+   * <p>
+   * The labels must have been declared with {@link Builder#intLabel}.
+   */
+  public Child labels(int labelValue1, int labelValue2) {
+    checkIndexed(2);
+    return indexedChild(labelDimensions[0].offset(labelValue1) * labelDimensions[1].size()
+        + labelDimensions[1].offset(labelValue2));
+  }
+
+  private void checkIndexed(int count) {
+    checkLabelCount(count);
+    if (indexedChildren == null) {
+      throw new IllegalArgumentException("Labels must be declared with enumLabel or intLabel.");
+    }
+  }
+
+  private Child indexedChild(int index) {
+    Child c = indexedChildren.get(index);
     if (c != null) {
+      if (indexedTouched != null && indexedTouched.get(index) == 0) {
+        indexedTouched.set(index, 1);
+      }
+      return c;
+    }
+    if (maxChildren > 0 && childCount >= maxChildren) {
+      // Every child has its slot, so these label values have none yet and can't get one now.
+      // Checked again, as they may have been added since.
+      c = indexedChildren.get(index);
+      return c != null ? c : rejectChild();
+    }
+    return addChild(indexedLabelValues(index));
+  }
+
+  /**
+   * Index in indexedChildren of the given label values, or -1 if they have none.
+   */
+  private int indexOf(String[] labelValues) {
+    int index = 0;
+    for (int i = 0; i < labelDimensions.length; i++) {
+      int offset = labelDimensions[i].offset(labelValues[i]);
+      if (offset < 0) {
+        return -1;
+      }
+      index = index * labelDimensions[i].size() + offset;
+    }
+    return index;
+  }
+
+  /**
+   * Keep the child for the given label values in indexedChildren too, if they have a slot.
+   * Callers must hold the write lock.
+   */
+  private void setIndexedChild(String[] labelValues, Child child) {
+    if (indexedChildren == null || !isValidLabelValues(labelValues)) {
+      return;
+    }
+    int index = indexOf(labelValues);
+    if (index >= 0) {
+      indexedChildren.set(index, child);
+    }
+  }
+
+  private String[] indexedLabelValues(int index) {
+    String[] labelValues = new String[labelDimensions.length];
+    int rest = index;
+    for (int i = labelDimensions.length - 1; i >= 0; i--) {
+      labelValues[i] = labelDimensions[i].value(rest % labelDimensions[i].size());
+      rest /= labelDimensions[i].size();
+    }
+    return labelValues;
+  }
+
+  /**
+   * Point all slots of indexedChildren holding oldChild to newChild. Callers must hold the write lock.
+   */
+  private void replaceIndexedChild(Child oldChild, Child newChild) {
+    if (indexedChildren == null || oldChild == null) {
+      return;
+    }
+    for (int i = 0; i < indexedChildren.length(); i++) {
+      if (indexedChildren.get(i) == oldChild) {
+        indexedChildren.set(i, newChild);
+      }
+    }
+  }
+
+  private void checkLabelCount(int count) {
+    if (count != labelNames.size()) {
+      throw new IllegalArgumentException("Incorrect number of labels.");
+    }
+  }
+
+  private static void checkLabelValue(String labelValue) {
+    if (labelValue == null) {
+      throw new IllegalArgumentException("Label cannot be null.");
+    }
+  }
+
+  /**
+   * Slow path of {@link #labels}, the label values must already have been validated
+   * and must not be modified afterwards.
+   */
+  private Child addChild(String[] labelValues) {
+    if (maxChildren > 0 && childCount >= maxChildren) {
+      // Checked again without the lock, as the labels may have been added since the caller looked.
+      Child c = labelIndex.get(LabelIndex.hash(labelValues), labelValues);
+      return c != null ? c : rejectChild();
+    }
+    synchronized (labelIndex) {
+      Child c = children.get(Arrays.asList(labelValues));
+      if (c == null) {
+        if (maxChildren > 0 && childCount >= maxChildren) {
+          return rejectChild();
+        }
+        c = newChild();
+        children.put(new CachingLabelValues(labelValues), c);
+        updateChildCount();
+      }
+      labelIndex.put(labelValues, c);
+      setIndexedChild(labelValues, c);
       return c;
     }
-    children.putIfAbsent(key, newChild());
-    return children.get(key);
+  }
+
+  /**
+   * The child for label values beyond maxChildren.
+   */
+  private Child rejectChild() {
+    rejectedChildren.add(1);
+    if (overflowLabelValues == null) {
+      Child c = droppedChild;
+      if (c == null) {
+        synchronized (labelIndex) {
+          if (droppedChild == null) {
+            droppedChild = newChild();
+          }
+          c = droppedChild;
+        }
+      }
+      return c;
+    }
+    Child c = labelIndex.get(overflowHash, overflowLabelValues);
+    if (c != null) {
+      return c;
+    }
+    synchronized (labelIndex) {
+      // Not subject to the limit.
+      c = children.get(Arrays.asList(overflowLabelValues));
+      if (c == null) {
+        c = newChild();
+        children.put(new CachingLabelValues(overflowLabelValues), c);
+      }
+      labelIndex.put(overflowLabelValues, c);
+      setIndexedChild(overflowLabelValues, c);
+      return c;
+    }
+  }
+
+  /**
+   * Callers must hold the write lock.
+   */
+  private void updateChildCount() {
+    if (maxChildren == 0) {
+      return;
+    }
+    int count = children.size();
+    if (overflowLabelValues != null && children.containsKey(Arrays.asList(overflowLabelValues))) {
+      count--;
+    }
+    childCount = count;
   }
 
   /**
@@ -83,7 +417,13 @@ public abstract class SimpleCollector<Child> extends Collector {
    * Any references to the Child are invalidated.
    */
   public void remove(String... labelValues) {
-    children.remove(Arrays.asList(labelValues));
+    synchronized (labelIndex) {
+      replaceIndexedChild(children.remove(Arrays.asList(labelValues)), null);
+      if (isValidLabelValues(labelValues)) {
+        labelIndex.remove(labelValues);
+      }
+      updateChildCount();
+    }
     initializeNoLabelsChild();
   }
   
@@ -93,9 +433,30 @@ public abstract class SimpleCollector<Child> extends Collector {
    * Any references to any children are invalidated.
    */
   public void clear() {
-    children.clear();
+    synchronized (labelIndex) {
+      children.clear();
+      labelIndex.clear();
+      if (indexedChildren != null) {
+        for (int i = 0; i < indexedChildren.length(); i++) {
+          indexedChildren.set(i, null);
+        }
+      }
+      updateChildCount();
+    }
     initializeNoLabelsChild();
   }
+
+  private boolean isValidLabelValues(String[] labelValues) {
+    if (labelValues.length != labelNames.size()) {
+      return false;
+    }
+    for (String label: labelValues) {
+      if (label == null) {
+        return false;
+      }
+    }
+    return true;
+  }
   
   /**
    * Initialize the child with no labels.
@@ -134,22 +495,165 @@ public abstract class SimpleCollector<Child> extends Collector {
     if (labelValues.length != labelNames.size()) {
       throw new IllegalArgumentException("Incorrect number of labels.");
     }
-    children.put(Arrays.asList(labelValues), child);
+    String[] key = labelValues.clone();
+    synchronized (labelIndex) {
+      replaceIndexedChild(children.put(new CachingLabelValues(key), child), child);
+      if (isValidLabelValues(key)) {
+        // Callbacks are never expired.
+        labelIndex.put(key, child, true);
+      }
+      setIndexedChild(key, child);
+      updateChildCount();
+    }
     return (T)this;
   }
 
+  /**
+   * Remove children that were neither looked up nor updated since the previous sweep, if that was
+   * at least the idle child time to live ago. Called at the start of collect().
+   * <p>
+   * So a child is removed after between one and two times to live without use, or later if there
+   * was no scrape in the meantime.
+   */
+  protected void expireIdleChildren() {
+    if (idleChildTtlMillis != 0) {
+      expireIdleChildren(System.currentTimeMillis());
+    }
+  }
+
+  void expireIdleChildren(long now) {
+    if (now - lastSweepMillis < idleChildTtlMillis) {
+      return;
+    }
+    synchronized (labelIndex) {
+      if (now - lastSweepMillis < idleChildTtlMillis) {
+        return;
+      }
+      lastSweepMillis = now;
+      if (indexedTouched != null) {
+        for (int i = 0; i < indexedTouched.length(); i++) {
+          if (indexedTouched.get(i) != 0) {
+            indexedTouched.set(i, 0);
+            labelIndex.touch(indexedLabelValues(i));
+          }
+        }
+      }
+      for (String[] labelValues : labelIndex.sweep()) {
+        replaceIndexedChild(children.remove(Arrays.asList(labelValues)), null);
+        labelIndex.remove(labelValues);
+      }
+      updateChildCount();
+    }
+  }
+
   /**
    * Return a new child, workaround for Java generics limitations.
    */
   protected abstract Child newChild();
 
+  /**
+   * The value of a sample this collector provides, or null if there is no such sample.
+   * <p>
+   * Subclasses read their own samples directly, this collects the ones they don't.
+   */
+  Double getSampleValue(String name, String[] labelNames, String[] labelValues) {
+    for (MetricFamilySamples mfs : collect(Collections.singleton(name))) {
+      for (MetricFamilySamples.Sample sample : mfs.samples) {
+        if (sample.name.equals(name)
+            && Arrays.equals(sample.labelNames.toArray(), labelNames)
+            && Arrays.equals(sample.labelValues.toArray(), labelValues)) {
+          return sample.value;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The existing child a sample with the given labels belongs to, or null.
+   * <p>
+   * The sample has this collector's labels followed by the extra label if it isn't null, as for a
+   * histogram's le label.
+   */
+  Child sampleChild(String[] sampleLabelNames, String[] sampleLabelValues, String extraLabelName) {
+    int n = labelNames.size();
+    int expected = extraLabelName == null ? n : n + 1;
+    if (sampleLabelNames.length != expected || sampleLabelValues.length != expected) {
+      return null;
+    }
+    for (int i = 0; i < n; i++) {
+      if (!labelNames.get(i).equals(sampleLabelNames[i])) {
+        return null;
+      }
+    }
+    if (extraLabelName != null && !extraLabelName.equals(sampleLabelNames[n])) {
+      return null;
+    }
+    expireIdleChildren();
+    return children.get(Arrays.asList(sampleLabelValues).subList(0, n));
+  }
+
   protected List<MetricFamilySamples> familySamplesList(Collector.Type type, List<MetricFamilySamples.Sample> samples) {
-    MetricFamilySamples mfs = new MetricFamilySamples(fullname, type, help, samples);
-    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(1);
+    return familySamplesList(type, samples, Collections.<String>emptySet());
+  }
+
+  /**
+   * The result of {@link #collect(Set)} for a collector with the given samples, which are already filtered.
+   */
+  protected List<MetricFamilySamples> familySamplesList(Collector.Type type, List<MetricFamilySamples.Sample> samples,
+                                                        Set<String> includedNames) {
+    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(maxChildren > 0 ? 2 : 1);
+    if (includedNames.isEmpty() || !samples.isEmpty()) {
+      mfsList.add(new MetricFamilySamples(fullname, type, help, samples));
+    }
+    if (maxChildren > 0 && isIncluded(includedNames, fullname + "_children_rejected_total")) {
+      mfsList.add(rejectedChildrenFamily(rejectedChildren.sum()));
+    }
+    return mfsList;
+  }
+
+  /**
+   * Starts this collector's family in {@link #collect(Set, SampleVisitor)}, returning false if it's left out.
+   * <p>
+   * As with {@link #familySamplesList}, a filtered family is left out unless it has included samples.
+   */
+  boolean visitFamily(Collector.Type type, boolean anyIncluded, Set<String> includedNames, SampleVisitor visitor)
+      throws IOException {
+    if (!anyIncluded || (!includedNames.isEmpty() && children.isEmpty())) {
+      return false;
+    }
+    visitor.visitFamily(fullname, type, help);
+    return true;
+  }
+
+  /**
+   * Visits the families that follow this collector's own in {@link #collect(Set, SampleVisitor)}.
+   */
+  void visitOtherFamilies(Set<String> includedNames, SampleVisitor visitor) throws IOException {
+    if (maxChildren > 0 && isIncluded(includedNames, fullname + "_children_rejected_total")) {
+      Collector.visit(Collections.<MetricFamilySamples>singletonList(rejectedChildrenFamily(rejectedChildren.sum())),
+          visitor);
+    }
+  }
+
+  /**
+   * The result of {@link Describable#describe} for a collector whose samples are in the given family.
+   */
+  protected List<MetricFamilySamples> describeList(MetricFamilySamples mfs) {
+    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(maxChildren > 0 ? 2 : 1);
     mfsList.add(mfs);
+    if (maxChildren > 0) {
+      mfsList.add(rejectedChildrenFamily(0));
+    }
     return mfsList;
   }
 
+  private CounterMetricFamily rejectedChildrenFamily(double rejected) {
+    return new CounterMetricFamily(fullname + "_children_rejected_total",
+        "Label values of " + fullname + " not given their own child, as it reached its maximum number of children.",
+        rejected);
+  }
+
   protected SimpleCollector(Builder b) {
     if (b.name.isEmpty()) throw new IllegalStateException("Name hasn't been set.");
     String name = b.name;
@@ -169,6 +673,52 @@ public abstract class SimpleCollector<Child> extends Collector {
       checkMetricLabelName(n);
     }
 
+    // The raw Builder erases the map's type.
+    @SuppressWarnings("unchecked")
+    Map<String, LabelDimension> dimensions = b.labelDimensions;
+    for (String n: dimensions.keySet()) {
+      if (!labelNames.contains(n)) {
+        throw new IllegalStateException("Label " + n + " is not one of the labelNames.");
+      }
+    }
+    if (!labelNames.isEmpty() && dimensions.size() == labelNames.size()) {
+      labelDimensions = new LabelDimension[labelNames.size()];
+      long size = 1;
+      for (int i = 0; i < labelDimensions.length; i++) {
+        labelDimensions[i] = dimensions.get(labelNames.get(i));
+        size *= labelDimensions[i].size();
+        if (size > MAX_INDEXED_CHILDREN) {
+          throw new IllegalStateException("Too many combinations of enum and int label values, maximum is " + MAX_INDEXED_CHILDREN);
+        }
+      }
+      indexedChildren = new AtomicReferenceArray<Child>((int)size);
+    } else {
+      labelDimensions = null;
+      indexedChildren = null;
+    }
+
+    if (b.overflowLabelValues != null) {
+      if (b.overflowLabelValues.length != labelNames.size()) {
+        throw new IllegalStateException("Incorrect number of overflowLabelValues.");
+      }
+      for (String v : b.overflowLabelValues) {
+        if (v == null) {
+          throw new IllegalStateException("overflowLabelValues cannot be null.");
+        }
+      }
+      overflowLabelValues = b.overflowLabelValues.clone();
+      overflowHash = LabelIndex.hash(overflowLabelValues);
+    } else {
+      overflowLabelValues = null;
+      overflowHash = 0;
+    }
+    maxChildren = b.maxChildren;
+    // Children of metrics without labels are always in use.
+    idleChildTtlMillis = labelNames.isEmpty() ? 0 : b.idleChildTtlMillis;
+    labelIndex = new LabelIndex<Child>(idleChildTtlMillis > 0);
+    lastSweepMillis = System.currentTimeMillis();
+    indexedTouched = idleChildTtlMillis > 0 && indexedChildren != null ? new AtomicIntegerArray(indexedChildren.length()) : null;
+
     if (!b.dontInitializeNoLabelsChild) {
       initializeNoLabelsChild();
     }
@@ -184,6 +734,10 @@ public abstract class SimpleCollector<Child> extends Collector {
     String fullname = "";
     String help = "";
     String[] labelNames = new String[]{};
+    Map<String, LabelDimension> labelDimensions = new HashMap<String, LabelDimension>();
+    int maxChildren;
+    String[] overflowLabelValues;
+    long idleChildTtlMillis;
     // Some metrics require additional setup before the initialization can be done.
     boolean dontInitializeNoLabelsChild;
 
@@ -222,6 +776,71 @@ public abstract class SimpleCollector<Child> extends Collector {
       this.labelNames = labelNames;
       return (B)this;
     }
+    /**
+     * Declare that the values of a label are the constants of an enum. Optional.
+     * <p>
+     * The label must also be passed to {@link #labelNames}, its values are exported
+     * as the <code>toString()</code> of the constants.
+     * If all labels are declared like this, {@link SimpleCollector#labels(Enum)} and friends are available.
+     */
+    public B enumLabel(String labelName, Class<? extends Enum<?>> enumClass) {
+      labelDimensions.put(labelName, LabelDimension.ofEnum(labelName, enumClass));
+      return (B)this;
+    }
+    /**
+     * Declare that the values of a label are the ints from min to max, inclusive. Optional.
+     * <p>
+     * The label must also be passed to {@link #labelNames}.
+     * If all labels are declared like this, {@link SimpleCollector#labels(int)} and friends are available.
+     */
+    public B intLabel(String labelName, int min, int max) {
+      labelDimensions.put(labelName, LabelDimension.ofIntRange(labelName, min, max));
+      return (B)this;
+    }
+
+    /**
+     * Set the maximum number of children. Optional, defaults to unlimited.
+     * <p>
+     * Once reached, {@link SimpleCollector#labels} with new label values returns the child for
+     * {@link #overflowLabelValues} if set, or else a child that isn't exported so what is recorded
+     * with it is dropped. Removing children makes room for new ones.
+     * Each such call is counted in the <code>&lt;name&gt;_children_rejected_total</code> counter
+     * exported alongside the metric.
+     */
+    public B maxChildren(int maxChildren) {
+      if (maxChildren <= 0) {
+        throw new IllegalArgumentException("maxChildren cannot be " + maxChildren);
+      }
+      this.maxChildren = maxChildren;
+      return (B)this;
+    }
+    /**
+     * Set the label values of the child used for new label values once there are {@link #maxChildren} children.
+     * Optional, by default what is recorded for them is dropped.
+     * <p>
+     * This child doesn't count towards the limit.
+     */
+    public B overflowLabelValues(String... overflowLabelValues) {
+      this.overflowLabelValues = overflowLabelValues;
+      return (B)this;
+    }
+
+    /**
+     * Remove children that were neither looked up with {@link SimpleCollector#labels} nor updated within the
+     * given time. Optional, by default children are kept until removed.
+     * <p>
+     * Idle children are removed by {@link Collector#collect}, between one and two times the given time after
+     * their last use. As with {@link SimpleCollector#remove}, references to a removed Child become invalid,
+     * so don't keep children that may go unused for that long.
+     * Children set with {@link SimpleCollector#setChild} are never removed.
+     */
+    public B expireIdleChildrenAfterSeconds(long seconds) {
+      if (seconds <= 0) {
+        throw new IllegalArgumentException("expireIdleChildrenAfterSeconds cannot be " + seconds);
+      }
+      this.idleChildTtlMillis = TimeUnit.SECONDS.toMillis(seconds);
+      return (B)this;
+    }
 
     /**
      * Return the constructed collector.
@@ -0,0 +1,218 @@
+package io.prometheus.client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Exponential buckets for {@link Histogram.Builder#sparseBuckets}, only allocated once observed.
+ * <p>
+ * Bucket <code>i</code> counts observations in <code>(gamma^(i-1), gamma^i]</code> with
+ * <code>gamma = 1 + relativeError</code>, so every observation is within the relative error of its
+ * bucket's upper bound. Observations &lt;= 0 are counted in a single bucket with upper bound 0, and
+ * +Inf only in the +Inf bucket.
+ * <p>
+ * Counts live in fixed size chunks, which are created on first use and found by binary search in a
+ * sorted directory of the chunks observed so far. So memory depends on the chunks used rather than the
+ * range between them, such as observing both 1e-300 and 1e300. Observing into an existing chunk is
+ * lock-free. Creating a chunk replaces the directory under a lock, and as chunks are shared between the
+ * old and new directory no increments are lost.
+ */
+class SparseBuckets {
+  private static final int CHUNK_BITS = 5;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  // Indexes are within +-2^23 even for the smallest relative error, so merged indexes shifted back stay in range.
+  private static final int MAX_SHIFT = 30;
+
+  private final double gamma;
+  private final double inverseLogGamma;
+  private final int maxIndex;
+  private final AtomicLong zeroCount = new AtomicLong();
+  private final AtomicLong infCount = new AtomicLong();
+  private volatile Directory directory = new Directory(new int[0], new AtomicLongArray[0]);
+
+  /**
+   * The chunks with the given chunk numbers, in ascending order. Never modified once published.
+   */
+  private static final class Directory {
+    final int[] chunkNumbers;
+    final AtomicLongArray[] chunks;
+
+    Directory(int[] chunkNumbers, AtomicLongArray[] chunks) {
+      this.chunkNumbers = chunkNumbers;
+      this.chunks = chunks;
+    }
+  }
+
+  SparseBuckets(double relativeError) {
+    gamma = 1 + relativeError;
+    inverseLogGamma = 1 / Math.log(gamma);
+    maxIndex = index(Double.MAX_VALUE);
+  }
+
+  /**
+   * Index of the bucket a positive value falls into.
+   */
+  int index(double amt) {
+    return (int)Math.ceil(Math.log(amt) * inverseLogGamma);
+  }
+
+  double upperBound(int index) {
+    return Math.pow(gamma, index);
+  }
+
+  void observe(double amt) {
+    if (!(amt > 0)) {
+      // NaN isn't in any bucket.
+      if (amt <= 0) {
+        zeroCount.incrementAndGet();
+      }
+      return;
+    }
+    if (amt == Double.POSITIVE_INFINITY) {
+      // Its index would saturate to Integer.MAX_VALUE, and the directory would have to span all chunks up to it.
+      infCount.incrementAndGet();
+      return;
+    }
+    int index = Math.min(index(amt), maxIndex);
+    int chunk = index >> CHUNK_BITS;
+    Directory d = directory;
+    int i = Arrays.binarySearch(d.chunkNumbers, chunk);
+    AtomicLongArray counts = i >= 0 ? d.chunks[i] : createChunk(chunk);
+    counts.incrementAndGet(index & (CHUNK_SIZE - 1));
+  }
+
+  private synchronized AtomicLongArray createChunk(int chunk) {
+    Directory d = directory;
+    int i = Arrays.binarySearch(d.chunkNumbers, chunk);
+    if (i >= 0) {
+      return d.chunks[i];
+    }
+    int insert = -i - 1;
+    int length = d.chunks.length;
+    int[] chunkNumbers = new int[length + 1];
+    AtomicLongArray[] chunks = new AtomicLongArray[length + 1];
+    System.arraycopy(d.chunkNumbers, 0, chunkNumbers, 0, insert);
+    System.arraycopy(d.chunks, 0, chunks, 0, insert);
+    System.arraycopy(d.chunkNumbers, insert, chunkNumbers, insert + 1, length - insert);
+    System.arraycopy(d.chunks, insert, chunks, insert + 1, length - insert);
+    AtomicLongArray counts = new AtomicLongArray(CHUNK_SIZE);
+    chunkNumbers[insert] = chunk;
+    chunks[insert] = counts;
+    directory = new Directory(chunkNumbers, chunks);
+    return counts;
+  }
+
+  /**
+   * The number of chunks allocated.
+   */
+  int chunks() {
+    return directory.chunks.length;
+  }
+
+  /**
+   * The cumulative counts, and their upper bounds, for classic <code>_bucket</code> series.
+   * <p>
+   * If more than maxBuckets buckets have observations, neighbouring buckets are merged in powers of two
+   * until they fit. Buckets on both sides of 1 only merge into one when everything does, which is done
+   * directly if that's all that fits. The last bucket is always +Inf.
+   */
+  Snapshot snapshot(int maxBuckets) {
+    Directory d = directory;
+    int[] indexes = new int[CHUNK_SIZE];
+    long[] counts = new long[CHUNK_SIZE];
+    int n = 0;
+    for (int c = 0; c < d.chunks.length; c++) {
+      AtomicLongArray chunk = d.chunks[c];
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        long count = chunk.get(i);
+        if (count == 0) {
+          continue;
+        }
+        if (n == indexes.length) {
+          indexes = Arrays.copyOf(indexes, n * 2);
+          counts = Arrays.copyOf(counts, n * 2);
+        }
+        indexes[n] = (d.chunkNumbers[c] << CHUNK_BITS) + i;
+        counts[n] = count;
+        n++;
+      }
+    }
+
+    long zero = zeroCount.get();
+    // Room for +Inf, and the zero bucket if used.
+    int maxPositive = Math.max(1, maxBuckets - 1 - (zero > 0 ? 1 : 0));
+    int shift = 0;
+    while (distinct(indexes, n, shift) > maxPositive && shift < MAX_SHIFT) {
+      shift++;
+    }
+    // Only left with the buckets below and above 1, and room for one.
+    boolean mergeAll = distinct(indexes, n, shift) > maxPositive;
+
+    int size = (mergeAll ? 1 : distinct(indexes, n, shift)) + (zero > 0 ? 1 : 0) + 1;
+    double[] upperBounds = new double[size];
+    double[] cumulativeCounts = new double[size];
+    int b = 0;
+    double acc = 0;
+    if (zero > 0) {
+      acc += zero;
+      upperBounds[b] = 0;
+      cumulativeCounts[b] = acc;
+      b++;
+    }
+    for (int i = 0; i < n; i++) {
+      acc += counts[i];
+      int merged = coarsen(indexes[i], shift);
+      if (i + 1 < n && (mergeAll || coarsen(indexes[i + 1], shift) == merged)) {
+        continue;
+      }
+      double upperBound = upperBound(merged << shift);
+      if (upperBound == Double.POSITIVE_INFINITY) {
+        // Larger than any finite bound, leave it to the +Inf bucket.
+        break;
+      }
+      upperBounds[b] = upperBound;
+      cumulativeCounts[b] = acc;
+      b++;
+    }
+    long total = zero + infCount.get();
+    for (int i = 0; i < n; i++) {
+      total += counts[i];
+    }
+    upperBounds[b] = Double.POSITIVE_INFINITY;
+    cumulativeCounts[b] = total;
+    b++;
+    if (b < size) {
+      upperBounds = Arrays.copyOf(upperBounds, b);
+      cumulativeCounts = Arrays.copyOf(cumulativeCounts, b);
+    }
+    return new Snapshot(upperBounds, cumulativeCounts);
+  }
+
+  /**
+   * Index of the merged bucket when merging 2^shift buckets, rounding up like the bucket bounds do.
+   */
+  private static int coarsen(int index, int shift) {
+    return -((-index) >> shift);
+  }
+
+  private static int distinct(int[] indexes, int n, int shift) {
+    int result = 0;
+    for (int i = 0; i < n; i++) {
+      if (i == 0 || coarsen(indexes[i], shift) != coarsen(indexes[i - 1], shift)) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  static final class Snapshot {
+    final double[] upperBounds;
+    final double[] cumulativeCounts;
+
+    Snapshot(double[] upperBounds, double[] cumulativeCounts) {
+      this.upperBounds = upperBounds;
+      this.cumulativeCounts = cumulativeCounts;
+    }
+  }
+}
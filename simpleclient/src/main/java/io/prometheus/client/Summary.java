@@ -3,12 +3,16 @@ package io.prometheus.client;
 import io.prometheus.client.CKMSQuantiles.Quantile;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -71,23 +75,59 @@ import java.util.concurrent.TimeUnit;
  *   <li>maxAgeSeconds(long): Set the duration of the time window is, i.e. how long observations are kept before they are discarded.
  *       Default is 10 minutes.
  *   <li>ageBuckets(int): Set the number of buckets used to implement the sliding time window. If your time window is 10 minutes, and you have ageBuckets=5,
- *       buckets will be switched every 2 minutes. The value is a trade-off between resources (memory and cpu for maintaining the bucket)
+ *       buckets will be switched every 2 minutes. Each observation is only added to the current bucket, so the value doesn't change the
+ *       cost of observing. It is a trade-off between resources (memory for the buckets, cpu for merging them when the quantiles are read)
  *       and how smooth the time window is moved. Default value is 5.
  * </ul>
  *
+ * Observations are buffered and added to the quantile estimators when the Summary is collected, or by a background
+ * thread if many of them queue up in between. If they come in faster than that thread keeps up with, only the most
+ * recent ~16k observations of each child are kept for the quantiles. The count and sum always include all of them.
+ *
+ * By default the quantiles are estimated with the CKMS algorithm, whose memory and cpu usage grow with the number of
+ * quantiles and how small their error is. {@link Builder#quantileEngine quantileEngine} can select a sketch with a bounded
+ * size instead, whose estimates are within a relative error of the actual value:
+ * <pre>
+ * {@code
+ *     static final Summary requestLatency = Summary.build()
+ *         .quantile(0.5, 0.05)
+ *         .quantile(0.99, 0.001)
+ *         .quantileEngine(Summary.QuantileEngine.LOG_BUCKETS)
+ *         .quantileRelativeError(0.02)   // Estimates are within 2% of the actual quantile values.
+ *         .name("requests_latency_seconds").help("Request latency in seconds.").register();
+ * }
+ * </pre>
+ *
  * See https://prometheus.io/docs/practices/histograms/ for more info on quantiles.
  */
 public class Summary extends SimpleCollector<Summary.Child> implements Counter.Describable {
 
   final List<Quantile> quantiles; // Can be empty, but can never be null.
+  private final double[] sortedQuantiles;  // Without duplicates, as exported.
+  private final String[] quantileLabelValues;
   final long maxAgeSeconds;
   final int ageBuckets;
+  final QuantileEngine quantileEngine;
+  final double quantileRelativeError;
 
   Summary(Builder b) {
     super(b);
     quantiles = Collections.unmodifiableList(new ArrayList<Quantile>(b.quantiles));
+    SortedSet<Double> sorted = new TreeSet<Double>();
+    for (Quantile q : quantiles) {
+      sorted.add(q.quantile);
+    }
+    sortedQuantiles = new double[sorted.size()];
+    quantileLabelValues = new String[sorted.size()];
+    int i = 0;
+    for (double q : sorted) {
+      sortedQuantiles[i] = q;
+      quantileLabelValues[i++] = doubleToGoString(q);
+    }
     this.maxAgeSeconds = b.maxAgeSeconds;
     this.ageBuckets = b.ageBuckets;
+    this.quantileEngine = b.quantileEngine;
+    this.quantileRelativeError = b.quantileRelativeError;
     initializeNoLabelsChild();
   }
 
@@ -96,6 +136,8 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
     private final List<Quantile> quantiles = new ArrayList<Quantile>();
     private long maxAgeSeconds = TimeUnit.MINUTES.toSeconds(10);
     private int ageBuckets = 5;
+    private QuantileEngine quantileEngine = QuantileEngine.CKMS;
+    private double quantileRelativeError = 0.01;
 
     public Builder quantile(double quantile, double error) {
       if (quantile < 0.0 || quantile > 1.0) {
@@ -124,6 +166,28 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
       return this;
     }
 
+    /**
+     * Set how the quantiles are estimated. Default is {@link QuantileEngine#CKMS}.
+     */
+    public Builder quantileEngine(QuantileEngine quantileEngine) {
+      if (quantileEngine == null) {
+        throw new IllegalArgumentException("quantileEngine cannot be null");
+      }
+      this.quantileEngine = quantileEngine;
+      return this;
+    }
+
+    /**
+     * Set the relative error of the estimated quantile values for {@link QuantileEngine#LOG_BUCKETS}. Default is 0.01.
+     */
+    public Builder quantileRelativeError(double relativeError) {
+      if (relativeError < 0.0001 || relativeError > 0.5) {
+        throw new IllegalArgumentException("Relative error " + relativeError + " invalid: Expected number between 0.0001 and 0.5.");
+      }
+      this.quantileRelativeError = relativeError;
+      return this;
+    }
+
     @Override
     public Summary create() {
       for (String label : labelNames) {
@@ -155,7 +219,36 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
 
   @Override
   protected Child newChild() {
-    return new Child(quantiles, maxAgeSeconds, ageBuckets);
+    return new Child(quantiles, newQuantileEstimator(), maxAgeSeconds, ageBuckets);
+  }
+
+  private QuantileEstimator newQuantileEstimator() {
+    if (quantiles.isEmpty()) {
+      return null;
+    }
+    switch (quantileEngine) {
+      case LOG_BUCKETS:
+        return new LogBucketQuantiles(quantileRelativeError);
+      default:
+        return new CKMSQuantiles(quantiles.toArray(new Quantile[]{}));
+    }
+  }
+
+  /**
+   * How the quantiles of a Summary are estimated, see {@link Builder#quantileEngine}.
+   */
+  public enum QuantileEngine {
+    /**
+     * The CKMS algorithm, which keeps each quantile within its own error on the rank. Memory and the cost of
+     * observing grow with the number of quantiles and how small their errors are.
+     */
+    CKMS,
+    /**
+     * Counts in logarithmically sized buckets, which keep the estimated values within
+     * {@link Builder#quantileRelativeError} of the actual quantile values. Uses bounded memory, and the cost of
+     * observing doesn't depend on the quantiles. The error passed to {@link Builder#quantile} is not used.
+     */
+    LOG_BUCKETS
   }
 
 
@@ -194,7 +287,7 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
    * <em>Warning:</em> References to a Child become invalid after using
    * {@link SimpleCollector#remove} or {@link SimpleCollector#clear}.
    */
-  public static class Child {
+  public static class Child extends TouchedChild {
 
     /**
      * Executes runnable code (i.e. a Java 8 Lambda) and observes a duration of how long it took to run.
@@ -243,10 +336,10 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
     private final List<Quantile> quantiles;
     private final TimeWindowQuantiles quantileValues;
 
-    private Child(List<Quantile> quantiles, long maxAgeSeconds, int ageBuckets) {
+    private Child(List<Quantile> quantiles, QuantileEstimator estimator, long maxAgeSeconds, int ageBuckets) {
       this.quantiles = quantiles;
-      if (quantiles.size() > 0) {
-        quantileValues = new TimeWindowQuantiles(quantiles.toArray(new Quantile[]{}), maxAgeSeconds, ageBuckets);
+      if (estimator != null) {
+        quantileValues = new TimeWindowQuantiles(estimator, maxAgeSeconds, ageBuckets);
       } else {
         quantileValues = null;
       }
@@ -256,6 +349,7 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
      * Observe the given amount.
      */
     public void observe(double amt) {
+      touch();
       count.add(1);
       sum.add(amt);
       if (quantileValues != null) {
@@ -276,7 +370,15 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
      * <em>Warning:</em> The definition of {@link Value} is subject to change.
      */
     public Value get() {
-      return new Value(count.sum(), sum.sum(), quantiles, quantileValues);
+      return get(true);
+    }
+
+    /**
+     * Skips calculating the quantiles when they aren't needed.
+     */
+    Value get(boolean withQuantiles) {
+      return new Value(count.sum(), sum.sum(), withQuantiles ? quantiles : Collections.<Quantile>emptyList(),
+          quantileValues);
     }
   }
 
@@ -317,9 +419,21 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
 
   @Override
   public List<MetricFamilySamples> collect() {
+    return collect(Collections.<String>emptySet());
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect(Set<String> includedNames) {
+    expireIdleChildren();
+    boolean includeQuantiles = isIncluded(includedNames, fullname);
+    boolean includeCount = isIncluded(includedNames, fullname + "_count");
+    boolean includeSum = isIncluded(includedNames, fullname + "_sum");
     List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+    if (!includeQuantiles && !includeCount && !includeSum) {
+      return familySamplesList(Type.SUMMARY, samples, includedNames);
+    }
     for(Map.Entry<List<String>, Child> c: children.entrySet()) {
-      Child.Value v = c.getValue().get();
+      Child.Value v = c.getValue().get(includeQuantiles);
       List<String> labelNamesWithQuantile = new ArrayList<String>(labelNames);
       labelNamesWithQuantile.add("quantile");
       for(Map.Entry<Double, Double> q : v.quantiles.entrySet()) {
@@ -327,16 +441,80 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
         labelValuesWithQuantile.add(doubleToGoString(q.getKey()));
         samples.add(new MetricFamilySamples.Sample(fullname, labelNamesWithQuantile, labelValuesWithQuantile, q.getValue()));
       }
-      samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, c.getKey(), v.count));
-      samples.add(new MetricFamilySamples.Sample(fullname + "_sum", labelNames, c.getKey(), v.sum));
+      if (includeCount) {
+        samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, c.getKey(), v.count));
+      }
+      if (includeSum) {
+        samples.add(new MetricFamilySamples.Sample(fullname + "_sum", labelNames, c.getKey(), v.sum));
+      }
+    }
+
+    return familySamplesList(Type.SUMMARY, samples, includedNames);
+  }
+
+  @Override
+  public void collect(Set<String> includedNames, SampleVisitor visitor) throws IOException {
+    expireIdleChildren();
+    String countName = fullname + "_count";
+    String sumName = fullname + "_sum";
+    boolean includeQuantiles = isIncluded(includedNames, fullname);
+    boolean includeCount = isIncluded(includedNames, countName);
+    boolean includeSum = isIncluded(includedNames, sumName);
+    if (visitFamily(Type.SUMMARY, includeQuantiles || includeCount || includeSum, includedNames, visitor)) {
+      for(Map.Entry<List<String>, Child> c: children.entrySet()) {
+        Child child = c.getValue();
+        if (includeQuantiles && child.quantiles == quantiles) {
+          for (int i = 0; i < sortedQuantiles.length; i++) {
+            visitor.visitSample(fullname, labelNames, c.getKey(), "quantile", quantileLabelValues[i],
+                child.quantileValues.get(sortedQuantiles[i]));
+          }
+        } else if (includeQuantiles) {
+          // A child set with setChild() may have other quantiles.
+          for(Map.Entry<Double, Double> q : child.get().quantiles.entrySet()) {
+            visitor.visitSample(fullname, labelNames, c.getKey(), "quantile", doubleToGoString(q.getKey()),
+                q.getValue());
+          }
+        }
+        if (includeCount) {
+          visitor.visitSample(countName, labelNames, c.getKey(), null, null, child.count.sum());
+        }
+        if (includeSum) {
+          visitor.visitSample(sumName, labelNames, c.getKey(), null, null, child.sum.sum());
+        }
+      }
     }
+    visitOtherFamilies(includedNames, visitor);
+  }
 
-    return familySamplesList(Type.SUMMARY, samples);
+  @Override
+  Double getSampleValue(String name, String[] labelNames, String[] labelValues) {
+    if (name.equals(fullname)) {
+      Child child = sampleChild(labelNames, labelValues, "quantile");
+      if (child == null) {
+        return null;
+      }
+      String quantile = labelValues[labelValues.length - 1];
+      for (Quantile q : child.quantiles) {
+        if (doubleToGoString(q.quantile).equals(quantile)) {
+          return child.quantileValues.get(q.quantile);
+        }
+      }
+      return null;
+    }
+    if (name.equals(fullname + "_count") || name.equals(fullname + "_sum")) {
+      Child child = sampleChild(labelNames, labelValues, null);
+      if (child == null) {
+        return null;
+      }
+      Child.Value v = child.get(false);
+      return name.equals(fullname + "_count") ? v.count : v.sum;
+    }
+    return super.getSampleValue(name, labelNames, labelValues);
   }
 
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.<MetricFamilySamples>singletonList(new SummaryMetricFamily(fullname, help, labelNames));
+    return describeList(new SummaryMetricFamily(fullname, help, labelNames));
   }
 
 }
@@ -1,26 +1,43 @@
 package io.prometheus.client;
 
-import io.prometheus.client.CKMSQuantiles.Quantile;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Wrapper around CKMSQuantiles.
+ * Wrapper around a {@link QuantileEstimator}, such as CKMSQuantiles.
  *
- * Maintains a ring buffer of CKMSQuantiles to provide quantiles over a sliding windows of time.
+ * Maintains a ring buffer of estimators to provide quantiles over a sliding windows of time.
+ * Each observation is only inserted into the estimator of the current time slice, the oldest
+ * slice is discarded on rotation, and quantiles are calculated by merging all slices.
+ * The merged estimator is kept until the next insert or rotation, so {@link #get} for each
+ * quantile of a Summary merges once.
+ * <p>
+ * Inserts only append to an {@link ObservationBuffer}, the estimators are updated when {@link #get}
+ * drains it, or in the background if many observations queued up without one. An observation is therefore
+ * attributed to the time it was drained, which is at the latest the next {@link #get}.
  */
 class TimeWindowQuantiles {
 
-  private final Quantile[] quantiles;
-  private final CKMSQuantiles[] ringBuffer;
+  private final QuantileEstimator[] ringBuffer;
   private int currentBucket;
   private long lastRotateTimestampMillis;
   private final long durationBetweenRotatesMillis;
+  private QuantileEstimator merged;
+  private final ObservationBuffer buffer = new ObservationBuffer() {
+    @Override
+    void consume(double[] values, int count) {
+      insertNow(values, count);
+    }
+  };
 
-  public TimeWindowQuantiles(Quantile[] quantiles, long maxAgeSeconds, int ageBuckets) {
-    this.quantiles = quantiles;
-    this.ringBuffer = new CKMSQuantiles[ageBuckets];
-    for (int i = 0; i < ageBuckets; i++) {
-      this.ringBuffer[i] = new CKMSQuantiles(quantiles);
+  /**
+   * @param estimator empty estimator for the first time slice, the others are created with
+   *                  {@link QuantileEstimator#newEstimator}.
+   */
+  public TimeWindowQuantiles(QuantileEstimator estimator, long maxAgeSeconds, int ageBuckets) {
+    this.ringBuffer = new QuantileEstimator[ageBuckets];
+    this.ringBuffer[0] = estimator;
+    for (int i = 1; i < ageBuckets; i++) {
+      this.ringBuffer[i] = estimator.newEstimator();
     }
     this.currentBucket = 0;
     this.lastRotateTimestampMillis = System.currentTimeMillis();
@@ -28,27 +45,39 @@ class TimeWindowQuantiles {
   }
 
   public double get(double q) {
-    CKMSQuantiles currentBucket = rotate();
-    return currentBucket.get(q);
+    buffer.drain();
+    synchronized (this) {
+      rotate();
+      if (merged == null) {
+        merged = ringBuffer[0].merge(ringBuffer);
+      }
+      return merged.get(q);
+    }
   }
 
   public void insert(double value) {
+    buffer.add(value);
+  }
+
+  private synchronized void insertNow(double[] values, int count) {
     rotate();
-    for (CKMSQuantiles ckmsQuantiles : ringBuffer) {
-      ckmsQuantiles.insert(value);
+    QuantileEstimator estimator = ringBuffer[currentBucket];
+    for (int i = 0; i < count; i++) {
+      estimator.insert(values[i]);
     }
+    merged = null;
   }
 
-  private synchronized CKMSQuantiles rotate() {
+  private void rotate() {
     long timeSinceLastRotateMillis = System.currentTimeMillis() - lastRotateTimestampMillis;
     while (timeSinceLastRotateMillis > durationBetweenRotatesMillis) {
-      ringBuffer[currentBucket] = new CKMSQuantiles(quantiles);
       if (++currentBucket >= ringBuffer.length) {
         currentBucket = 0;
       }
+      ringBuffer[currentBucket] = ringBuffer[currentBucket].newEstimator();
+      merged = null;
       timeSinceLastRotateMillis -= durationBetweenRotatesMillis;
       lastRotateTimestampMillis += durationBetweenRotatesMillis;
     }
-    return ringBuffer[currentBucket];
   }
 }
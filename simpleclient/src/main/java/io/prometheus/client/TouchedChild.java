@@ -0,0 +1,28 @@
+package io.prometheus.client;
+
+/**
+ * Base of the standard children, recording whether they were updated for
+ * {@link SimpleCollector.Builder#expireIdleChildrenAfterSeconds}.
+ * <p>
+ * As in {@link LabelIndex}, the flag is only written when not yet set, so updating a busy child only reads it.
+ */
+class TouchedChild {
+  private volatile boolean touched = true;
+
+  final void touch() {
+    if (!touched) {
+      touched = true;
+    }
+  }
+
+  /**
+   * Whether the child was touched since the previous call.
+   */
+  final boolean clearTouched() {
+    if (!touched) {
+      return false;
+    }
+    touched = false;
+    return true;
+  }
+}
@@ -0,0 +1,96 @@
+package io.prometheus.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+
+public class CKMSQuantilesTest {
+
+  private static CKMSQuantiles.Quantile[] targets() {
+    return new CKMSQuantiles.Quantile[]{
+      new CKMSQuantiles.Quantile(0.5, 0.05),
+      new CKMSQuantiles.Quantile(0.9, 0.01),
+      new CKMSQuantiles.Quantile(0.99, 0.001)};
+  }
+
+  @Test
+  public void testEmpty() {
+    CKMSQuantiles ckms = new CKMSQuantiles(targets());
+    assertTrue(Double.isNaN(ckms.get(0.5)));
+  }
+
+  @Test
+  public void testSingleValue() {
+    CKMSQuantiles ckms = new CKMSQuantiles(targets());
+    ckms.insert(42);
+    assertEquals(42, ckms.get(0.5), 0.0);
+    assertEquals(42, ckms.get(0.99), 0.0);
+  }
+
+  @Test
+  public void testRankErrorWithinBounds() {
+    Random random = new Random(0);
+    int n = 100000;
+    double[] values = new double[n];
+    CKMSQuantiles ckms = new CKMSQuantiles(targets());
+    for (int i = 0; i < n; i++) {
+      values[i] = random.nextGaussian();
+      ckms.insert(values[i]);
+    }
+    Arrays.sort(values);
+    for (CKMSQuantiles.Quantile q : targets()) {
+      double estimate = ckms.get(q.quantile);
+      int rank = Arrays.binarySearch(values, estimate);
+      assertTrue(rank >= 0);
+      double actual = (double)rank / n;
+      assertEquals("quantile " + q.quantile, q.quantile, actual, q.error);
+    }
+  }
+
+  @Test
+  public void testMergedRankErrorWithinBounds() {
+    Random random = new Random(0);
+    int n = 100000;
+    double[] values = new double[n];
+    CKMSQuantiles[] parts = new CKMSQuantiles[5];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = new CKMSQuantiles(targets());
+    }
+    for (int i = 0; i < n; i++) {
+      // Give each part a different distribution.
+      int part = i % parts.length;
+      values[i] = random.nextGaussian() + part;
+      parts[part].insert(values[i]);
+    }
+    QuantileEstimator merged = parts[0].merge(parts);
+    Arrays.sort(values);
+    for (CKMSQuantiles.Quantile q : targets()) {
+      double estimate = merged.get(q.quantile);
+      int rank = Arrays.binarySearch(values, estimate);
+      assertTrue(rank >= 0);
+      double actual = (double)rank / n;
+      assertEquals("quantile " + q.quantile, q.quantile, actual, q.error);
+    }
+  }
+
+  @Test
+  public void testMergeEmpty() {
+    CKMSQuantiles ckms = new CKMSQuantiles(targets());
+    QuantileEstimator merged = ckms.merge(new QuantileEstimator[]{ckms, ckms.newEstimator()});
+    assertTrue(Double.isNaN(merged.get(0.5)));
+  }
+
+  @Test
+  public void testDuplicateValues() {
+    CKMSQuantiles ckms = new CKMSQuantiles(targets());
+    for (int i = 0; i < 10000; i++) {
+      ckms.insert(i % 10 < 9 ? 1 : 2);
+    }
+    assertEquals(1, ckms.get(0.5), 0.0);
+    assertEquals(2, ckms.get(0.99), 0.0);
+  }
+}
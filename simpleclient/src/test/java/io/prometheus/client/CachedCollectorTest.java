@@ -0,0 +1,194 @@
+package io.prometheus.client;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CachedCollectorTest {
+
+  CollectorRegistry registry;
+  AtomicInteger collections;
+  long now;
+  SimpleTimer.TimeProvider timeProvider;
+
+  class CountingCollector extends Collector {
+    public List<MetricFamilySamples> collect() {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      samples.add(new MetricFamilySamples.Sample("collections", asList("l"), asList("a"), collections.incrementAndGet()));
+      samples.add(new MetricFamilySamples.Sample("collections_count", asList("l"), asList("a"), 1));
+      return asList(new MetricFamilySamples("collections", Type.SUMMARY, "help", samples));
+    }
+  }
+
+  @Before
+  public void setUp() {
+    registry = new CollectorRegistry();
+    collections = new AtomicInteger();
+    timeProvider = new SimpleTimer.TimeProvider() {
+      long nanoTime() {
+        return now;
+      }
+    };
+  }
+
+  private double scrape() {
+    return registry.getSampleValue("collections", new String[]{"l"}, new String[]{"a"});
+  }
+
+  @Test
+  public void testReusedWithinMaxAge() {
+    new CachedCollector(new CountingCollector(), 10, TimeUnit.SECONDS, timeProvider).register(registry);
+    assertEquals(1, scrape(), 0.0);
+    now += TimeUnit.SECONDS.toNanos(9);
+    assertEquals(1, scrape(), 0.0);
+    now += TimeUnit.SECONDS.toNanos(1);
+    assertEquals(2, scrape(), 0.0);
+    assertEquals(2, scrape(), 0.0);
+  }
+
+  @Test
+  public void testZeroMaxAgeAlwaysCollects() {
+    CachedCollector cached = new CachedCollector(new CountingCollector(), 0, TimeUnit.SECONDS, timeProvider);
+    assertEquals(1, cached.collect().get(0).samples.get(0).value, 0.0);
+    assertEquals(2, cached.collect().get(0).samples.get(0).value, 0.0);
+  }
+
+  @Test
+  public void testFilteringDoesNotChangeCache() {
+    new CachedCollector(new CountingCollector(), 10, TimeUnit.SECONDS, timeProvider).register(registry);
+    // Filtering by name removes the other samples from the returned families.
+    Collector.MetricFamilySamples filtered = registry.filteredMetricFamilySamples(
+        Collections.singleton("collections_count")).nextElement();
+    assertEquals(1, filtered.samples.size());
+    assertEquals(1, scrape(), 0.0);
+    assertEquals(1, collections.get());
+  }
+
+  @Test
+  public void testConcurrentScrapesShareCollection() throws Exception {
+    final CountDownLatch collecting = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CachedCollector cached = new CachedCollector(new CountingCollector() {
+      public List<MetricFamilySamples> collect() {
+        collecting.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return super.collect();
+      }
+    }, 10, TimeUnit.SECONDS, timeProvider);
+
+    Thread[] threads = new Thread[4];
+    final double[] results = new double[threads.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int t = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          results[t] = cached.collect().get(0).samples.get(0).value;
+        }
+      };
+      threads[i].start();
+    }
+    collecting.await();
+    // Give the other threads a chance to start waiting on the collection.
+    Thread.sleep(50);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1, collections.get());
+    for (double result : results) {
+      assertEquals(1, result, 0.0);
+    }
+  }
+
+  @Test
+  public void testInterruptedScrapeGetsPreviousCollection() throws Exception {
+    final CountDownLatch collecting = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    final CachedCollector cached = new CachedCollector(new CountingCollector() {
+      public List<MetricFamilySamples> collect() {
+        if (calls.incrementAndGet() > 1) {
+          collecting.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return super.collect();
+      }
+    }, 10, TimeUnit.SECONDS, timeProvider);
+    assertEquals(1, cached.collect().get(0).samples.get(0).value, 0.0);
+    now += TimeUnit.SECONDS.toNanos(10);
+
+    Thread collector = new Thread() {
+      @Override
+      public void run() {
+        cached.collect();
+      }
+    };
+    collector.start();
+    collecting.await();
+    final double[] result = new double[1];
+    final boolean[] interrupted = new boolean[1];
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        result[0] = cached.collect().get(0).samples.get(0).value;
+        interrupted[0] = Thread.currentThread().isInterrupted();
+      }
+    };
+    waiter.start();
+    // Give the waiter a chance to start waiting on the collection.
+    Thread.sleep(50);
+    waiter.interrupt();
+    waiter.join();
+    release.countDown();
+    collector.join();
+
+    assertEquals(1, result[0], 0.0);
+    assertTrue(interrupted[0]);
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testFailedCollectionIsNotCached() {
+    final AtomicInteger calls = new AtomicInteger();
+    CachedCollector cached = new CachedCollector(new CountingCollector() {
+      public List<MetricFamilySamples> collect() {
+        if (calls.incrementAndGet() == 1) {
+          throw new IllegalStateException("boom");
+        }
+        return super.collect();
+      }
+    }, 10, TimeUnit.SECONDS, timeProvider);
+    try {
+      cached.collect();
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    assertEquals(1, cached.collect().get(0).samples.get(0).value, 0.0);
+    assertEquals(1, cached.collect().get(0).samples.get(0).value, 0.0);
+    assertEquals(2, calls.get());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeMaxAge() {
+    new CachedCollector(new CountingCollector(), -1, TimeUnit.SECONDS);
+  }
+}
@@ -3,14 +3,26 @@ package io.prometheus.client;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 
 public class CollectorRegistryTest {
@@ -198,4 +210,292 @@ public class CollectorRegistryTest {
     }
   }
 
+  private static List<String> names(CollectorRegistry registry) {
+    List<String> names = new ArrayList<String>();
+    for (Collector.MetricFamilySamples metricFamilySamples : Collections.list(registry.metricFamilySamples())) {
+      names.add(metricFamilySamples.name);
+    }
+    return names;
+  }
+
+  @Test
+  public void testCollectorsAreCollectedInRegistrationOrder() {
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 20; i++) {
+      Gauge.build().name("g" + i).help("h").register(registry);
+      expected.add("g" + i);
+    }
+    assertEquals(expected, names(registry));
+  }
+
+  private static class LatchCollector extends Collector {
+    final String name;
+    final CountDownLatch latch;
+
+    LatchCollector(String name, CountDownLatch latch) {
+      this.name = name;
+      this.latch = latch;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      latch.countDown();
+      try {
+        // Only finishes promptly if all the collectors are running at the same time.
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+      mfs.add(new GaugeMetricFamily(name, "help", 1));
+      return mfs;
+    }
+  }
+
+  @Test
+  public void testCollectorsAreCollectedConcurrentlyWithExecutor() {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      CollectorRegistry r = new CollectorRegistry(false, executor);
+      CountDownLatch latch = new CountDownLatch(4);
+      for (int i = 0; i < 4; i++) {
+        new LatchCollector("l" + i, latch).register(r);
+      }
+      assertEquals(Arrays.asList("l0", "l1", "l2", "l3"), names(r));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testVisitMatchesEnumeration() throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<CollectorRegistry> registries = Arrays.asList(new CollectorRegistry(true),
+          new CollectorRegistry(true, executor),
+          new CollectorRegistry(true, executor, 10, TimeUnit.SECONDS, false));
+      for (CollectorRegistry r : registries) {
+        Counter.build().name("c").help("h").register(r).inc();
+        Histogram.build().name("h").help("h").labelNames("l").register(r).labels("a").observe(1);
+        for (Set<String> filter : Arrays.<Set<String>>asList(
+            Collections.<String>emptySet(), Collections.singleton("h_sum"))) {
+          CollectorTest.ListVisitor visitor = new CollectorTest.ListVisitor();
+          r.visitMetricFamilySamples(filter, visitor);
+          assertEquals(Collections.list(r.filteredMetricFamilySamples(filter)), visitor.mfs);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRejectingExecutorCollectsOnScrapingThread() {
+    CollectorRegistry r = new CollectorRegistry(false, new Executor() {
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    });
+    Gauge.build().name("a").help("h").register(r);
+    Counter.build().name("b").help("h").register(r);
+    assertEquals(Arrays.asList("a", "b"), names(r));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testExceptionFromConcurrentCollectorIsThrown() {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      CollectorRegistry r = new CollectorRegistry(false, executor);
+      Gauge.build().name("a").help("h").register(r);
+      new Collector() {
+        public List<MetricFamilySamples> collect() {
+          throw new IllegalStateException("boom");
+        }
+      }.register(r);
+      names(r);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static class StuckCollector extends Collector {
+    final CountDownLatch release = new CountDownLatch(1);
+    volatile boolean stuck;
+    int collections;
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      if (stuck) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+      mfs.add(new GaugeMetricFamily("stuck", "help", ++collections));
+      return mfs;
+    }
+  }
+
+  private static Double deadlinesExceeded(CollectorRegistry r, Collector collector, String result) {
+    return r.getSampleValue(CollectorRegistry.DEADLINE_EXCEEDED, new String[]{"collector", "result"},
+        new String[]{collector.getClass().getName(), result});
+  }
+
+  @Test
+  public void testStaleCollectionReturnedAfterDeadline() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      CollectorRegistry r = new CollectorRegistry(false, executor, 100, TimeUnit.MILLISECONDS, true);
+      Gauge.build().name("g").help("h").register(r).set(3);
+      StuckCollector stuck = new StuckCollector();
+      stuck.register(r);
+
+      assertEquals(1, r.getSampleValue("stuck"), 0.0);
+
+      stuck.stuck = true;
+      assertEquals(1, r.getSampleValue("stuck"), 0.0);
+      assertEquals(3, r.getSampleValue("g"), 0.0);
+      // The stuck collection is shared rather than started again.
+      assertEquals(1, r.getSampleValue("stuck"), 0.0);
+      // Includes the scrape reading it, but not reading the gauge.
+      assertEquals(3, deadlinesExceeded(r, stuck, "stale"), 0.0);
+      assertNull(deadlinesExceeded(r, stuck, "omitted"));
+
+      // Once it finishes, its result is used.
+      stuck.stuck = false;
+      stuck.release.countDown();
+      for (int i = 0; i < 100 && r.getSampleValue("stuck") < 2; i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(r.getSampleValue("stuck") >= 2);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCollectionOmittedAfterDeadlineWithoutStale() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      CollectorRegistry r = new CollectorRegistry(false, executor, 100, TimeUnit.MILLISECONDS, false);
+      Gauge.build().name("g").help("h").register(r).set(3);
+      StuckCollector stuck = new StuckCollector();
+      stuck.register(r);
+      assertEquals(1, r.getSampleValue("stuck"), 0.0);
+
+      stuck.stuck = true;
+      assertNull(r.getSampleValue("stuck"));
+      assertEquals(3, r.getSampleValue("g"), 0.0);
+      assertEquals(2, deadlinesExceeded(r, stuck, "omitted"), 0.0);
+      stuck.release.countDown();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testNamesArePushedDownWithDeadline() {
+    CollectorRegistry r = new CollectorRegistry(true, null, 1, TimeUnit.SECONDS, true);
+    final List<Set<String>> collected = new ArrayList<Set<String>>();
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        return collect(Collections.<String>emptySet());
+      }
+
+      @Override
+      public List<MetricFamilySamples> collect(Set<String> includedNames) {
+        collected.add(includedNames);
+        List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+        mfs.add(new GaugeMetricFamily("a", "help", 1));
+        mfs.add(new GaugeMetricFamily("b", "help", 2));
+        return filter(mfs, includedNames);
+      }
+    }.register(r);
+    collected.clear();
+
+    assertEquals(2, r.getSampleValue("b"), 0.0);
+    assertEquals(Collections.singletonList(Collections.singleton("b")), collected);
+  }
+
+  private static class AsyncCollector extends Collector implements Collector.AsyncCollectable {
+    // Completed by the test rather than by running a collection.
+    final FutureTask<List<MetricFamilySamples>> future = new FutureTask<List<MetricFamilySamples>>(new Runnable() {
+      public void run() {
+      }
+    }, collect());
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+      mfs.add(new GaugeMetricFamily("async", "help", 7));
+      return mfs;
+    }
+
+    public Future<List<MetricFamilySamples>> collectAsync() {
+      return future;
+    }
+  }
+
+  @Test
+  public void testAsyncCollector() {
+    CollectorRegistry r = new CollectorRegistry(false, null, 50, TimeUnit.MILLISECONDS, false);
+    AsyncCollector async = new AsyncCollector();
+    async.register(r);
+    assertNull(r.getSampleValue("async"));
+    assertEquals(2, deadlinesExceeded(r, async, "omitted"), 0.0);
+    async.future.run();
+    assertEquals(7, r.getSampleValue("async"), 0.0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeScrapeDeadline() {
+    new CollectorRegistry(false, null, -1, TimeUnit.SECONDS, false);
+  }
+
+  @Test
+  public void testFilteringDoesNotModifyCollectedSamples() {
+    final List<Collector.MetricFamilySamples.Sample> samples = Collections.unmodifiableList(Arrays.asList(
+        new Collector.MetricFamilySamples.Sample("immutable_count", Collections.<String>emptyList(), Collections.<String>emptyList(), 1),
+        new Collector.MetricFamilySamples.Sample("immutable_sum", Collections.<String>emptyList(), Collections.<String>emptyList(), 2)));
+    CollectorRegistry r = new CollectorRegistry(true);
+    new Collector() {
+      public List<MetricFamilySamples> collect() {
+        return Collections.singletonList(new MetricFamilySamples("immutable", Type.SUMMARY, "help", samples));
+      }
+    }.register(r);
+    List<Collector.MetricFamilySamples> mfs = Collections.list(r.filteredMetricFamilySamples(
+        Collections.singleton("immutable_sum")));
+    assertEquals(1, mfs.size());
+    assertEquals(Collections.singletonList(samples.get(1)), mfs.get(0).samples);
+    assertEquals(2, samples.size());
+  }
+
+  @Test
+  public void testGetSampleValueOnlyReadsThatCollector() {
+    CollectorRegistry r = new CollectorRegistry(true);
+    Counter.build().name("c").help("h").labelNames("l").register(r).labels("a").inc(3);
+    Histogram h = Histogram.build().name("h").help("h").buckets(1, 2).register(r);
+    h.observe(1.5);
+    new Collector() {
+      boolean described;
+      public List<MetricFamilySamples> collect() {
+        if (described) {
+          throw new IllegalStateException("Shouldn't be collected");
+        }
+        described = true;
+        return Collections.<MetricFamilySamples>singletonList(new GaugeMetricFamily("other", "help", 1));
+      }
+    }.register(r);
+
+    assertEquals(3, r.getSampleValue("c", new String[]{"l"}, new String[]{"a"}), 0.0);
+    assertNull(r.getSampleValue("c", new String[]{"l"}, new String[]{"b"}));
+    assertNull(r.getSampleValue("c", new String[]{"x"}, new String[]{"a"}));
+    assertEquals(0, r.getSampleValue("h_bucket", new String[]{"le"}, new String[]{"1.0"}), 0.0);
+    assertEquals(1, r.getSampleValue("h_bucket", new String[]{"le"}, new String[]{"+Inf"}), 0.0);
+    assertNull(r.getSampleValue("h_bucket", new String[]{"le"}, new String[]{"3.0"}));
+    assertEquals(1.5, r.getSampleValue("h_sum"), 0.0);
+  }
 }
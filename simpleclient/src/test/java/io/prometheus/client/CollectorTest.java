@@ -1,5 +1,12 @@
 package io.prometheus.client;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -10,4 +17,76 @@ public class CollectorTest {
       assertEquals("_hoge", Collector.sanitizeMetricName("0hoge"));
       assertEquals("foo_bar0", Collector.sanitizeMetricName("foo.bar0"));
   }
+
+  /**
+   * Rebuilds the metric families a collector visits.
+   */
+  static class ListVisitor implements Collector.SampleVisitor {
+    final List<Collector.MetricFamilySamples> mfs = new ArrayList<Collector.MetricFamilySamples>();
+
+    public void visitFamily(String name, Collector.Type type, String help) {
+      mfs.add(new Collector.MetricFamilySamples(name, type, help,
+          new ArrayList<Collector.MetricFamilySamples.Sample>()));
+    }
+
+    public void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                            String extraLabelName, String extraLabelValue, double value) {
+      List<String> names = new ArrayList<String>(labelNames);
+      List<String> values = new ArrayList<String>(labelValues);
+      if (extraLabelName != null) {
+        names.add(extraLabelName);
+        values.add(extraLabelValue);
+      }
+      mfs.get(mfs.size() - 1).samples.add(new Collector.MetricFamilySamples.Sample(name, names, values, value));
+    }
+  }
+
+  static List<Collector.MetricFamilySamples> visit(Collector collector, Set<String> includedNames)
+      throws IOException {
+    ListVisitor visitor = new ListVisitor();
+    collector.collect(includedNames, visitor);
+    return visitor.mfs;
+  }
+
+  @Test
+  public void testVisitMatchesCollect() throws IOException {
+    Counter counter = Counter.build().name("c").help("h").labelNames("l").create();
+    counter.labels("a").inc();
+    counter.labels("b").inc(2);
+    Gauge gauge = Gauge.build().name("g").help("h").labelNames("l").maxChildren(1).create();
+    gauge.labels("a").set(3);
+    gauge.labels("b").set(4);
+    Histogram histogram = Histogram.build().name("h").help("h").labelNames("l").buckets(1, 2).create();
+    histogram.labels("a").observe(1.5);
+    histogram.labels("b").observe(5);
+    Histogram sparse = Histogram.build().name("sh").help("h").sparseBuckets(0.1).create();
+    sparse.observe(1);
+    sparse.observe(10);
+    Summary summary = Summary.build().name("s").help("h").labelNames("l")
+        .quantile(0.9, 0.01).quantile(0.5, 0.05).quantile(0.5, 0.01).create();
+    summary.labels("a").observe(1);
+    summary.labels("b").observe(2);
+    Collector custom = new Collector() {
+      public List<MetricFamilySamples> collect() {
+        return Collections.<MetricFamilySamples>singletonList(new GaugeMetricFamily("custom", "h", 1));
+      }
+    };
+    Gauge empty = Gauge.build().name("e").help("h").labelNames("l").create();
+
+    List<Set<String>> filters = Arrays.<Set<String>>asList(
+        Collections.<String>emptySet(),
+        Collections.singleton("c"),
+        Collections.singleton("g_children_rejected_total"),
+        Collections.singleton("h_bucket"),
+        new HashSet<String>(Arrays.asList("h_count", "sh_sum", "s_count")),
+        Collections.singleton("s"),
+        Collections.singleton("e"),
+        Collections.singleton("custom"),
+        Collections.singleton("other"));
+    for (Collector collector : Arrays.asList(counter, gauge, histogram, sparse, summary, custom, empty)) {
+      for (Set<String> filter : filters) {
+        assertEquals(filter.toString(), collector.collect(filter), visit(collector, filter));
+      }
+    }
+  }
 }
@@ -2,11 +2,13 @@ package io.prometheus.client;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import org.junit.After;
 import org.junit.Before;
@@ -101,6 +103,181 @@ public class HistogramTest {
     assertArrayEquals(new double[]{2, 5, 12.5, Double.POSITIVE_INFINITY}, h.getBuckets(), .001);
   }
 
+  private void assertBucketSearch(Class<?> expectedClass, Histogram h) {
+    Histogram.BucketSearch search = h.getBucketSearch();
+    assertEquals(expectedClass, search.getClass());
+    double[] buckets = h.getBuckets();
+    List<Double> values = new ArrayList<Double>();
+    for (double b: buckets) {
+      values.add(b);
+      values.add(Math.nextUp(b));
+      values.add(-Math.nextUp(-b));
+    }
+    for (double v = -10; v < 1000; v += 0.37) {
+      values.add(v);
+    }
+    values.add(Double.NEGATIVE_INFINITY);
+    values.add(Double.MAX_VALUE);
+    for (double v: values) {
+      int expected = 0;
+      while (!(v <= buckets[expected])) {
+        expected++;
+      }
+      assertEquals("value " + v, expected, search.indexOf(v));
+    }
+  }
+
+  @Test
+  public void testBucketSearch() {
+    assertBucketSearch(Histogram.LinearScanBucketSearch.class,
+        Histogram.build().name("h").help("help").buckets(1, 2, 5).create());
+    assertBucketSearch(Histogram.BinaryBucketSearch.class,
+        Histogram.build().name("h").help("help").create());
+    assertBucketSearch(Histogram.BinaryBucketSearch.class,
+        Histogram.build().name("h").help("help").exponentialBuckets(-100, 0.5, 10).create());
+    assertBucketSearch(Histogram.LinearBucketSearch.class,
+        Histogram.build().name("h").help("help").linearBuckets(0.1, 0.1, 60).create());
+    assertBucketSearch(Histogram.LinearBucketSearch.class,
+        Histogram.build().name("h").help("help").linearBuckets(-5, 3, 7).create());
+    assertBucketSearch(Histogram.ExponentialBucketSearch.class,
+        Histogram.build().name("h").help("help").exponentialBuckets(0.001, 1.2, 60).create());
+    assertBucketSearch(Histogram.ExponentialBucketSearch.class,
+        Histogram.build().name("h").help("help").exponentialBuckets(2, 2.5, 3).create());
+    assertBucketSearch(Histogram.BinaryBucketSearch.class,
+        Histogram.build().name("h").help("help").linearBuckets(1, 1, 20).buckets(1, 3, 4, 5, 6, 7, 8, 9, 10).create());
+  }
+
+  @Test
+  public void testSparseBuckets() {
+    Histogram h = Histogram.build().name("sparse").help("help").sparseBuckets(0.1).register(registry);
+    assertNull(h.getBuckets());
+    h.observe(1);
+    h.observe(100);
+    h.observe(105);
+    h.observe(0);
+    h.observe(-3);
+
+    Histogram.Child.Value v = h.labels().get();
+    assertArrayEquals(new double[]{0, Math.pow(1.1, 0), Math.pow(1.1, 49), Double.POSITIVE_INFINITY}, v.upperBounds, 1e-9);
+    assertArrayEquals(new double[]{2, 3, 5, 5}, v.buckets, .001);
+    assertEquals(203.0, v.sum, .001);
+
+    assertEquals(5.0, registry.getSampleValue("sparse_count"), .001);
+    assertEquals(2.0, registry.getSampleValue("sparse_bucket", new String[]{"le"}, new String[]{"0.0"}), .001);
+    assertEquals(3.0, registry.getSampleValue("sparse_bucket", new String[]{"le"}, new String[]{"1.0"}), .001);
+    assertEquals(5.0, registry.getSampleValue("sparse_bucket", new String[]{"le"}, new String[]{"+Inf"}), .001);
+  }
+
+  @Test
+  public void testSparseBucketsRelativeError() {
+    Histogram h = Histogram.build().name("sparse").help("help").sparseBuckets(0.01).maxExportedBuckets(100000).create();
+    double value = 1e-6;
+    while (value < 1e6) {
+      h.observe(value);
+      value *= 1.37;
+    }
+    Histogram.Child.Value v = h.labels().get();
+    assertEquals(Double.POSITIVE_INFINITY, v.upperBounds[v.upperBounds.length - 1], 0);
+    double previousCount = 0;
+    value = 1e-6;
+    for (int i = 0; i < v.upperBounds.length - 1; i++) {
+      // Each observation has its own bucket, whose upper bound is close to it.
+      assertEquals(previousCount + 1, v.buckets[i], .001);
+      assertTrue(v.upperBounds[i] >= value * (1 - 1e-12));
+      assertTrue(v.upperBounds[i] <= value * 1.01 * (1 + 1e-12));
+      previousCount = v.buckets[i];
+      value *= 1.37;
+    }
+  }
+
+  @Test
+  public void testSparseBucketsAreMergedForExport() {
+    Histogram h = Histogram.build().name("sparse").help("help").sparseBuckets(0.01).maxExportedBuckets(10).create();
+    for (int i = 1; i <= 1000; i++) {
+      h.observe(i);
+    }
+    Histogram.Child.Value v = h.labels().get();
+    assertTrue(v.upperBounds.length <= 10);
+    assertEquals(1000.0, v.buckets[v.buckets.length - 1], .001);
+    for (int i = 0; i < v.upperBounds.length - 1; i++) {
+      // Upper bounds are still bounds of the original buckets, and counts are exact.
+      assertTrue(v.upperBounds[i] < v.upperBounds[i + 1]);
+      assertEquals(Math.min(1000, Math.floor(v.upperBounds[i] * (1 + 1e-12))), v.buckets[i], .001);
+    }
+  }
+
+  @Test
+  public void testSparseBucketsOnlyAllocateObservedChunks() {
+    SparseBuckets buckets = new SparseBuckets(0.0001);
+    buckets.observe(1e-300);
+    buckets.observe(1e300);
+    buckets.observe(Double.MAX_VALUE);
+    assertEquals(3, buckets.chunks());
+    buckets.observe(1e300);
+    assertEquals(3, buckets.chunks());
+    SparseBuckets.Snapshot snapshot = buckets.snapshot(64);
+    // The bound of Double.MAX_VALUE's bucket is infinite, so it's only in +Inf.
+    assertArrayEquals(new double[]{1, 3, 4}, snapshot.cumulativeCounts, .001);
+  }
+
+  @Test
+  public void testSparseBucketsMergedIntoFewBuckets() {
+    for (int maxBuckets = 3; maxBuckets <= 5; maxBuckets++) {
+      Histogram h = Histogram.build().name("sparse").help("help").sparseBuckets(0.01).maxExportedBuckets(maxBuckets).create();
+      h.observe(0);
+      h.observe(0.5);
+      h.observe(2);
+      h.observe(1e-300);
+      h.observe(1e300);
+      Histogram.Child.Value v = h.labels().get();
+      assertTrue(v.upperBounds.length <= maxBuckets);
+      assertEquals(0.0, v.upperBounds[0], 0);
+      assertEquals(Double.POSITIVE_INFINITY, v.upperBounds[v.upperBounds.length - 1], 0);
+      assertEquals(5.0, v.buckets[v.buckets.length - 1], .001);
+      for (int i = 1; i < v.upperBounds.length; i++) {
+        assertTrue(v.upperBounds[i - 1] < v.upperBounds[i]);
+        assertTrue(v.buckets[i - 1] <= v.buckets[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testSparseBucketsWithHugeValues() {
+    Histogram h = Histogram.build().name("sparse").help("help").sparseBuckets(0.0001).register(registry);
+    h.observe(1);
+    h.observe(Double.MAX_VALUE);
+    h.observe(Double.POSITIVE_INFINITY);
+    h.observe(Double.POSITIVE_INFINITY);
+
+    Histogram.Child.Value v = h.labels().get();
+    assertEquals(Double.POSITIVE_INFINITY, v.upperBounds[v.upperBounds.length - 1], 0);
+    assertEquals(4.0, v.buckets[v.buckets.length - 1], .001);
+    for (int i = 0; i < v.upperBounds.length - 1; i++) {
+      // Only finite observations are in finite buckets.
+      assertTrue(v.buckets[i] <= 2);
+    }
+    assertEquals(4.0, registry.getSampleValue("sparse_count"), .001);
+    assertEquals(1.0, registry.getSampleValue("sparse_bucket", new String[]{"le"}, new String[]{"1.0"}), .001);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testSparseBucketsInvalidRelativeError() {
+    Histogram.build().name("sparse").help("help").sparseBuckets(0);
+  }
+
+  @Test
+  public void testBucketsReplaceSparseBuckets() {
+    Histogram h = Histogram.build().name("h").help("help").sparseBuckets(0.1).buckets(1, 2).create();
+    assertArrayEquals(new double[]{1, 2, Double.POSITIVE_INFINITY}, h.getBuckets(), .001);
+  }
+
+  @Test
+  public void testNaNIsNotInAnyBucket() {
+    noLabels.observe(Double.NaN);
+    assertEquals(0.0, getCount(), .001);
+    assertEquals(0.0, getBucket(Double.POSITIVE_INFINITY), .001);
+  }
+
   @Test
   public void testTimer() {
     SimpleTimer.defaultTimeProvider = new SimpleTimer.TimeProvider() {
@@ -205,4 +382,15 @@ public class HistogramTest {
     assertTrue(Modifier.isPublic(Histogram.Child.Value.class.getField("buckets").getModifiers()));
   }
 
+  @Test
+  public void testCollectIncludedNames() {
+    labels.labels("a").observe(2);
+    List<Collector.MetricFamilySamples> mfs = labels.collect(Collections.singleton("labels_count"));
+    assertEquals(1, mfs.size());
+    assertEquals(1, mfs.get(0).samples.size());
+    assertEquals("labels_count", mfs.get(0).samples.get(0).name);
+    assertEquals(1.0, mfs.get(0).samples.get(0).value, .001);
+
+    assertEquals(0, labels.collect(Collections.singleton("other")).size());
+  }
 }
@@ -0,0 +1,94 @@
+package io.prometheus.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+
+public class LogBucketQuantilesTest {
+
+  private static final double[] QUANTILES = {0.0, 0.1, 0.5, 0.9, 0.99, 0.999, 1.0};
+
+  private static void assertQuantiles(double[] sorted, QuantileEstimator estimator, double relativeError) {
+    for (double q : QUANTILES) {
+      double expected = sorted[(int)(q * (sorted.length - 1))];
+      assertEquals("quantile " + q, expected, estimator.get(q), Math.abs(expected) * relativeError);
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    assertTrue(Double.isNaN(new LogBucketQuantiles(0.01).get(0.5)));
+  }
+
+  @Test
+  public void testRelativeErrorWithinBounds() {
+    Random random = new Random(0);
+    double[] values = new double[100000];
+    LogBucketQuantiles estimator = new LogBucketQuantiles(0.01);
+    for (int i = 0; i < values.length; i++) {
+      // Spans several orders of magnitude.
+      values[i] = Math.exp(random.nextGaussian() * 3);
+      estimator.insert(values[i]);
+    }
+    Arrays.sort(values);
+    assertQuantiles(values, estimator, 0.01);
+  }
+
+  @Test
+  public void testNegativeAndZeroValues() {
+    Random random = new Random(0);
+    double[] values = new double[10000];
+    LogBucketQuantiles estimator = new LogBucketQuantiles(0.02);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i % 10 == 0 ? 0 : random.nextGaussian() * 100;
+      estimator.insert(values[i]);
+    }
+    Arrays.sort(values);
+    assertQuantiles(values, estimator, 0.02);
+  }
+
+  @Test
+  public void testNaNIgnored() {
+    LogBucketQuantiles estimator = new LogBucketQuantiles(0.01);
+    estimator.insert(Double.NaN);
+    assertTrue(Double.isNaN(estimator.get(0.5)));
+    estimator.insert(5);
+    assertEquals(5, estimator.get(0.5), 0.05);
+  }
+
+  @Test
+  public void testMergeIsExact() {
+    Random random = new Random(0);
+    LogBucketQuantiles all = new LogBucketQuantiles(0.01);
+    LogBucketQuantiles[] parts = new LogBucketQuantiles[3];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = all.newEstimator();
+    }
+    for (int i = 0; i < 30000; i++) {
+      double value = random.nextGaussian() * 10 + i % parts.length * 50;
+      all.insert(value);
+      parts[i % parts.length].insert(value);
+    }
+    QuantileEstimator merged = all.merge(parts);
+    for (double q : QUANTILES) {
+      assertEquals(all.get(q), merged.get(q), 0.0);
+    }
+  }
+
+  @Test
+  public void testLowestBucketsCollapse() {
+    LogBucketQuantiles estimator = new LogBucketQuantiles(0.01);
+    // 1e-30 and 1e10 are more than MAX_BUCKETS buckets apart.
+    estimator.insert(1e-30);
+    estimator.insert(1);
+    estimator.insert(1e10);
+    // The smallest value is merged into the lowest bucket kept, the others are unaffected.
+    assertTrue(estimator.get(0.0) > 1e-10);
+    assertEquals(1, estimator.get(0.5), 0.01);
+    assertEquals(1e10, estimator.get(1.0), 1e8);
+  }
+}
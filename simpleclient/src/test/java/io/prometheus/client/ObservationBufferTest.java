@@ -0,0 +1,92 @@
+package io.prometheus.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+
+public class ObservationBufferTest {
+
+  static class SummingBuffer extends ObservationBuffer {
+    long count;
+    double sum;
+
+    @Override
+    void consume(double[] values, int count) {
+      for (int i = 0; i < count; i++) {
+        this.count++;
+        sum += values[i];
+      }
+    }
+  }
+
+  @Test
+  public void testDrainReturnsAllObservations() {
+    SummingBuffer buffer = new SummingBuffer();
+    for (int i = 1; i <= 1000; i++) {
+      buffer.add(i);
+    }
+    buffer.drain();
+    assertEquals(1000, buffer.count);
+    assertEquals(500500.0, buffer.sum, 0.0);
+    buffer.drain();
+    assertEquals(1000, buffer.count);
+  }
+
+  @Test
+  public void testWritersLeaveQueuedBuffersToTheBackgroundDrain() {
+    final Thread writer = Thread.currentThread();
+    final AtomicBoolean consumedByWriter = new AtomicBoolean();
+    SummingBuffer buffer = new SummingBuffer() {
+      @Override
+      void consume(double[] values, int count) {
+        if (Thread.currentThread() == writer) {
+          consumedByWriter.set(true);
+        }
+        super.consume(values, count);
+      }
+    };
+    for (int i = 0; i < ObservationBuffer.BUFFER_SIZE * (ObservationBuffer.MAX_QUEUED + 2); i++) {
+      buffer.add(1);
+    }
+    assertFalse(consumedByWriter.get());
+    buffer.drain();
+    assertEquals(ObservationBuffer.BUFFER_SIZE * (ObservationBuffer.MAX_QUEUED + 2), buffer.count);
+  }
+
+  @Test
+  public void testNoObservationsLostUnderConcurrentDrains() throws InterruptedException {
+    final SummingBuffer buffer = new SummingBuffer();
+    final int nThreads = 8;
+    final int nSamples = 200000;
+    Thread[] threads = new Thread[nThreads];
+    for (int t = 0; t < nThreads; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 1; i <= nSamples; i++) {
+            buffer.add(i);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    boolean running = true;
+    while (running) {
+      buffer.drain();
+      running = false;
+      for (Thread thread : threads) {
+        running |= thread.isAlive();
+      }
+    }
+    buffer.drain();
+    // A drain that falls far behind the writers discards the oldest buffers rather than blocking them.
+    assertEquals((long)nThreads * nSamples, buffer.count + buffer.dropped());
+    if (buffer.dropped() == 0) {
+      assertEquals(nThreads * (nSamples * (nSamples + 1.0) / 2), buffer.sum, 0.0);
+    }
+  }
+}
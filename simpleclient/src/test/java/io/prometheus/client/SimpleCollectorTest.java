@@ -3,6 +3,8 @@ package io.prometheus.client;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import org.junit.Test;
 import org.junit.Before;
@@ -61,6 +63,131 @@ public class SimpleCollectorTest {
     assertEquals(1.0, getValue("b").doubleValue(), .001);
   }
 
+  @Test
+  public void testLabelsReturnsSameChild() {
+    Gauge.Child a = metric.labels("a");
+    assertSame(a, metric.labels("a"));
+    assertSame(a, metric.labels(new String[]{"a"}));
+    assertNotSame(a, metric.labels("b"));
+  }
+
+  @Test
+  public void testFixedArityLabels() {
+    Gauge two = Gauge.build().name("two").help("help").labelNames("l1", "l2").register(registry);
+    Gauge three = Gauge.build().name("three").help("help").labelNames("l1", "l2", "l3").register(registry);
+    two.labels("a", "b").set(2);
+    three.labels("a", "b", "c").set(3);
+    assertSame(two.labels("a", "b"), two.labels(new String[]{"a", "b"}));
+    assertSame(three.labels("a", "b", "c"), three.labels(new String[]{"a", "b", "c"}));
+    assertNotSame(two.labels("a", "b"), two.labels("b", "a"));
+    assertEquals(2.0, registry.getSampleValue("two", new String[]{"l1", "l2"}, new String[]{"a", "b"}), .001);
+    assertEquals(3.0, registry.getSampleValue("three", new String[]{"l1", "l2", "l3"}, new String[]{"a", "b", "c"}), .001);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testFixedArityWrongNumberOfLabelsThrows() {
+    metric.labels("a", "b");
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testFixedArityNullLabelThrows() {
+    metric.labels((String)null);
+  }
+
+  @Test
+  public void testLabelsAfterRemoveAndManyChildren() {
+    for (int i = 0; i < 1000; i++) {
+      metric.labels("v" + i).set(i);
+    }
+    Gauge.Child old = metric.labels("v500");
+    metric.remove("v500");
+    assertNull(getValue("v500"));
+    assertNotSame(old, metric.labels("v500"));
+    for (int i = 0; i < 1000; i++) {
+      assertSame(metric.labels("v" + i), metric.labels(new String[]{"v" + i}));
+    }
+    assertEquals(999.0, getValue("v999").doubleValue(), .001);
+  }
+
+  @Test
+  public void testSetChildIsReturnedByLabels() {
+    Gauge.Child child = new Gauge.Child();
+    metric.setChild(child, "a");
+    assertSame(child, metric.labels("a"));
+  }
+
+  enum Method {
+    GET, POST;
+
+    @Override
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  @Test
+  public void testEnumAndIntLabels() {
+    Counter requests = Counter.build().name("requests").help("help")
+        .labelNames("method", "code")
+        .enumLabel("method", Method.class)
+        .intLabel("code", 100, 599)
+        .register(registry);
+    requests.labels(Method.GET, 200).inc();
+    requests.labels(Method.GET, 200).inc();
+    requests.labels(Method.POST, 500).inc();
+    assertSame(requests.labels(Method.GET, 200), requests.labels("get", "200"));
+    assertEquals(2.0, registry.getSampleValue("requests", new String[]{"method", "code"}, new String[]{"get", "200"}), .001);
+    assertEquals(1.0, registry.getSampleValue("requests", new String[]{"method", "code"}, new String[]{"post", "500"}), .001);
+    assertNull(registry.getSampleValue("requests", new String[]{"method", "code"}, new String[]{"post", "200"}));
+  }
+
+  @Test
+  public void testIndexedLabelsAfterRemoveAndSetChild() {
+    Gauge g = Gauge.build().name("g").help("help").labelNames("m").enumLabel("m", Method.class).register(registry);
+    Gauge.Child old = g.labels(Method.POST);
+    g.remove("post");
+    assertNotSame(old, g.labels(Method.POST));
+    Gauge.Child child = new Gauge.Child();
+    g.setChild(child, "post");
+    assertSame(child, g.labels(Method.POST));
+    g.clear();
+    assertNotSame(child, g.labels(Method.POST));
+  }
+
+  @Test
+  public void testIntLabels() {
+    Gauge g = Gauge.build().name("g").help("help").labelNames("a", "b").intLabel("a", -1, 1).intLabel("b", 0, 9).register(registry);
+    g.labels(-1, 9).set(1);
+    g.labels(1, 0).set(2);
+    assertEquals(1.0, registry.getSampleValue("g", new String[]{"a", "b"}, new String[]{"-1", "9"}), .001);
+    assertEquals(2.0, registry.getSampleValue("g", new String[]{"a", "b"}, new String[]{"1", "0"}), .001);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testIntLabelOutOfRangeThrows() {
+    Gauge.build().name("g").help("help").labelNames("a").intLabel("a", 0, 9).create().labels(10);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testIndexedLabelsNotDeclaredThrows() {
+    metric.labels(Method.GET);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testWrongEnumThrows() {
+    Gauge.build().name("g").help("help").labelNames("a").enumLabel("a", Method.class).create().labels(Collector.Type.GAUGE);
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void testEnumLabelNotInLabelNamesThrows() {
+    Gauge.build().name("g").help("help").labelNames("a").enumLabel("b", Method.class).create();
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void testTooManyIndexedChildrenThrows() {
+    Gauge.build().name("g").help("help").labelNames("a", "b").intLabel("a", 0, 999).intLabel("b", 0, 999).create();
+  }
+
   @Test
   public void testNoLabelsWorkAfterRemove() {
     noLabels.inc(1);
@@ -83,6 +210,22 @@ public class SimpleCollectorTest {
     assertEquals(1.0, getValue("a").doubleValue(), .001);
   }
 
+  private Collector.CachingLabelValues childLabelValues() {
+    return (Collector.CachingLabelValues) metric.collect().get(0).samples.get(0).labelValues;
+  }
+
+  @Test
+  public void testSerializedLabelsKeptUntilRemove() {
+    metric.labels("a").set(7);
+    childLabelValues().setSerialized("serialized");
+    metric.labels("a").inc();
+    assertEquals("serialized", childLabelValues().getSerialized());
+
+    metric.remove("a");
+    metric.labels("a").inc();
+    assertNull(childLabelValues().getSerialized());
+  }
+
   @Test
   public void testNoLabelsWorkAfterClear() {
     noLabels.inc(1);
@@ -122,6 +265,137 @@ public class SimpleCollectorTest {
     Gauge.build().name("a").labelNames("__name__").help("h").create();
   }
 
+  @Test
+  public void testMaxChildrenWithOverflowLabelValues() {
+    Counter limited = Counter.build().name("limited").help("help").labelNames("path")
+        .maxChildren(2).overflowLabelValues("other").register(registry);
+    limited.labels("/a").inc();
+    limited.labels("/b").inc();
+    limited.labels("/c").inc();
+    limited.labels("/d").inc(2);
+    limited.labels("/a").inc();
+    assertEquals(2.0, registry.getSampleValue("limited", new String[]{"path"}, new String[]{"/a"}), .001);
+    assertEquals(1.0, registry.getSampleValue("limited", new String[]{"path"}, new String[]{"/b"}), .001);
+    assertNull(registry.getSampleValue("limited", new String[]{"path"}, new String[]{"/c"}));
+    assertEquals(3.0, registry.getSampleValue("limited", new String[]{"path"}, new String[]{"other"}), .001);
+    assertEquals(2.0, registry.getSampleValue("limited_children_rejected_total"), .001);
+    assertSame(limited.labels("other"), limited.labels("/e"));
+
+    // Removing a child makes room for a new one.
+    limited.remove("/b");
+    limited.labels("/c").inc();
+    assertEquals(1.0, registry.getSampleValue("limited", new String[]{"path"}, new String[]{"/c"}), .001);
+    assertNotSame(limited.labels("other"), limited.labels("/c"));
+  }
+
+  @Test
+  public void testMaxChildrenDropsWithoutOverflowLabelValues() {
+    Counter limited = Counter.build().name("limited").help("help").labelNames("path")
+        .maxChildren(1).register(registry);
+    limited.labels("/a").inc();
+    limited.labels("/b").inc(5);
+    assertEquals(1.0, registry.getSampleValue("limited", new String[]{"path"}, new String[]{"/a"}), .001);
+    assertNull(registry.getSampleValue("limited", new String[]{"path"}, new String[]{"/b"}));
+    assertEquals(1, limited.collect().get(0).samples.size());
+    assertEquals(1.0, registry.getSampleValue("limited_children_rejected_total"), .001);
+  }
+
+  @Test
+  public void testMaxChildrenWithIndexedLabels() {
+    Counter limited = Counter.build().name("limited").help("help").labelNames("code")
+        .intLabel("code", 200, 599).maxChildren(1).overflowLabelValues("0").register(registry);
+    limited.labels(200).inc();
+    limited.labels(404).inc();
+    assertEquals(1.0, registry.getSampleValue("limited", new String[]{"code"}, new String[]{"0"}), .001);
+    limited.remove("200");
+    limited.labels(404).inc();
+    assertEquals(1.0, registry.getSampleValue("limited", new String[]{"code"}, new String[]{"404"}), .001);
+  }
+
+  @Test
+  public void testMaxChildrenWithIndexedLabelsAddedByString() {
+    Counter limited = Counter.build().name("limited").help("help").labelNames("code")
+        .intLabel("code", 200, 599).maxChildren(1).register(registry);
+    Counter.Child child = limited.labels("404");
+    // At the limit, but the child exists so it's found by index too.
+    assertSame(child, limited.labels(404));
+    assertSame(limited.labels(500), limited.labels(501));
+    assertNotSame(child, limited.labels(500));
+    assertEquals(3.0, registry.getSampleValue("limited_children_rejected_total"), .001);
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void testOverflowLabelValuesCountMustMatch() {
+    Counter.build().name("limited").help("help").labelNames("a", "b").maxChildren(1).overflowLabelValues("other").create();
+  }
+
+  @Test
+  public void testIdleChildrenExpire() {
+    Counter expiring = Counter.build().name("expiring").help("help").labelNames("pod")
+        .expireIdleChildrenAfterSeconds(60).register(registry);
+    Counter.Child callback = new Counter.Child() {
+      @Override
+      public double get() {
+        return 42;
+      }
+    };
+    expiring.setChild(callback, "callback");
+    long start = System.currentTimeMillis();
+    expiring.labels("busy").inc();
+    expiring.labels("idle").inc();
+
+    // Too soon after the previous sweep, nothing happens.
+    expiring.expireIdleChildren(start + 30000);
+    // Everything was used since the previous sweep.
+    expiring.expireIdleChildren(start + 61000);
+    assertEquals(1.0, registry.getSampleValue("expiring", new String[]{"pod"}, new String[]{"idle"}), .001);
+
+    expiring.labels("busy").inc();
+    expiring.expireIdleChildren(start + 122000);
+    assertNull(registry.getSampleValue("expiring", new String[]{"pod"}, new String[]{"idle"}));
+    assertEquals(2.0, registry.getSampleValue("expiring", new String[]{"pod"}, new String[]{"busy"}), .001);
+    assertEquals(42.0, registry.getSampleValue("expiring", new String[]{"pod"}, new String[]{"callback"}), .001);
+
+    // Used again, starts from zero.
+    expiring.labels("idle").inc();
+    assertEquals(1.0, registry.getSampleValue("expiring", new String[]{"pod"}, new String[]{"idle"}), .001);
+  }
+
+  @Test
+  public void testHeldChildrenDoNotExpireWhileUpdated() {
+    Counter expiring = Counter.build().name("expiring").help("help").labelNames("pod")
+        .expireIdleChildrenAfterSeconds(60).register(registry);
+    Counter.Child held = expiring.labels("held");
+    long start = System.currentTimeMillis();
+    for (int i = 1; i <= 3; i++) {
+      held.inc();
+      expiring.expireIdleChildren(start + i * 61000);
+    }
+    assertSame(held, expiring.labels("held"));
+    assertEquals(3.0, registry.getSampleValue("expiring", new String[]{"pod"}, new String[]{"held"}), .001);
+
+    // Once no longer updated, it expires.
+    expiring.expireIdleChildren(start + 4 * 61000);
+    expiring.expireIdleChildren(start + 5 * 61000);
+    assertNull(registry.getSampleValue("expiring", new String[]{"pod"}, new String[]{"held"}));
+  }
+
+  @Test
+  public void testIdleIndexedChildrenExpire() {
+    Counter expiring = Counter.build().name("expiring").help("help").labelNames("code")
+        .intLabel("code", 200, 599).expireIdleChildrenAfterSeconds(60).register(registry);
+    long start = System.currentTimeMillis();
+    expiring.labels(200).inc();
+    expiring.labels(500).inc();
+    expiring.expireIdleChildren(start + 61000);
+    expiring.labels(200).inc();
+    expiring.expireIdleChildren(start + 122000);
+    assertEquals(2.0, registry.getSampleValue("expiring", new String[]{"code"}, new String[]{"200"}), .001);
+    assertNull(registry.getSampleValue("expiring", new String[]{"code"}, new String[]{"500"}));
+    expiring.labels(500).inc();
+    assertEquals(1.0, registry.getSampleValue("expiring", new String[]{"code"}, new String[]{"500"}), .001);
+  }
+
   @Test
   public void testSetChild() {
     metric.setChild(new Gauge.Child(){
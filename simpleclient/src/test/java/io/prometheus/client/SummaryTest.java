@@ -7,7 +7,10 @@ import org.junit.Test;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.SortedMap;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
@@ -78,6 +81,11 @@ public class SummaryTest {
       // because that makes it easy to verify if the quantiles are correct.
       labelsAndQuantiles.labels("a").observe(i);
       noLabelsAndQuantiles.observe(i);
+      if (i % 10000 == 0) {
+        // Scrape now and then, as observations that queue up without one are discarded.
+        getNoLabelQuantile(0.5);
+        getLabeledQuantile("a", 0.5);
+      }
     }
     assertEquals(getNoLabelQuantile(0.5), 0.5 * nSamples, 0.05 * nSamples);
     assertEquals(getNoLabelQuantile(0.9), 0.9 * nSamples, 0.01 * nSamples);
@@ -88,6 +96,64 @@ public class SummaryTest {
     assertEquals(getLabeledQuantile("a", 0.99), 0.99 * nSamples, 0.001 * nSamples);
   }
 
+  @Test
+  public void testLogBucketsQuantileEngine() {
+    Summary summary = Summary.build()
+            .quantile(0.5, 0.05)
+            .quantile(0.99, 0.001)
+            .quantileEngine(Summary.QuantileEngine.LOG_BUCKETS)
+            .quantileRelativeError(0.02)
+            .name("log_buckets").help("help").register(registry);
+    int nSamples = 100000;
+    for (int i = 1; i <= nSamples; i++) {
+      summary.observe(i);
+      if (i % 10000 == 0) {
+        summary.get();
+      }
+    }
+    SortedMap<Double, Double> quantiles = summary.get().quantiles;
+    assertEquals(0.5 * nSamples, quantiles.get(0.5), 0.02 * 0.5 * nSamples);
+    assertEquals(0.99 * nSamples, quantiles.get(0.99), 0.02 * 0.99 * nSamples);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testQuantileRelativeErrorOutOfRange() {
+    Summary.build().quantileRelativeError(0.9);
+  }
+
+  @Test
+  public void testConcurrentObservations() throws InterruptedException {
+    final int nThreads = 8;
+    final int nSamples = 100000;
+    Thread[] threads = new Thread[nThreads];
+    for (int t = 0; t < nThreads; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 1; i <= nSamples; i++) {
+            // Scrambled, so the observations kept if the drain falls far behind are still representative.
+            noLabelsAndQuantiles.observe(1 + i * 7919L % nSamples);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    // Scrape while observations are still coming in.
+    boolean running = true;
+    while (running) {
+      getNoLabelQuantile(0.5);
+      running = false;
+      for (Thread thread : threads) {
+        running |= thread.isAlive();
+      }
+    }
+    assertEquals(nThreads * nSamples, registry.getSampleValue("no_labels_and_quantiles_count"), 0.0);
+    // The interleaved streams aren't sorted, allow for twice the targeted error.
+    assertEquals(0.5 * nSamples, getNoLabelQuantile(0.5), 0.1 * nSamples);
+    assertEquals(0.9 * nSamples, getNoLabelQuantile(0.9), 0.02 * nSamples);
+    assertEquals(0.99 * nSamples, getNoLabelQuantile(0.99), 0.002 * nSamples);
+  }
+
   @Test
   public void testMaxAge() throws InterruptedException {
     Summary summary = Summary.build()
@@ -210,4 +276,18 @@ public class SummaryTest {
     assertTrue(Modifier.isPublic(Summary.Child.Value.class.getField("sum").getModifiers()));
     assertTrue(Modifier.isPublic(Summary.Child.Value.class.getField("quantiles").getModifiers()));
   }
+
+  @Test
+  public void testCollectIncludedNames() {
+    labelsAndQuantiles.labels("a").observe(2);
+    List<Collector.MetricFamilySamples> mfs = labelsAndQuantiles.collect(
+        new HashSet<String>(asList("labels_and_quantiles_count", "labels_and_quantiles_sum")));
+    assertEquals(1, mfs.size());
+    List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<Collector.MetricFamilySamples.Sample>();
+    samples.add(new Collector.MetricFamilySamples.Sample("labels_and_quantiles_count", asList("l"), asList("a"), 1.0));
+    samples.add(new Collector.MetricFamilySamples.Sample("labels_and_quantiles_sum", asList("l"), asList("a"), 2.0));
+    assertEquals(samples, mfs.get(0).samples);
+
+    assertEquals(3, labelsAndQuantiles.collect(Collections.singleton("labels_and_quantiles")).get(0).samples.size());
+  }
 }
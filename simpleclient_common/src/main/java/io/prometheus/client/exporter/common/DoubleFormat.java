@@ -0,0 +1,288 @@
+package io.prometheus.client.exporter.common;
+
+// The conversion to decimal is ported from Raffaello Giulietti's reference implementation of Schubfach,
+// https://github.com/c4f7fcce9cb06515/Schubfach, java/src/math/DoubleToDecimal.java.
+//
+// This is the original algorithm except for the following modifications:
+//
+//  - Changed the package name, and made the class package private.
+//  - Compute the g1 and g0 tables with BigInteger when the class is loaded, rather than
+//    listing them in MathUtils.
+//  - Implement multiplyHigh, as Math.multiplyHigh needs Java 9.
+//  - Write the digits into a char array rather than a String or Appendable.
+//  - Format integral values below 2^53 directly, and write infinities and NaN as Go does.
+
+/*
+ Copyright 2018-2020 Raffaello Giulietti
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in
+ all copies or substantial portions of the Software.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ THE SOFTWARE.
+*/
+
+import java.math.BigInteger;
+
+/**
+ * Formats doubles as {@link io.prometheus.client.Collector#doubleToGoString} does, into a char array.
+ * <p>
+ * Values get the shortest decimal that parses back to the same double, using the Schubfach algorithm
+ * (Raffaello Giulietti, "The Schubfach way to render doubles"), with the layout of {@link Double#toString}.
+ * This is what Double.toString returns since Java 19, older versions sometimes return more digits.
+ * Integral values below 2<sup>53</sup>, such as counts, are written without floating point arithmetic.
+ */
+final class DoubleFormat {
+  /**
+   * The most chars {@link #format} writes.
+   */
+  static final int MAX_LENGTH = 24;
+
+  private static final int P = 53;  // Precision of a double.
+  private static final int Q_MIN = -1074;
+  private static final long C_MIN = 1L << (P - 1);
+  private static final int BQ_MASK = 0x7ff;
+  private static final long T_MASK = (1L << (P - 1)) - 1;
+  private static final long MASK_63 = (1L << 63) - 1;
+
+  private static final int K_MIN = -324;
+  private static final int K_MAX = 292;
+  // g1 and g0 are the high and low 63 bits of floor(10^-k 2^-r) + 1, with r = flog2pow10(-k) - 125.
+  private static final long[] G1 = new long[K_MAX - K_MIN + 1];
+  private static final long[] G0 = new long[K_MAX - K_MIN + 1];
+
+  static {
+    BigInteger mask63 = BigInteger.valueOf(MASK_63);
+    for (int k = K_MIN; k <= K_MAX; k++) {
+      int r = flog2pow10(-k) - 125;
+      BigInteger g;
+      if (k <= 0) {
+        BigInteger pow10 = BigInteger.TEN.pow(-k);
+        g = r <= 0 ? pow10.shiftLeft(-r) : pow10.shiftRight(r);
+      } else {
+        g = BigInteger.ONE.shiftLeft(-r).divide(BigInteger.TEN.pow(k));
+      }
+      g = g.add(BigInteger.ONE);
+      G1[k - K_MIN] = g.shiftRight(63).longValue();
+      G0[k - K_MIN] = g.and(mask63).longValue();
+    }
+  }
+
+  private DoubleFormat() {
+  }
+
+  /**
+   * Write d to buf at offset, which must have room for {@link #MAX_LENGTH} chars. Returns the offset after it.
+   */
+  static int format(double d, char[] buf, int offset) {
+    if (d == Double.POSITIVE_INFINITY) {
+      return write("+Inf", buf, offset);
+    }
+    if (d == Double.NEGATIVE_INFINITY) {
+      return write("-Inf", buf, offset);
+    }
+    if (Double.isNaN(d)) {
+      return write("NaN", buf, offset);
+    }
+    long bits = Double.doubleToRawLongBits(d);
+    if (bits < 0) {
+      buf[offset++] = '-';
+    }
+    long t = bits & T_MASK;
+    int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+    if (bq != 0) {
+      int mq = -Q_MIN + 1 - bq;
+      long c = C_MIN | t;
+      if (0 < mq && mq < P) {
+        long f = c >> mq;
+        if (f << mq == c) {
+          // An integer.
+          return writeDecimal(f, 0, buf, offset);
+        }
+      }
+      return toDecimal(-mq, c, 0, buf, offset);
+    }
+    if (t != 0) {
+      // Subnormal. The two smallest have too few digits for the algorithm, so are scaled up by 10.
+      return t < 3 ? toDecimal(Q_MIN, 10 * t, -1, buf, offset) : toDecimal(Q_MIN, t, 0, buf, offset);
+    }
+    return write("0.0", buf, offset);
+  }
+
+  /**
+   * Writes the shortest decimal in the rounding interval of c 2^q.
+   */
+  private static int toDecimal(int q, long c, int dk, char[] buf, int offset) {
+    int out = (int) c & 1;
+    long cb = c << 2;
+    long cbr = cb + 2;
+    long cbl;
+    int k;
+    if (c != C_MIN || q == Q_MIN) {
+      cbl = cb - 2;
+      k = flog10pow2(q);
+    } else {
+      // The interval below a power of two is half as wide.
+      cbl = cb - 1;
+      k = flog10threeQuartersPow2(q);
+    }
+    int h = q + flog2pow10(-k) + 2;
+    long g1 = G1[k - K_MIN];
+    long g0 = G0[k - K_MIN];
+    long vb = rop(g1, g0, cb << h);
+    long vbl = rop(g1, g0, cbl << h);
+    long vbr = rop(g1, g0, cbr << h);
+
+    long s = vb >> 2;
+    if (s >= 100) {
+      // Try one digit fewer.
+      long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+      long tp10 = sp10 + 10;
+      boolean upin = vbl + out <= sp10 << 2;
+      boolean wpin = (tp10 << 2) + out <= vbr;
+      if (upin != wpin) {
+        return writeDecimal(upin ? sp10 : tp10, k, buf, offset);
+      }
+    }
+    long t = s + 1;
+    boolean uin = vbl + out <= s << 2;
+    boolean win = (t << 2) + out <= vbr;
+    if (uin != win) {
+      return writeDecimal(uin ? s : t, k + dk, buf, offset);
+    }
+    // Both are in the interval, take the closest.
+    long cmp = vb - ((s + t) << 1);
+    return writeDecimal(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk, buf, offset);
+  }
+
+  /**
+   * g cp / 2^127 for g = g1 2^63 + g0, rounded to odd.
+   */
+  private static long rop(long g1, long g0, long cp) {
+    long x1 = multiplyHigh(g0, cp);
+    long y0 = g1 * cp;
+    long y1 = multiplyHigh(g1, cp);
+    long z = (y0 >>> 1) + x1;
+    long vbp = y1 + (z >>> 63);
+    return vbp | (z & MASK_63) + MASK_63 >>> 63;
+  }
+
+  /**
+   * The high 64 bits of the product of two non-negative longs.
+   */
+  private static long multiplyHigh(long x, long y) {
+    long x1 = x >>> 32;
+    long x0 = x & 0xffffffffL;
+    long y1 = y >>> 32;
+    long y0 = y & 0xffffffffL;
+    long p00 = x0 * y0;
+    long p01 = x0 * y1;
+    long p10 = x1 * y0;
+    long p11 = x1 * y1;
+    long middle = (p00 >>> 32) + (p01 & 0xffffffffL) + (p10 & 0xffffffffL);
+    return p11 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+  }
+
+  // floor(e log10(2))
+  private static int flog10pow2(int e) {
+    return (int) (e * 661971961083L >> 41);
+  }
+
+  // floor(e log10(2) + log10(3/4))
+  private static int flog10threeQuartersPow2(int e) {
+    return (int) (e * 661971961083L - 274743187321L >> 41);
+  }
+
+  // floor(e log2(10))
+  private static int flog2pow10(int e) {
+    return (int) (e * 913124641741L >> 38);
+  }
+
+  /**
+   * Writes f 10^e, with f &gt; 0, as Double.toString lays it out.
+   */
+  private static int writeDecimal(long f, int e, char[] buf, int offset) {
+    while (f % 10 == 0) {
+      f /= 10;
+      e++;
+    }
+    // The digits of f, towards the end of the room in buf so they can be moved into place. A sign is already
+    // written, so that's at most MAX_LENGTH - 1 after offset.
+    int end = offset + MAX_LENGTH - 1;
+    int start = end;
+    do {
+      buf[--start] = (char) ('0' + f % 10);
+      f /= 10;
+    } while (f != 0);
+    int digits = end - start;
+    int exponent = e + digits - 1;  // Of the first digit.
+
+    if (exponent >= 7 || exponent < -3) {
+      // Computerized scientific notation, such as 1.5E-4.
+      buf[offset++] = buf[start];
+      buf[offset++] = '.';
+      if (digits == 1) {
+        buf[offset++] = '0';
+      } else {
+        System.arraycopy(buf, start + 1, buf, offset, digits - 1);
+        offset += digits - 1;
+      }
+      buf[offset++] = 'E';
+      if (exponent < 0) {
+        buf[offset++] = '-';
+        exponent = -exponent;
+      }
+      if (exponent >= 100) {
+        buf[offset++] = (char) ('0' + exponent / 100);
+      }
+      if (exponent >= 10) {
+        buf[offset++] = (char) ('0' + exponent / 10 % 10);
+      }
+      buf[offset++] = (char) ('0' + exponent % 10);
+      return offset;
+    }
+    if (exponent < 0) {
+      buf[offset++] = '0';
+      buf[offset++] = '.';
+      for (int i = exponent; i < -1; i++) {
+        buf[offset++] = '0';
+      }
+      System.arraycopy(buf, start, buf, offset, digits);
+      return offset + digits;
+    }
+    int integerDigits = exponent + 1;
+    if (digits <= integerDigits) {
+      System.arraycopy(buf, start, buf, offset, digits);
+      offset += digits;
+      for (int i = digits; i < integerDigits; i++) {
+        buf[offset++] = '0';
+      }
+      buf[offset++] = '.';
+      buf[offset++] = '0';
+      return offset;
+    }
+    // Moves the fraction up by one for the point, the digits are far enough along not to be overwritten.
+    System.arraycopy(buf, start, buf, offset, integerDigits);
+    offset += integerDigits;
+    buf[offset++] = '.';
+    System.arraycopy(buf, start + integerDigits, buf, offset, digits - integerDigits);
+    return offset + digits - integerDigits;
+  }
+
+  private static int write(String s, char[] buf, int offset) {
+    s.getChars(0, s.length(), buf, offset);
+    return offset + s.length();
+  }
+}
@@ -0,0 +1,165 @@
+package io.prometheus.client.exporter.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * Render all the metrics in a registry in the text format at a fixed interval, so scrapes can be answered with the
+ * latest rendering rather than collecting while they wait.
+ * <p>
+ * Each rendering is kept both as is and gzipped. It ends with a {@value #TIMESTAMP_METRIC} gauge of when it was
+ * started, so <code>time() - exposition_snapshot_timestamp_seconds</code> is how old the metrics served are. If a
+ * rendering fails the previous one is kept, and gets older.
+ * <p>
+ * <pre>
+ * {@code
+ *  SnapshotRenderer snapshots = new SnapshotRenderer(CollectorRegistry.defaultRegistry, 10000);
+ *  snapshots.start();
+ *  HTTPServer server = new HTTPServer(new InetSocketAddress(1234), snapshots, false);
+ * }
+ * </pre>
+ */
+public class SnapshotRenderer {
+  private static final Logger logger = Logger.getLogger(SnapshotRenderer.class.getName());
+
+  /**
+   * The name of the gauge added to each snapshot, with the Unix time it was rendered at.
+   */
+  public static final String TIMESTAMP_METRIC = "exposition_snapshot_timestamp_seconds";
+
+  private final CollectorRegistry registry;
+  private final long intervalMillis;
+  private volatile Snapshot snapshot;
+  private Thread thread;
+
+  /**
+   * Construct a SnapshotRenderer for the given registry, rendering every intervalMillis once started.
+   */
+  public SnapshotRenderer(CollectorRegistry registry, long intervalMillis) {
+    if (intervalMillis <= 0) {
+      throw new IllegalArgumentException("intervalMillis must be positive");
+    }
+    this.registry = registry;
+    this.intervalMillis = intervalMillis;
+  }
+
+  public CollectorRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * The latest snapshot, or null if none has been rendered yet.
+   */
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Start rendering in a daemon thread, beginning straight away.
+   */
+  public synchronized void start() {
+    if (thread != null) {
+      throw new IllegalStateException("Already started");
+    }
+    thread = new RenderThread();
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop rendering. The latest snapshot is still served.
+   */
+  public synchronized void stop() {
+    if (thread != null) {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  /**
+   * Render a snapshot now, replacing the latest one.
+   */
+  public void render() throws IOException {
+    long timestampMillis = System.currentTimeMillis();
+    Snapshot previous = snapshot;
+    ByteArrayOutputStream text = new ByteArrayOutputStream(previous == null ? 8192 : previous.text.length + 1024);
+    TextFormat.write004(text, registry, Collections.<String>emptySet());
+    Writer writer = new OutputStreamWriter(text, "UTF-8");
+    TextFormat.write004(writer, Collections.enumeration(Collections.<Collector.MetricFamilySamples>singletonList(
+        new GaugeMetricFamily(TIMESTAMP_METRIC, "Unix time the metrics were rendered at.", timestampMillis / 1000.0))));
+    writer.flush();
+    byte[] textBytes = text.toByteArray();
+
+    ByteArrayOutputStream gzip = new ByteArrayOutputStream(textBytes.length / 4);
+    GZIPOutputStream gzipOut = new GZIPOutputStream(gzip);
+    gzipOut.write(textBytes);
+    gzipOut.close();
+    snapshot = new Snapshot(textBytes, gzip.toByteArray(), timestampMillis);
+  }
+
+  /**
+   * A rendering of the registry.
+   */
+  public static final class Snapshot {
+    private final byte[] text;
+    private final byte[] gzip;
+    private final long timestampMillis;
+
+    Snapshot(byte[] text, byte[] gzip, long timestampMillis) {
+      this.text = text;
+      this.gzip = gzip;
+      this.timestampMillis = timestampMillis;
+    }
+
+    /**
+     * The length in bytes, gzipped or not.
+     */
+    public int length(boolean gzip) {
+      return gzip ? this.gzip.length : text.length;
+    }
+
+    /**
+     * Write the text format, gzipped or not. The output is UTF-8, for {@link TextFormat#CONTENT_TYPE_004}.
+     */
+    public void writeTo(OutputStream out, boolean gzip) throws IOException {
+      out.write(gzip ? this.gzip : text);
+    }
+
+    /**
+     * When rendering started, in milliseconds since the epoch.
+     */
+    public long getTimestampMillis() {
+      return timestampMillis;
+    }
+  }
+
+  private class RenderThread extends Thread {
+    public void run() {
+      while (true) {
+        try {
+          render();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Exception " + e + " rendering metrics snapshot", e);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Exception " + e + " rendering metrics snapshot", e);
+        }
+        try {
+          Thread.sleep(intervalMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -1,10 +1,16 @@
 package io.prometheus.client.exporter.common;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
 
 public class TextFormat {
   /**
@@ -16,41 +22,305 @@ public class TextFormat {
    * Write out the text version 0.0.4 of the given MetricFamilySamples.
    */
   public static void write004(Writer writer, Enumeration<Collector.MetricFamilySamples> mfs) throws IOException {
-    /* See http://prometheus.io/docs/instrumenting/exposition_formats/
-     * for the output format specification. */
+    Visitor004 visitor = new Visitor004(writer);
     while(mfs.hasMoreElements()) {
       Collector.MetricFamilySamples metricFamilySamples = mfs.nextElement();
+      visitor.visitFamily(metricFamilySamples.name, metricFamilySamples.type, metricFamilySamples.help);
+      for (Collector.MetricFamilySamples.Sample sample: metricFamilySamples.samples) {
+        visitor.visitSample(sample.name, sample.labelNames, sample.labelValues, null, null, sample.value);
+      }
+    }
+  }
+
+  /**
+   * Write out the text version 0.0.4 of the metrics in the registry with the given sample names,
+   * or all of them if includedNames is empty.
+   * <p>
+   * Samples are written as they are collected, see {@link CollectorRegistry#visitMetricFamilySamples}.
+   */
+  public static void write004(Writer writer, CollectorRegistry registry, Set<String> includedNames) throws IOException {
+    registry.visitMetricFamilySamples(includedNames, new Visitor004(writer));
+  }
+
+  /**
+   * Write out the text version 0.0.4 of the metrics in the registry with the given sample names,
+   * or all of them if includedNames is empty, encoded as UTF-8.
+   * <p>
+   * This is {@link #write004(Writer, CollectorRegistry, Set)} without encoding through a Writer. The output is
+   * buffered, and has all been written to out on return. out isn't flushed or closed.
+   */
+  public static void write004(OutputStream out, CollectorRegistry registry, Set<String> includedNames)
+      throws IOException {
+    Utf8Visitor004 visitor = new Utf8Visitor004(out);
+    registry.visitMetricFamilySamples(includedNames, visitor);
+    visitor.flush();
+  }
+
+  private static class Visitor004 implements Collector.SampleVisitor {
+    private final Writer writer;
+    private final char[] value = new char[DoubleFormat.MAX_LENGTH];
+
+    Visitor004(Writer writer) {
+      this.writer = writer;
+    }
+
+    public void visitFamily(String name, Collector.Type type, String help) throws IOException {
+      /* See http://prometheus.io/docs/instrumenting/exposition_formats/
+       * for the output format specification. */
       writer.write("# HELP ");
-      writer.write(metricFamilySamples.name);
+      writer.write(name);
       writer.write(' ');
-      writeEscapedHelp(writer, metricFamilySamples.help);
+      writeEscapedHelp(writer, help);
       writer.write('\n');
 
       writer.write("# TYPE ");
-      writer.write(metricFamilySamples.name);
+      writer.write(name);
       writer.write(' ');
-      writer.write(typeString(metricFamilySamples.type));
+      writer.write(typeString(type));
       writer.write('\n');
+    }
 
-      for (Collector.MetricFamilySamples.Sample sample: metricFamilySamples.samples) {
-        writer.write(sample.name);
-        if (sample.labelNames.size() > 0) {
-          writer.write('{');
-          for (int i = 0; i < sample.labelNames.size(); ++i) {
-            writer.write(sample.labelNames.get(i));
-            writer.write("=\"");
-            writeEscapedLabelValue(writer, sample.labelValues.get(i));
-            writer.write("\",");
-          }
+    public void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                            String extraLabelName, String extraLabelValue, double value) throws IOException {
+      writer.write(name);
+      if (labelValues instanceof Collector.CachingLabelValues && labelNames.size() > 0) {
+        String labels = labels(labelNames, (Collector.CachingLabelValues) labelValues);
+        if (extraLabelName == null) {
+          writer.write(labels);
+        } else {
+          // Without the closing brace.
+          writer.write(labels, 0, labels.length() - 1);
+          writeLabel(writer, extraLabelName, extraLabelValue);
           writer.write('}');
         }
-        writer.write(' ');
-        writer.write(Collector.doubleToGoString(sample.value));
-        writer.write('\n');
+      } else if (labelNames.size() > 0 || extraLabelName != null) {
+        writer.write('{');
+        for (int i = 0; i < labelNames.size(); ++i) {
+          writeLabel(writer, labelNames.get(i), labelValues.get(i));
+        }
+        if (extraLabelName != null) {
+          writeLabel(writer, extraLabelName, extraLabelValue);
+        }
+        writer.write('}');
       }
+      writer.write(' ');
+      writer.write(this.value, 0, DoubleFormat.format(value, this.value, 0));
+      writer.write('\n');
     }
   }
 
+  /**
+   * The labels of a child as written, escaped and in braces. Kept with its label values, as they don't change.
+   */
+  private static String labels(List<String> labelNames, Collector.CachingLabelValues labelValues)
+      throws IOException {
+    SerializedLabels serialized = serializedLabels(labelNames, labelValues);
+    if (serialized != null && serialized.text != null) {
+      return serialized.text;
+    }
+    String text = labelsText(labelNames, labelValues);
+    labelValues.setSerialized(new SerializedLabels(labelNames, text, serialized == null ? null : serialized.utf8));
+    return text;
+  }
+
+  /**
+   * {@link #labels} encoded as UTF-8.
+   */
+  private static byte[] utf8Labels(List<String> labelNames, Collector.CachingLabelValues labelValues)
+      throws IOException {
+    SerializedLabels serialized = serializedLabels(labelNames, labelValues);
+    if (serialized != null && serialized.utf8 != null) {
+      return serialized.utf8;
+    }
+    String text = serialized == null || serialized.text == null ? labelsText(labelNames, labelValues) : serialized.text;
+    byte[] utf8 = text.getBytes(UTF_8);
+    labelValues.setSerialized(new SerializedLabels(labelNames, serialized == null ? null : serialized.text, utf8));
+    return utf8;
+  }
+
+  private static SerializedLabels serializedLabels(List<String> labelNames,
+                                                   Collector.CachingLabelValues labelValues) {
+    Object serialized = labelValues.getSerialized();
+    if (serialized instanceof SerializedLabels && ((SerializedLabels) serialized).labelNames == labelNames) {
+      return (SerializedLabels) serialized;
+    }
+    return null;
+  }
+
+  private static String labelsText(List<String> labelNames, List<String> labelValues) throws IOException {
+    StringWriter labels = new StringWriter();
+    labels.write('{');
+    for (int i = 0; i < labelNames.size(); ++i) {
+      writeLabel(labels, labelNames.get(i), labelValues.get(i));
+    }
+    labels.write('}');
+    return labels.toString();
+  }
+
+  /**
+   * The serialized labels, as text, UTF-8 or both depending on which writers have used them.
+   */
+  private static class SerializedLabels {
+    final List<String> labelNames;
+    final String text;
+    final byte[] utf8;
+
+    SerializedLabels(List<String> labelNames, String text, byte[] utf8) {
+      this.labelNames = labelNames;
+      this.text = text;
+      this.utf8 = utf8;
+    }
+  }
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Writes UTF-8 into a buffer, passing it to the stream when it's full.
+   */
+  private static class Utf8Visitor004 implements Collector.SampleVisitor {
+    private final OutputStream out;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+    private final char[] value = new char[DoubleFormat.MAX_LENGTH];
+
+    Utf8Visitor004(OutputStream out) {
+      this.out = out;
+    }
+
+    public void visitFamily(String name, Collector.Type type, String help) throws IOException {
+      write("# HELP ", false, false);
+      write(name, false, false);
+      write(' ');
+      write(help, true, false);
+      write('\n');
+
+      write("# TYPE ", false, false);
+      write(name, false, false);
+      write(' ');
+      write(typeString(type), false, false);
+      write('\n');
+    }
+
+    public void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                            String extraLabelName, String extraLabelValue, double value) throws IOException {
+      write(name, false, false);
+      if (labelValues instanceof Collector.CachingLabelValues && labelNames.size() > 0) {
+        byte[] labels = utf8Labels(labelNames, (Collector.CachingLabelValues) labelValues);
+        if (extraLabelName == null) {
+          write(labels, labels.length);
+        } else {
+          // Without the closing brace.
+          write(labels, labels.length - 1);
+          writeLabel(extraLabelName, extraLabelValue);
+          write('}');
+        }
+      } else if (labelNames.size() > 0 || extraLabelName != null) {
+        write('{');
+        for (int i = 0; i < labelNames.size(); ++i) {
+          writeLabel(labelNames.get(i), labelValues.get(i));
+        }
+        if (extraLabelName != null) {
+          writeLabel(extraLabelName, extraLabelValue);
+        }
+        write('}');
+      }
+      write(' ');
+      int length = DoubleFormat.format(value, this.value, 0);
+      if (pos + length + 1 > buf.length) {
+        flush();
+      }
+      for (int i = 0; i < length; i++) {
+        buf[pos++] = (byte) this.value[i];
+      }
+      buf[pos++] = '\n';
+    }
+
+    private void writeLabel(String name, String value) throws IOException {
+      write(name, false, false);
+      write('=');
+      write('"');
+      write(value, true, true);
+      write('"');
+      write(',');
+    }
+
+    private void write(char ascii) throws IOException {
+      if (pos == buf.length) {
+        flush();
+      }
+      buf[pos++] = (byte) ascii;
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+      if (length > buf.length - pos) {
+        flush();
+        if (length > buf.length) {
+          out.write(bytes, 0, length);
+          return;
+        }
+      }
+      System.arraycopy(bytes, 0, buf, pos, length);
+      pos += length;
+    }
+
+    /**
+     * Encodes s, escaping backslashes and newlines if escape is set, and also double quotes if quotes is set.
+     */
+    private void write(String s, boolean escape, boolean quotes) throws IOException {
+      // Local copies, as the fields would be reread after every store to buf.
+      byte[] buf = this.buf;
+      int pos = this.pos;
+      int length = s.length();
+      for (int i = 0; i < length; i++) {
+        if (pos + 4 > buf.length) {
+          this.pos = pos;
+          flush();
+          pos = 0;
+        }
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          if (escape && (c == '\\' || c == '\n' || quotes && c == '"')) {
+            buf[pos++] = '\\';
+            buf[pos++] = (byte) (c == '\n' ? 'n' : c);
+          } else {
+            buf[pos++] = (byte) c;
+          }
+        } else if (c < 0x800) {
+          buf[pos++] = (byte) (0xc0 | c >> 6);
+          buf[pos++] = (byte) (0x80 | c & 0x3f);
+        } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, s.charAt(++i));
+          buf[pos++] = (byte) (0xf0 | codePoint >> 18);
+          buf[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+          buf[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+          buf[pos++] = (byte) (0x80 | codePoint & 0x3f);
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+          // Unpaired, replaced as String.getBytes does.
+          buf[pos++] = '?';
+        } else {
+          buf[pos++] = (byte) (0xe0 | c >> 12);
+          buf[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+          buf[pos++] = (byte) (0x80 | c & 0x3f);
+        }
+      }
+      this.pos = pos;
+    }
+
+    void flush() throws IOException {
+      if (pos > 0) {
+        out.write(buf, 0, pos);
+        pos = 0;
+      }
+    }
+  }
+
+  private static void writeLabel(Writer writer, String name, String value) throws IOException {
+    writer.write(name);
+    writer.write("=\"");
+    writeEscapedLabelValue(writer, value);
+    writer.write("\",");
+  }
+
   private static void writeEscapedHelp(Writer writer, String s) throws IOException {
     for (int i = 0; i < s.length(); i++) {
       char c = s.charAt(i);
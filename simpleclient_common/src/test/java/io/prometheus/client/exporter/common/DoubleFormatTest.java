@@ -0,0 +1,69 @@
+package io.prometheus.client.exporter.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class DoubleFormatTest {
+
+  private static String format(double d) {
+    char[] buf = new char[DoubleFormat.MAX_LENGTH];
+    return new String(buf, 0, DoubleFormat.format(d, buf, 0));
+  }
+
+  @Test
+  public void testSpecialValues() {
+    assertEquals("+Inf", format(Double.POSITIVE_INFINITY));
+    assertEquals("-Inf", format(Double.NEGATIVE_INFINITY));
+    assertEquals("NaN", format(Double.NaN));
+    assertEquals("0.0", format(0.0));
+    assertEquals("-0.0", format(-0.0));
+  }
+
+  @Test
+  public void testLayoutMatchesToString() {
+    assertEquals("1.0", format(1));
+    assertEquals("-42.0", format(-42));
+    assertEquals("9999999.0", format(9999999));
+    assertEquals("1.0E7", format(1e7));
+    assertEquals("1.2345678E7", format(12345678));
+    assertEquals("9.007199254740991E15", format(9007199254740991.0));
+    assertEquals("0.001", format(0.001));
+    assertEquals("9.99E-4", format(0.000999));
+    assertEquals("0.30000000000000004", format(0.1 + 0.2));
+    assertEquals("-1234.5678", format(-1234.5678));
+    assertEquals("1.0E23", format(1e23));
+    assertEquals("1.7976931348623157E308", format(Double.MAX_VALUE));
+    assertEquals("2.2250738585072014E-308", format(Double.MIN_NORMAL));
+    assertEquals("4.9E-324", format(Double.MIN_VALUE));
+    assertEquals("9.9E-324", format(2 * Double.MIN_VALUE));
+  }
+
+  @Test
+  public void testRandomValuesRoundTrip() {
+    Random random = new Random(0);
+    for (int i = 0; i < 100000; i++) {
+      double d = Double.longBitsToDouble(random.nextLong());
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        continue;
+      }
+      String s = format(d);
+      assertEquals(s, d, Double.parseDouble(s), 0.0);
+      // Java before 19 sometimes uses more digits than needed.
+      assertTrue(s, s.length() <= Double.toString(d).length());
+    }
+  }
+
+  @Test
+  public void testShortDecimalsMatchToString() {
+    Random random = new Random(0);
+    for (int i = 0; i < 100000; i++) {
+      double d = random.nextInt(100000000) / 1000.0;
+      assertEquals(Double.toString(d), format(d));
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package io.prometheus.client.exporter.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+
+public class SnapshotRendererTest {
+
+  CollectorRegistry registry;
+  Gauge gauge;
+
+  @Before
+  public void setUp() {
+    registry = new CollectorRegistry();
+    gauge = Gauge.build().name("g").help("help").register(registry);
+  }
+
+  static byte[] bytes(SnapshotRenderer.Snapshot snapshot, boolean gzip) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    snapshot.writeTo(out, gzip);
+    assertEquals(out.size(), snapshot.length(gzip));
+    return out.toByteArray();
+  }
+
+  static byte[] gunzip(byte[] gzipped) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) >= 0) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testRender() throws IOException {
+    SnapshotRenderer snapshots = new SnapshotRenderer(registry, 1000);
+    assertNull(snapshots.getSnapshot());
+    gauge.set(1);
+    long before = System.currentTimeMillis();
+    snapshots.render();
+    SnapshotRenderer.Snapshot snapshot = snapshots.getSnapshot();
+    assertTrue(snapshot.getTimestampMillis() >= before);
+    gauge.set(2);
+
+    String text = new String(bytes(snapshot, false), "UTF-8");
+    assertEquals("# HELP g help\n"
+        + "# TYPE g gauge\n"
+        + "g 1.0\n"
+        + "# HELP exposition_snapshot_timestamp_seconds Unix time the metrics were rendered at.\n"
+        + "# TYPE exposition_snapshot_timestamp_seconds gauge\n"
+        + "exposition_snapshot_timestamp_seconds " + Collector.doubleToGoString(snapshot.getTimestampMillis() / 1000.0)
+        + "\n", text);
+    assertArrayEquals(bytes(snapshot, false), gunzip(bytes(snapshot, true)));
+  }
+
+  @Test
+  public void testFailedRenderKeepsSnapshot() throws IOException {
+    SnapshotRenderer snapshots = new SnapshotRenderer(registry, 1000);
+    snapshots.render();
+    SnapshotRenderer.Snapshot snapshot = snapshots.getSnapshot();
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        throw new IllegalStateException("failed");
+      }
+    }.register(registry);
+    try {
+      snapshots.render();
+      fail("Expected exception");
+    } catch (IllegalStateException e) {
+      assertEquals("failed", e.getMessage());
+    }
+    assertSame(snapshot, snapshots.getSnapshot());
+  }
+
+  @Test
+  public void testRendersInBackground() throws InterruptedException {
+    SnapshotRenderer snapshots = new SnapshotRenderer(registry, 10);
+    snapshots.start();
+    try {
+      while (snapshots.getSnapshot() == null) {
+        Thread.sleep(1);
+      }
+      long first = snapshots.getSnapshot().getTimestampMillis();
+      while (snapshots.getSnapshot().getTimestampMillis() == first) {
+        Thread.sleep(1);
+      }
+    } finally {
+      snapshots.stop();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIntervalMustBePositive() {
+    new SnapshotRenderer(registry, 0);
+  }
+}
@@ -2,8 +2,10 @@ package io.prometheus.client.exporter.common;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Collections;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -11,6 +13,7 @@ import org.junit.Test;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import io.prometheus.client.Summary;
 
 
@@ -111,4 +114,75 @@ public class TextFormatTest {
                  + "# TYPE nolabels gauge\n"
                  + "nolabels 1.0\n", writer.toString());
   }
+
+  @Test
+  public void testRegistryOutputMatchesEnumeration() throws IOException {
+    Histogram.build().name("h").help("help").labelNames("l").buckets(1, 2).register(registry)
+        .labels("a\"b").observe(1.5);
+    Summary.build().name("s").help("help").quantile(0.5, 0.05).register(registry).observe(2);
+    Gauge.build().name("g").help("help").register(registry).set(Double.NEGATIVE_INFINITY);
+    TextFormat.write004(writer, registry, Collections.<String>emptySet());
+    StringWriter expected = new StringWriter();
+    TextFormat.write004(expected, registry.metricFamilySamples());
+    assertEquals(expected.toString(), writer.toString());
+
+    writer = new StringWriter();
+    TextFormat.write004(writer, registry, Collections.singleton("h_bucket"));
+    assertEquals("# HELP h help\n"
+                 + "# TYPE h histogram\n"
+                 + "h_bucket{l=\"a\\\"b\",le=\"1.0\",} 0.0\n"
+                 + "h_bucket{l=\"a\\\"b\",le=\"2.0\",} 1.0\n"
+                 + "h_bucket{l=\"a\\\"b\",le=\"+Inf\",} 1.0\n", writer.toString());
+  }
+
+  @Test
+  public void testLabelsWrittenAgainAfterCaching() throws IOException {
+    Histogram histogram = Histogram.build().name("h").help("help").labelNames("l").buckets(1).register(registry);
+    histogram.labels("a\nb").observe(0.5);
+    TextFormat.write004(writer, registry, Collections.<String>emptySet());
+    String first = writer.toString();
+    writer = new StringWriter();
+    TextFormat.write004(writer, registry, Collections.<String>emptySet());
+    assertEquals(first, writer.toString());
+    assertEquals("# HELP h help\n"
+                 + "# TYPE h histogram\n"
+                 + "h_bucket{l=\"a\\nb\",le=\"1.0\",} 1.0\n"
+                 + "h_bucket{l=\"a\\nb\",le=\"+Inf\",} 1.0\n"
+                 + "h_count{l=\"a\\nb\",} 1.0\n"
+                 + "h_sum{l=\"a\\nb\",} 0.5\n", writer.toString());
+  }
+
+  private String writeUtf8(CollectorRegistry registry) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TextFormat.write004(out, registry, Collections.<String>emptySet());
+    return out.toString("UTF-8");
+  }
+
+  @Test
+  public void testOutputStreamMatchesWriter() throws IOException {
+    Gauge.build().name("g").help("ąćčęntěd h\"e\\l\np \uD83D\uDE00").labelNames("l", "m").register(registry)
+        .labels("ąćčęntěd a\nb\\c\"d", "\uD83D\uDE00").set(1.5);
+    Histogram histogram = Histogram.build().name("h").help("help").labelNames("l").register(registry);
+    for (int i = 0; i < 1000; i++) {
+      histogram.labels("value" + i).observe(i);
+    }
+    Summary.build().name("s").help("help").quantile(0.5, 0.05).register(registry).observe(2);
+
+    // Both forms of the labels are kept, whichever is written first.
+    String utf8 = writeUtf8(registry);
+    TextFormat.write004(writer, registry, Collections.<String>emptySet());
+    assertEquals(writer.toString(), utf8);
+    assertEquals(writer.toString(), writeUtf8(registry));
+    writer = new StringWriter();
+    TextFormat.write004(writer, registry, Collections.<String>emptySet());
+    assertEquals(utf8, writer.toString());
+  }
+
+  @Test
+  public void testOutputStreamReplacesUnpairedSurrogates() throws IOException {
+    Gauge.build().name("g").help("\uDE00").labelNames("l").register(registry).labels("a\uD800").set(1);
+    assertEquals("# HELP g ?\n"
+                 + "# TYPE g gauge\n"
+                 + "g{l=\"a?\",} 1.0\n", writeUtf8(registry));
+  }
 }
@@ -1,23 +1,38 @@
 package io.prometheus.client.exporter;
 
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.SnapshotRenderer;
 import io.prometheus.client.exporter.common.TextFormat;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -34,52 +49,253 @@ import com.sun.net.httpserver.HttpExchange;
  * </pre>
  * */
 public class HTTPServer {
-    private static class LocalByteArray extends ThreadLocal<ByteArrayOutputStream> {
-        protected ByteArrayOutputStream initialValue()
-        {
-            return new ByteArrayOutputStream(1 << 20);
-        }
-    }
-
     static class HTTPMetricHandler implements HttpHandler {
         private CollectorRegistry registry;
-        private final LocalByteArray response = new LocalByteArray();
+        // Pooled rather than kept per thread, as with virtual threads every request has a new thread.
+        final Queue<ResponseBuffer> responses = new ConcurrentLinkedQueue<ResponseBuffer>();
+        private final AtomicInteger pooledResponses = new AtomicInteger();
+        // The size of the last plain and gzipped response.
+        private volatile int lastPlainSize;
+        private volatile int lastGzipSize;
+        private final long reuseNanos;
+        private final ConcurrentMap<ScrapeKey, Scrape> scrapes = new ConcurrentHashMap<ScrapeKey, Scrape>();
+        private final boolean stream;
+        final PooledGZIPOutputStream.Pool deflaters = new PooledGZIPOutputStream.Pool(POOLED_RESPONSES);
+        private final SnapshotRenderer snapshots;
 
         HTTPMetricHandler(CollectorRegistry registry) {
+          this(registry, 0, false, null);
+        }
+
+        /**
+         * @param reuseMillis how long a response may be served again to identical requests after it's rendered
+         * @param stream whether to write responses as they're collected, rather than rendering them first
+         * @param snapshots where to serve scrapes of all the metrics from, or null
+         */
+        HTTPMetricHandler(CollectorRegistry registry, long reuseMillis, boolean stream, SnapshotRenderer snapshots) {
           this.registry = registry;
+          this.reuseNanos = TimeUnit.MILLISECONDS.toNanos(reuseMillis);
+          this.stream = stream;
+          this.snapshots = snapshots;
         }
 
 
         public void handle(HttpExchange t) throws IOException {
             String query = t.getRequestURI().getRawQuery();
-
-            ByteArrayOutputStream response = this.response.get();
-            response.reset();
-            OutputStreamWriter osw = new OutputStreamWriter(response);
-            TextFormat.write004(osw,
-                    registry.filteredMetricFamilySamples(parseQuery(query)));
-            osw.flush();
-            osw.close();
-            response.flush();
-            response.close();
+            boolean gzip = shouldUseCompression(t);
+            Set<String> names = parseQuery(query);
 
             t.getResponseHeaders().set("Content-Type",
                     TextFormat.CONTENT_TYPE_004);
-            t.getResponseHeaders().set("Content-Length",
-                    String.valueOf(response.size()));
-            if (shouldUseCompression(t)) {
+            // So caches don't serve a gzipped response to clients that don't accept it, or the other way round.
+            t.getResponseHeaders().set("Vary", "Accept-Encoding");
+            if (gzip) {
                 t.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            SnapshotRenderer.Snapshot snapshot = snapshots != null && names.isEmpty() ? snapshots.getSnapshot() : null;
+            if (snapshot != null) {
+                t.sendResponseHeaders(HttpURLConnection.HTTP_OK, snapshot.length(gzip));
+                snapshot.writeTo(t.getResponseBody(), gzip);
+            } else if (stream) {
+                // Chunked, as the length isn't known until the end. If collection fails the exchange isn't closed,
+                // so the connection is dropped rather than the response looking complete.
                 t.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
-                final GZIPOutputStream os = new GZIPOutputStream(t.getResponseBody());
-                response.writeTo(os);
-                os.finish();
+                write(t.getResponseBody(), names, gzip);
             } else {
-                t.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.size());
-                response.writeTo(t.getResponseBody());
+                byte[] response = scrape(names, gzip);
+                t.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length == 0 ? -1 : response.length);
+                t.getResponseBody().write(response);
             }
             t.close();
         }
 
+        /**
+         * The rendered response for the given names and encoding. Requests for the same response while it's
+         * rendered, or within the reuse window after, wait for and share it rather than collecting again.
+         */
+        byte[] scrape(final Set<String> names, final boolean gzip) throws IOException {
+            ScrapeKey key = new ScrapeKey(names, gzip);
+            Scrape scrape = new Scrape(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return render(names, gzip);
+                }
+            });
+            while (true) {
+                Scrape current = scrapes.putIfAbsent(key, scrape);
+                if (current == null) {
+                    break;
+                }
+                if (current.reusable(System.nanoTime(), reuseNanos)) {
+                    return current.response();
+                }
+                if (scrapes.replace(key, current, scrape)) {
+                    break;
+                }
+            }
+            scrape.run();
+            if (reuseNanos == 0 || scrape.failed()) {
+                scrapes.remove(key, scrape);
+            } else {
+                // Drop responses for other names that are past their window, as they may never be asked for again.
+                long now = System.nanoTime();
+                for (Map.Entry<ScrapeKey, Scrape> entry : scrapes.entrySet()) {
+                    if (!entry.getValue().reusable(now, reuseNanos)) {
+                        scrapes.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            return scrape.response();
+        }
+
+        private byte[] render(Set<String> names, boolean gzip) throws IOException {
+            ResponseBuffer response = responses.poll();
+            if (response != null) {
+                pooledResponses.decrementAndGet();
+            } else {
+                response = new ResponseBuffer(Math.max(gzip ? lastGzipSize : lastPlainSize, MIN_RESPONSE_BUFFER_SIZE));
+            }
+            try {
+                response.reset();
+                write(response, names, gzip);
+                if (gzip) {
+                    lastGzipSize = response.size();
+                } else {
+                    lastPlainSize = response.size();
+                }
+                return response.toByteArray();
+            } finally {
+                release(response);
+            }
+        }
+
+        /**
+         * Keep the buffer for the next response, unless enough are kept already or it grew far beyond the
+         * typical response after a large one. Buffers are shared by both encodings, so are kept for the larger.
+         */
+        private void release(ResponseBuffer response) {
+            int typical = Math.max(Math.max(lastPlainSize, lastGzipSize), MIN_RESPONSE_BUFFER_SIZE);
+            if (response.capacity() > 4 * typical) {
+                return;
+            }
+            if (pooledResponses.incrementAndGet() > POOLED_RESPONSES) {
+                pooledResponses.decrementAndGet();
+                return;
+            }
+            responses.offer(response);
+        }
+
+        private void write(OutputStream out, Set<String> names, boolean gzip) throws IOException {
+            if (!gzip) {
+                TextFormat.write004(out, registry, names);
+                return;
+            }
+            PooledGZIPOutputStream gzipOut = new PooledGZIPOutputStream(out, deflaters);
+            try {
+                TextFormat.write004(gzipOut, registry, names);
+                gzipOut.finish();
+            } finally {
+                gzipOut.release();
+            }
+        }
+
+    }
+
+    /**
+     * Response buffers and Deflaters kept for reuse, as many as the threads of the default executor.
+     */
+    static final int POOLED_RESPONSES = 5;
+    static final int MIN_RESPONSE_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * A ByteArrayOutputStream that tells how large it has grown.
+     */
+    static class ResponseBuffer extends ByteArrayOutputStream {
+        ResponseBuffer(int size) {
+            super(size);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    private static class ScrapeKey {
+        private final Set<String> names;
+        private final boolean gzip;
+
+        ScrapeKey(Set<String> names, boolean gzip) {
+            this.names = names;
+            this.gzip = gzip;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ScrapeKey)) {
+                return false;
+            }
+            ScrapeKey other = (ScrapeKey) o;
+            return gzip == other.gzip && names.equals(other.names);
+        }
+
+        @Override
+        public int hashCode() {
+            return names.hashCode() * 31 + (gzip ? 1 : 0);
+        }
+    }
+
+    /**
+     * A response being rendered by one request, for it and any others that ask for it.
+     */
+    private static class Scrape extends FutureTask<byte[]> {
+        private volatile long renderedNanos;
+        private volatile boolean rendered;
+
+        Scrape(Callable<byte[]> render) {
+            super(render);
+        }
+
+        @Override
+        protected void set(byte[] response) {
+            renderedNanos = System.nanoTime();
+            rendered = true;
+            super.set(response);
+        }
+
+        boolean failed() {
+            return isDone() && !rendered;
+        }
+
+        /**
+         * Whether a request at the given time can share this response.
+         */
+        boolean reusable(long now, long reuseNanos) {
+            if (!isDone()) {
+                return true;
+            }
+            return rendered && now - renderedNanos < reuseNanos;
+        }
+
+        byte[] response() throws IOException {
+            try {
+                return get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the metrics");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
     }
 
     protected static boolean shouldUseCompression(HttpExchange exchange) {
@@ -133,22 +349,292 @@ public class HTTPServer {
         }
     }
 
+    /**
+     * Return a Builder to configure and start a HTTPServer.
+     * <p>
+     * Example Usage:
+     * <pre>
+     * {@code
+     * HTTPServer server = HTTPServer.build().port(1234).virtualThreads(true).create();
+     * }
+     * </pre>
+     */
+    public static Builder build() {
+        return new Builder();
+    }
+
+    /**
+     * Configures a HTTPServer. Either a port or an address must be set. Unless set otherwise it serves the default
+     * registry on all interfaces with a backlog of 3, from a pool of five non-daemon threads.
+     */
+    public static class Builder {
+        private InetSocketAddress address;
+        private String host;
+        private int port = -1;
+        private CollectorRegistry registry = CollectorRegistry.defaultRegistry;
+        private SnapshotRenderer snapshots;
+        private boolean daemon;
+        private int backlog = 3;
+        private Executor executor;
+        private boolean virtualThreads;
+        private long scrapeReuseMillis;
+        private boolean stream;
+
+        /**
+         * The port to listen on, or 0 for any free port, see {@link HTTPServer#getPort}.
+         */
+        public Builder port(int port) {
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Port " + port + " invalid: Expected number between 0 and 65535.");
+            }
+            this.port = port;
+            return this;
+        }
+
+        public Builder host(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * Listen on this address, rather than the host and port.
+         */
+        public Builder address(InetSocketAddress address) {
+            this.address = address;
+            return this;
+        }
+
+        public Builder registry(CollectorRegistry registry) {
+            this.registry = registry;
+            return this;
+        }
+
+        /**
+         * Serve the snapshots' registry, answering scrapes of all the metrics with its latest snapshot.
+         * See {@link HTTPServer#HTTPServer(InetSocketAddress, SnapshotRenderer, boolean)}.
+         */
+        public Builder snapshots(SnapshotRenderer snapshots) {
+            this.snapshots = snapshots;
+            this.registry = snapshots.getRegistry();
+            return this;
+        }
+
+        /**
+         * Whether the threads the server creates are daemon threads.
+         */
+        public Builder daemon(boolean daemon) {
+            this.daemon = daemon;
+            return this;
+        }
+
+        /**
+         * The most connections waiting to be accepted.
+         */
+        public Builder backlog(int backlog) {
+            if (backlog < 1) {
+                throw new IllegalArgumentException("backlog must be at least 1");
+            }
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * Handle requests with this executor. It's not shut down when the server is stopped.
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Handle each request in a new virtual thread, which needs Java 21 or later. A slow client then only ties up
+         * a virtual thread, and there are no idle threads between scrapes.
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * See {@link HTTPServer#HTTPServer(InetSocketAddress, CollectorRegistry, boolean, long)}.
+         */
+        public Builder scrapeReuseMillis(long scrapeReuseMillis) {
+            if (scrapeReuseMillis < 0) {
+                throw new IllegalArgumentException("scrapeReuseMillis must not be negative");
+            }
+            this.scrapeReuseMillis = scrapeReuseMillis;
+            return this;
+        }
+
+        /**
+         * See {@link HTTPServer#HTTPServer(InetSocketAddress, CollectorRegistry, boolean, boolean)}.
+         */
+        public Builder stream(boolean stream) {
+            this.stream = stream;
+            return this;
+        }
+
+        /**
+         * Start the HTTP server.
+         */
+        public HTTPServer create() throws IOException {
+            return new HTTPServer(this);
+        }
+    }
+
     protected final HttpServer server;
+    private final HTTPMetricHandler handler;
+    /**
+     * The executor requests are handled on. An executor given to the {@link Builder} is wrapped, so shutting this
+     * down doesn't shut it down.
+     */
     protected final ExecutorService executorService;
 
 
     /**
      * Start a HTTP server serving Prometheus metrics from the given registry.
+     * <p>
+     * Identical requests arriving while a response is rendered always share it. A response is also served again to
+     * identical requests for scrapeReuseMillis after it's rendered, which is useful when several Prometheus servers
+     * scrape the same target at about the same time.
      */
-    public HTTPServer(InetSocketAddress addr, CollectorRegistry registry, boolean daemon) throws IOException {
+    public HTTPServer(InetSocketAddress addr, CollectorRegistry registry, boolean daemon, long scrapeReuseMillis)
+            throws IOException {
+        this(build().address(addr).registry(registry).daemon(daemon).scrapeReuseMillis(scrapeReuseMillis));
+    }
+
+    /**
+     * Start a HTTP server serving Prometheus metrics from the given registry, writing responses as they're collected
+     * if stream is true.
+     * <p>
+     * Streamed responses are sent with chunked transfer encoding, and compressed as they're written. Only a small
+     * buffer is needed however large the response, and the first bytes go out sooner. They aren't shared between
+     * requests though.
+     */
+    public HTTPServer(InetSocketAddress addr, CollectorRegistry registry, boolean daemon, boolean stream)
+            throws IOException {
+        this(build().address(addr).registry(registry).daemon(daemon).stream(stream));
+    }
+
+    /**
+     * Start a HTTP server serving Prometheus metrics from the snapshots' registry.
+     * <p>
+     * Scrapes of all the metrics are answered with the latest snapshot, which must be started separately. Scrapes
+     * restricted to some names, or made before the first snapshot, collect from the registry as usual.
+     */
+    public HTTPServer(InetSocketAddress addr, SnapshotRenderer snapshots, boolean daemon) throws IOException {
+        this(build().address(addr).snapshots(snapshots).daemon(daemon));
+    }
+
+    private HTTPServer(Builder builder) throws IOException {
+        if (builder.stream && builder.scrapeReuseMillis > 0) {
+            throw new IllegalArgumentException("Streamed responses can't be reused");
+        }
+        if (builder.executor != null && builder.virtualThreads) {
+            throw new IllegalArgumentException("Either an executor or virtual threads can be used, not both");
+        }
+        if (builder.snapshots != null && builder.snapshots.getRegistry() != builder.registry) {
+            throw new IllegalArgumentException("The snapshots must be of the registry served");
+        }
+        InetSocketAddress addr = builder.address;
+        if (addr == null && builder.port < 0) {
+            throw new IllegalStateException("Port hasn't been set.");
+        }
+        if (addr == null) {
+            addr = builder.host == null ? new InetSocketAddress(builder.port)
+                    : new InetSocketAddress(builder.host, builder.port);
+        }
         server = HttpServer.create();
-        server.bind(addr, 3);
-        HttpHandler mHandler = new HTTPMetricHandler(registry);
-        server.createContext("/", mHandler);
-        server.createContext("/metrics", mHandler);
-        executorService = Executors.newFixedThreadPool(5, DaemonThreadFactory.defaultThreadFactory(daemon));
+        server.bind(addr, builder.backlog);
+        handler = new HTTPMetricHandler(builder.registry, builder.scrapeReuseMillis, builder.stream,
+                builder.snapshots);
+        server.createContext("/", handler);
+        server.createContext("/metrics", handler);
+        if (builder.executor != null) {
+            executorService = new ExecutorAdapter(builder.executor);
+        } else if (builder.virtualThreads) {
+            executorService = newVirtualThreadPerTaskExecutor();
+        } else {
+            executorService = Executors.newFixedThreadPool(5,
+                    DaemonThreadFactory.defaultThreadFactory(builder.daemon));
+        }
         server.setExecutor(executorService);
-        start(daemon);
+        start(builder.daemon);
+    }
+
+    /**
+     * An ExecutorService handing tasks to an Executor of the caller. Shutting it down only stops handing it tasks,
+     * tasks already handed over aren't tracked.
+     */
+    private static class ExecutorAdapter extends AbstractExecutorService {
+        private final Executor executor;
+        private volatile boolean shutdown;
+
+        ExecutorAdapter(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Shut down");
+            }
+            executor.execute(command);
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown;
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor, which can't be referred to directly when building for older
+     * versions.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        Method method;
+        try {
+            method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later");
+        }
+        try {
+            return (ExecutorService) method.invoke(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Virtual threads are not available", e);
+        } catch (InvocationTargetException e) {
+            // Such as on Java 19 and 20, where they're a preview feature.
+            throw new IllegalStateException("Virtual threads are not available", e.getCause());
+        }
+    }
+
+    /**
+     * Start a HTTP server serving Prometheus metrics from the given registry.
+     */
+    public HTTPServer(InetSocketAddress addr, CollectorRegistry registry, boolean daemon) throws IOException {
+        this(addr, registry, daemon, 0);
     }
 
     /**
@@ -213,12 +699,20 @@ public class HTTPServer {
         }
     }
 
+    /**
+     * The port the server is listening on, which is useful if it was started on port 0.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
     /**
      * Stop the HTTP server.
      */
     public void stop() {
         server.stop(0);
         executorService.shutdown(); // Free any (parked/idle) threads in pool
+        handler.deflaters.close();
     }
 }
 
@@ -0,0 +1,731 @@
+package io.prometheus.client.exporter;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Expose Prometheus metrics using non-blocking sockets, so a few threads can serve many concurrent scrapers.
+ * <p>
+ * Each worker thread serves its share of the connections from a selector, and connections are kept alive between
+ * scrapes. Metrics are collected and rendered on a separate executor, so a slow collector doesn't hold up the
+ * selectors, and the rendered buffers are handed back to the connection's worker to be written with gathering writes.
+ * As with {@link HTTPServer}, every path serves the metrics, and GET and HEAD requests are answered.
+ * <p>
+ * Example Usage:
+ * <pre>
+ * {@code
+ * NIOHTTPServer server = new NIOHTTPServer(new InetSocketAddress(1234), CollectorRegistry.defaultRegistry, 50, 2, false);
+ * }
+ * </pre>
+ */
+public class NIOHTTPServer {
+    private static final Logger LOGGER = Logger.getLogger(NIOHTTPServer.class.getName());
+
+    static final int BUFFER_SIZE = 32 * 1024;
+    /**
+     * Buffers the server keeps for the next responses, anything beyond that is left to the garbage collector.
+     */
+    static final int POOLED_BUFFERS = 64;
+    static final int MAX_REQUEST_SIZE = 8 * 1024;
+    static final long IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    private final CollectorRegistry registry;
+    private final Executor renderExecutor;
+    /**
+     * The executor the server created, or null if one was given.
+     */
+    private final ExecutorService executorService;
+    private final ServerSocketChannel serverChannel;
+    private final Worker[] workers;
+    private final Thread[] threads;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    // As many as the threads of the default render executor.
+    private final PooledGZIPOutputStream.Pool deflaters;
+    private volatile boolean running = true;
+    private int nextWorker;  // Only used by the thread accepting connections.
+    private long acceptPausedUntil;  // Likewise.
+
+    /**
+     * Start a HTTP server serving Prometheus metrics from the given registry, rendering them on as many threads as
+     * there are workers.
+     *
+     * @param backlog the most connections waiting to be accepted
+     * @param workers the number of threads serving connections
+     */
+    public NIOHTTPServer(InetSocketAddress addr, CollectorRegistry registry, int backlog, int workers, boolean daemon)
+            throws IOException {
+        this(addr, registry, backlog, workers, daemon, null);
+    }
+
+    /**
+     * Start a HTTP server serving Prometheus metrics from the given registry.
+     *
+     * @param backlog the most connections waiting to be accepted
+     * @param workers the number of threads serving connections
+     * @param renderExecutor where metrics are collected and rendered, which isn't shut down when the server is
+     *     stopped. If null, the server creates a pool with a thread per worker.
+     */
+    public NIOHTTPServer(InetSocketAddress addr, CollectorRegistry registry, int backlog, int workers, boolean daemon,
+            Executor renderExecutor) throws IOException {
+        if (backlog < 1) {
+            throw new IllegalArgumentException("backlog must be at least 1");
+        }
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+        this.registry = registry;
+        this.workers = new Worker[workers];
+        this.deflaters = new PooledGZIPOutputStream.Pool(workers);
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(addr, backlog);
+            serverChannel.configureBlocking(false);
+            for (int i = 0; i < workers; i++) {
+                this.workers[i] = new Worker(Selector.open());
+            }
+            serverChannel.register(this.workers[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly(serverChannel);
+            for (Worker worker : this.workers) {
+                if (worker != null) {
+                    closeQuietly(worker.selector);
+                }
+            }
+            throw e;
+        }
+        if (renderExecutor != null) {
+            this.renderExecutor = renderExecutor;
+            executorService = null;
+        } else {
+            executorService = Executors.newFixedThreadPool(workers,
+                    HTTPServer.DaemonThreadFactory.defaultThreadFactory(daemon));
+            this.renderExecutor = executorService;
+        }
+        threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            threads[i] = HTTPServer.DaemonThreadFactory.defaultThreadFactory(daemon).newThread(this.workers[i]);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Start a HTTP server serving Prometheus metrics from the given registry using two non-daemon threads.
+     */
+    public NIOHTTPServer(InetSocketAddress addr, CollectorRegistry registry) throws IOException {
+        this(addr, registry, 50, 2, false);
+    }
+
+    /**
+     * Start a HTTP server serving the default Prometheus registry using two non-daemon threads.
+     */
+    public NIOHTTPServer(int port) throws IOException {
+        this(new InetSocketAddress(port), CollectorRegistry.defaultRegistry);
+    }
+
+    /**
+     * The port the server is listening on, which is useful if it was started on port 0.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stop the HTTP server, closing all its connections.
+     */
+    public void stop() {
+        running = false;
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        closeQuietly(serverChannel);
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+        deflaters.close();
+    }
+
+    private void accept(SelectionKey key) {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                // Such as running out of file descriptors. The connections wait in the backlog meanwhile, rather
+                // than the selector spinning on them.
+                LOGGER.log(Level.WARNING, "Exception " + e + " accepting connections, pausing for a second", e);
+                key.interestOps(0);
+                acceptPausedUntil = System.currentTimeMillis() + SELECT_TIMEOUT_MILLIS;
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                continue;
+            }
+            Worker worker = nextWorker();
+            if (worker == null) {
+                closeQuietly(channel);
+            } else {
+                worker.accepted(channel);
+            }
+        }
+    }
+
+    /**
+     * The next worker in turn that's still running, or null if none are.
+     */
+    private Worker nextWorker() {
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+            if (!worker.stopped) {
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    private void resumeAccepting(SelectionKey key) {
+        if (acceptPausedUntil != 0 && System.currentTimeMillis() >= acceptPausedUntil && key.isValid()) {
+            acceptPausedUntil = 0;
+            key.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    ByteBuffer take() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != BUFFER_SIZE) {
+            // Such as the headers.
+            return;
+        }
+        if (pooled.incrementAndGet() > POOLED_BUFFERS) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more to do.
+        }
+    }
+
+    private static void closeQuietly(Selector selector) {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing more to do.
+        }
+    }
+
+    /**
+     * A selector loop, serving the connections handed to it.
+     */
+    private class Worker implements Runnable {
+        final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+        private final ConcurrentLinkedQueue<Render> rendered = new ConcurrentLinkedQueue<Render>();
+        /**
+         * Set once the loop has ended, after which connections are no longer handed to this worker.
+         */
+        volatile boolean stopped;
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Hand a connection to this worker, from any thread.
+         */
+        void accepted(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+            if (stopped) {
+                // The loop may have ended before the channel was added.
+                closeAccepted();
+            }
+        }
+
+        /**
+         * Hand a finished render back to this worker, from any thread.
+         */
+        void rendered(Render render) {
+            rendered.add(render);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    try {
+                        selector.select(SELECT_TIMEOUT_MILLIS);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Exception " + e + " selecting connections, stopping worker", e);
+                        return;
+                    }
+                    register();
+                    Render render;
+                    while ((render = rendered.poll()) != null) {
+                        render.connection.rendered(render);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(key);
+                        } else {
+                            ((Connection) key.attachment()).ready();
+                        }
+                    }
+                    closeIdle();
+                }
+            } finally {
+                stopped = true;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        closeQuietly(key.channel());
+                    }
+                }
+                closeAccepted();
+                closeQuietly(selector);
+            }
+        }
+
+        private void closeAccepted() {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                closeQuietly(channel);
+            }
+        }
+
+        private void register() {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < SELECT_TIMEOUT_MILLIS) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() == null) {
+                    resumeAccepting(key);
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (!connection.rendering && now - connection.lastActive > IDLE_TIMEOUT_MILLIS) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects and renders the metrics for a request on the render executor, then hands the buffers back to the
+     * connection's worker.
+     */
+    private class Render implements Runnable {
+        final Connection connection;
+        private final Set<String> names;
+        private final boolean gzip;
+        final BufferOutputStream body = new BufferOutputStream(NIOHTTPServer.this);
+        Exception exception;
+
+        Render(Connection connection, Set<String> names, boolean gzip) {
+            this.connection = connection;
+            this.names = names;
+            this.gzip = gzip;
+        }
+
+        public void run() {
+            PooledGZIPOutputStream gzipOut = null;
+            try {
+                OutputStream out = body;
+                if (gzip) {
+                    out = gzipOut = new PooledGZIPOutputStream(body, deflaters);
+                }
+                TextFormat.write004(out, registry, names);
+                out.close();
+            } catch (IOException e) {
+                exception = e;
+            } catch (RuntimeException e) {
+                exception = e;
+            } finally {
+                if (gzipOut != null) {
+                    gzipOut.release();
+                }
+                connection.worker.rendered(this);
+            }
+        }
+    }
+
+    /**
+     * A client connection, reading requests and writing one response at a time.
+     */
+    private class Connection {
+        final Worker worker;
+        private final SocketChannel channel;
+        SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private ByteBuffer[] response;
+        private int responseIndex;
+        private boolean closeAfterResponse;
+        /**
+         * Whether the response is being rendered, during which nothing is read or written.
+         */
+        boolean rendering;
+        private boolean head;
+        private String responseHeaders;
+        long lastActive = System.currentTimeMillis();
+
+        Connection(Worker worker, SocketChannel channel) {
+            this.worker = worker;
+            this.channel = channel;
+        }
+
+        void ready() {
+            try {
+                if (key.isWritable()) {
+                    write();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    if (channel.read(in) < 0) {
+                        close();
+                        return;
+                    }
+                    lastActive = System.currentTimeMillis();
+                }
+                serve();
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Exception " + e + " serving metrics", e);
+                close();
+            }
+        }
+
+        /**
+         * Send the rendered response, and carry on with any requests after it.
+         */
+        void rendered(Render render) {
+            rendering = false;
+            if (!key.isValid()) {
+                for (ByteBuffer buffer : render.body.buffers) {
+                    release(buffer);
+                }
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (render.exception != null) {
+                serverError(render.body, render.exception);
+            } else {
+                respond(render.body);
+            }
+            try {
+                write();
+                serve();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Answer the requests read so far, until one's response can't be written without waiting.
+         */
+        private void serve() throws IOException {
+            while (response == null && !rendering) {
+                if (closeAfterResponse) {
+                    close();
+                    return;
+                }
+                int end = requestEnd();
+                if (end < 0) {
+                    if (in.hasRemaining()) {
+                        break;
+                    }
+                    respond(431, "Request Header Fields Too Large", "Connection: close\r\n");
+                    closeAfterResponse = true;
+                } else {
+                    String request = new String(in.array(), 0, end, "ISO-8859-1");
+                    in.flip();
+                    in.position(end);
+                    in.compact();
+                    handle(request);
+                }
+                write();
+            }
+            if (key.isValid()) {
+                key.interestOps(rendering ? 0 : response == null ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * The length of the first request's headers including the blank line after them, or -1 if that isn't read yet.
+         */
+        private int requestEnd() {
+            byte[] bytes = in.array();
+            for (int i = 0; i < in.position() - 1; i++) {
+                if (bytes[i] == '\n') {
+                    if (bytes[i + 1] == '\n') {
+                        return i + 2;
+                    }
+                    if (bytes[i + 1] == '\r' && i + 2 < in.position() && bytes[i + 2] == '\n') {
+                        return i + 3;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private void handle(String request) throws IOException {
+            String[] lines = request.split("\r?\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                respond(400, "Bad Request", "Connection: close\r\n");
+                closeAfterResponse = true;
+                return;
+            }
+            String method = requestLine[0];
+            String target = requestLine[1];
+            boolean http10 = requestLine[2].equals("HTTP/1.0");
+            boolean keepAlive = !http10;
+            boolean gzip = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Connection")) {
+                    if (hasToken(value, "close")) {
+                        keepAlive = false;
+                    } else if (hasToken(value, "keep-alive")) {
+                        keepAlive = true;
+                    }
+                } else if (name.equalsIgnoreCase("Accept-Encoding")) {
+                    gzip |= hasToken(value, "gzip");
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")
+                        || name.equalsIgnoreCase("Content-Length") && !value.equals("0")) {
+                    // The body isn't needed, so rather than skipping it the connection is closed after the response.
+                    keepAlive = false;
+                }
+            }
+            closeAfterResponse = !keepAlive;
+            String connectionHeader = !keepAlive ? "Connection: close\r\n"
+                    : http10 ? "Connection: keep-alive\r\n" : "";
+
+            boolean head = method.equals("HEAD");
+            if (!head && !method.equals("GET")) {
+                respond(405, "Method Not Allowed", "Allow: GET, HEAD\r\n" + connectionHeader);
+                return;
+            }
+            int query = target.indexOf('?');
+            Set<String> names;
+            try {
+                names = HTTPServer.parseQuery(query < 0 ? null : target.substring(query + 1));
+            } catch (IllegalArgumentException e) {
+                respond(400, "Bad Request", connectionHeader);
+                return;
+            }
+
+            this.head = head;
+            responseHeaders = "Content-Type: " + TextFormat.CONTENT_TYPE_004 + "\r\n"
+                    + (gzip ? "Content-Encoding: gzip\r\n" : "") + connectionHeader;
+            rendering = true;
+            try {
+                renderExecutor.execute(new Render(this, names, gzip));
+            } catch (RejectedExecutionException e) {
+                rendering = false;
+                respond(503, "Service Unavailable", "Connection: close\r\n");
+                closeAfterResponse = true;
+            }
+        }
+
+        private void respond(BufferOutputStream body) {
+            List<ByteBuffer> buffers = body.buffers;
+            response = new ByteBuffer[head ? 1 : buffers.size() + 1];
+            response[0] = headers(200, "OK", responseHeaders, body.size);
+            for (int i = 0; i < buffers.size(); i++) {
+                ByteBuffer buffer = buffers.get(i);
+                buffer.flip();
+                if (head) {
+                    release(buffer);
+                } else {
+                    response[i + 1] = buffer;
+                }
+            }
+            responseIndex = 0;
+        }
+
+        private void serverError(BufferOutputStream body, Exception e) {
+            LOGGER.log(Level.WARNING, "Exception " + e + " collecting metrics", e);
+            for (ByteBuffer buffer : body.buffers) {
+                release(buffer);
+            }
+            respond(500, "Internal Server Error", "Connection: close\r\n");
+            closeAfterResponse = true;
+        }
+
+        /**
+         * Set the response to one with no body.
+         */
+        private void respond(int status, String reason, String headers) {
+            response = new ByteBuffer[] {headers(status, reason, headers, 0)};
+            responseIndex = 0;
+        }
+
+        private ByteBuffer headers(int status, String reason, String headers, long contentLength) {
+            String s = "HTTP/1.1 " + status + " " + reason + "\r\n" + headers
+                    + "Content-Length: " + contentLength + "\r\n\r\n";
+            try {
+                return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        private void write() throws IOException {
+            while (response != null) {
+                long written = channel.write(response, responseIndex, response.length - responseIndex);
+                while (responseIndex < response.length && !response[responseIndex].hasRemaining()) {
+                    release(response[responseIndex++]);
+                }
+                if (responseIndex == response.length) {
+                    response = null;
+                } else if (written == 0) {
+                    break;
+                }
+                lastActive = System.currentTimeMillis();
+            }
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+            if (response != null) {
+                for (int i = responseIndex; i < response.length; i++) {
+                    release(response[i]);
+                }
+                response = null;
+            }
+        }
+    }
+
+    private static boolean hasToken(String value, String token) {
+        for (String element : value.split(",")) {
+            if (element.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects what's written in buffers taken from the server's pool.
+     */
+    private static class BufferOutputStream extends OutputStream {
+        private final NIOHTTPServer server;
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        private ByteBuffer current;
+        long size;
+
+        BufferOutputStream(NIOHTTPServer server) {
+            this.server = server;
+        }
+
+        @Override
+        public void write(int b) {
+            if (current == null || !current.hasRemaining()) {
+                next();
+            }
+            current.put((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            size += len;
+            while (len > 0) {
+                if (current == null || !current.hasRemaining()) {
+                    next();
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void next() {
+            current = server.take();
+            buffers.add(current);
+        }
+    }
+}
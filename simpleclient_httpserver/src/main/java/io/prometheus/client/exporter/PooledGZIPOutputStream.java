@@ -0,0 +1,149 @@
+package io.prometheus.client.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes the GZIP format as {@link java.util.zip.GZIPOutputStream} does, with a Deflater taken from a pool.
+ * <p>
+ * A GZIPOutputStream creates a Deflater each time, with native memory that's only freed once it's garbage collected
+ * unless the stream is closed. Here {@link #release} resets the Deflater and returns it to the pool instead, which
+ * must be called whether or not the stream was finished.
+ */
+class PooledGZIPOutputStream extends DeflaterOutputStream {
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b,  // Magic number.
+        Deflater.DEFLATED,  // Compression method.
+        0,  // Flags.
+        0, 0, 0, 0,  // Modification time.
+        0,  // Extra flags.
+        (byte) 0xff  // Operating system, unknown.
+    };
+
+    private final Pool pool;
+    private final CRC32 crc = new CRC32();
+    private boolean released;
+
+    PooledGZIPOutputStream(OutputStream out, Pool pool) throws IOException {
+        super(out, pool.take(), 8192);
+        this.pool = pool;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    /**
+     * Finish compressing and write the trailer, without closing the underlying stream.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (def.finished()) {
+            return;
+        }
+        super.finish();
+        writeInt((int) crc.getValue());
+        writeInt((int) def.getBytesRead());
+    }
+
+    private void writeInt(int i) throws IOException {
+        // Little endian.
+        out.write(i & 0xff);
+        out.write(i >> 8 & 0xff);
+        out.write(i >> 16 & 0xff);
+        out.write(i >> 24 & 0xff);
+    }
+
+    /**
+     * Finish, close the underlying stream and release the Deflater.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Return the Deflater to the pool. Nothing more may be written after this.
+     */
+    void release() {
+        if (!released) {
+            released = true;
+            pool.offer(def);
+        }
+    }
+
+    /**
+     * Deflaters kept for reuse, at most a given number. Others are ended when they're returned, as are all of them
+     * once the pool is closed.
+     */
+    static final class Pool {
+        private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+        private final AtomicInteger pooled = new AtomicInteger();
+        private final int max;
+        private volatile boolean closed;
+
+        Pool(int max) {
+            this.max = max;
+        }
+
+        Deflater take() {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+            pooled.decrementAndGet();
+            return deflater;
+        }
+
+        void offer(Deflater deflater) {
+            if (closed) {
+                deflater.end();
+                return;
+            }
+            if (pooled.incrementAndGet() > max) {
+                pooled.decrementAndGet();
+                deflater.end();
+                return;
+            }
+            deflater.reset();
+            deflaters.offer(deflater);
+            if (closed) {
+                // Closed meanwhile, after it may have ended the others.
+                endAll();
+            }
+        }
+
+        /**
+         * End the pooled Deflaters, and any returned later.
+         */
+        void close() {
+            closed = true;
+            endAll();
+        }
+
+        private void endAll() {
+            Deflater deflater;
+            while ((deflater = deflaters.poll()) != null) {
+                pooled.decrementAndGet();
+                deflater.end();
+            }
+        }
+
+        int size() {
+            return pooled.get();
+        }
+    }
+}
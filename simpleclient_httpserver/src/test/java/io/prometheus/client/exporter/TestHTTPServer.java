@@ -1,12 +1,28 @@
 package io.prometheus.client.exporter;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.Gauge;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.exporter.common.SnapshotRenderer;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 import org.junit.After;
@@ -14,6 +30,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 public class TestHTTPServer {
 
@@ -34,7 +51,7 @@ public class TestHTTPServer {
   }
 
   String request(String suffix) throws IOException {
-    String url = "http://localhost:" + s.server.getAddress().getPort() + "/metrics" + suffix;
+    String url = "http://localhost:" + s.getPort() + "/metrics" + suffix;
     URLConnection connection = new URL(url).openConnection();
     connection.setDoOutput(true);
     connection.connect();
@@ -43,7 +60,7 @@ public class TestHTTPServer {
   }
 
   String requestWithCompression(String suffix) throws IOException {
-    String url = "http://localhost:" + s.server.getAddress().getPort() + "/metrics" + suffix;
+    String url = "http://localhost:" + s.getPort() + "/metrics" + suffix;
     URLConnection connection = new URL(url).openConnection();
     connection.setDoOutput(true);
     connection.setDoInput(true);
@@ -101,4 +118,314 @@ public class TestHTTPServer {
     assertThat(response).contains("b 0.0");
     assertThat(response).contains("c 0.0");
   }
+
+  /**
+   * Counts its collections, which wait until released.
+   */
+  static class BlockingCollector extends Collector implements Collector.Describable {
+    final AtomicInteger collections = new AtomicInteger();
+    final Semaphore started = new Semaphore(0);
+    final CountDownLatch release;
+    volatile boolean fail;
+
+    BlockingCollector(CountDownLatch release) {
+      this.release = release;
+    }
+
+    public List<MetricFamilySamples> collect() {
+      int collection = collections.incrementAndGet();
+      started.release();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (fail) {
+        throw new IllegalStateException("failed");
+      }
+      return Collections.<MetricFamilySamples>singletonList(new GaugeMetricFamily("blocking", "help", collection));
+    }
+
+    public List<MetricFamilySamples> describe() {
+      return Collections.<MetricFamilySamples>singletonList(new GaugeMetricFamily("blocking", "help", 0));
+    }
+  }
+
+  static FutureTask<byte[]> startScrape(final HTTPServer.HTTPMetricHandler handler, List<Thread> threads) {
+    FutureTask<byte[]> scrape = new FutureTask<byte[]>(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        return handler.scrape(Collections.<String>emptySet(), false);
+      }
+    });
+    Thread thread = new Thread(scrape);
+    thread.start();
+    threads.add(thread);
+    return scrape;
+  }
+
+  static String text(byte[] response, boolean gzip) throws IOException {
+    Scanner s = gzip ? new Scanner(new GZIPInputStream(new ByteArrayInputStream(response)), "UTF-8")
+        : new Scanner(new ByteArrayInputStream(response), "UTF-8");
+    s.useDelimiter("\\A");
+    return s.hasNext() ? s.next() : "";
+  }
+
+  @Test
+  public void testConcurrentScrapesShareOneCollection() throws Exception {
+    CollectorRegistry registry = new CollectorRegistry();
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingCollector collector = new BlockingCollector(release).register(registry);
+    HTTPServer.HTTPMetricHandler handler = new HTTPServer.HTTPMetricHandler(registry);
+
+    List<FutureTask<byte[]>> scrapes = new ArrayList<FutureTask<byte[]>>();
+    List<Thread> threads = new ArrayList<Thread>();
+    scrapes.add(startScrape(handler, threads));
+    collector.started.acquire();
+    for (int i = 0; i < 3; i++) {
+      scrapes.add(startScrape(handler, threads));
+    }
+    // The later scrapes find the first one running and wait for it.
+    for (Thread thread : threads.subList(1, threads.size())) {
+      while (thread.getState() != Thread.State.WAITING) {
+        Thread.sleep(1);
+      }
+    }
+    release.countDown();
+    for (FutureTask<byte[]> scrape : scrapes) {
+      assertThat(text(scrape.get(), false)).contains("blocking 1.0");
+    }
+    assertThat(collector.collections.get()).isEqualTo(1);
+
+    // Without a reuse window, a later scrape collects again.
+    assertThat(text(handler.scrape(Collections.<String>emptySet(), false), false)).contains("blocking 2.0");
+  }
+
+  @Test
+  public void testReuseWindow() throws IOException {
+    CollectorRegistry registry = new CollectorRegistry();
+    BlockingCollector collector = new BlockingCollector(new CountDownLatch(0)).register(registry);
+    HTTPServer.HTTPMetricHandler handler = new HTTPServer.HTTPMetricHandler(registry, 3600 * 1000, false, null);
+    Set<String> all = Collections.emptySet();
+
+    assertThat(text(handler.scrape(all, false), false)).contains("blocking 1.0");
+    assertThat(text(handler.scrape(all, false), false)).contains("blocking 1.0");
+    // Other names or encodings are rendered separately.
+    assertThat(text(handler.scrape(all, true), true)).contains("blocking 2.0");
+    assertThat(text(handler.scrape(Collections.singleton("blocking"), false), false)).contains("blocking 3.0");
+    assertThat(text(handler.scrape(all, true), true)).contains("blocking 2.0");
+    assertThat(collector.collections.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testFailedScrapeIsNotReused() throws IOException {
+    CollectorRegistry registry = new CollectorRegistry();
+    BlockingCollector collector = new BlockingCollector(new CountDownLatch(0)).register(registry);
+    HTTPServer.HTTPMetricHandler handler = new HTTPServer.HTTPMetricHandler(registry, 3600 * 1000, false, null);
+    Set<String> all = Collections.emptySet();
+
+    collector.fail = true;
+    try {
+      handler.scrape(all, false);
+      fail("Expected exception");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("failed");
+    }
+    collector.fail = false;
+    assertThat(text(handler.scrape(all, false), false)).contains("blocking 2.0");
+  }
+
+  @Test
+  public void testLargeResponseBuffersAreNotKept() throws IOException {
+    CollectorRegistry registry = new CollectorRegistry();
+    Gauge labelled = Gauge.build("d", "d help").labelNames("l").register(registry);
+    for (int i = 0; i < 10000; i++) {
+      labelled.labels("value" + i).set(i);
+    }
+    HTTPServer.HTTPMetricHandler handler = new HTTPServer.HTTPMetricHandler(registry);
+    Set<String> all = Collections.emptySet();
+    assertThat(handler.scrape(all, false).length).isGreaterThan(100000);
+
+    labelled.clear();
+    for (int i = 0; i < 3; i++) {
+      assertThat(handler.scrape(all, false).length).isLessThan(100);
+    }
+    assertThat(handler.responses.size()).isBetween(1, HTTPServer.POOLED_RESPONSES);
+    for (HTTPServer.ResponseBuffer buffer : handler.responses) {
+      assertThat(buffer.capacity()).isLessThanOrEqualTo(4 * HTTPServer.MIN_RESPONSE_BUFFER_SIZE);
+    }
+  }
+
+  @Test
+  public void testResponseBuffersAreKeptForTheLargerEncoding() throws IOException {
+    CollectorRegistry registry = new CollectorRegistry();
+    Gauge labelled = Gauge.build("d", "d help").labelNames("l").register(registry);
+    for (int i = 0; i < 10000; i++) {
+      labelled.labels("value" + i).set(i);
+    }
+    HTTPServer.HTTPMetricHandler handler = new HTTPServer.HTTPMetricHandler(registry);
+    Set<String> all = Collections.emptySet();
+    int plainSize = handler.scrape(all, false).length;
+    // Far smaller compressed, but that doesn't make the buffers for plain responses oversized.
+    assertThat(handler.scrape(all, true).length * 4).isLessThan(plainSize);
+    assertThat(handler.responses).hasSize(1);
+    assertThat(handler.responses.peek().capacity()).isGreaterThanOrEqualTo(plainSize);
+  }
+
+  @Test
+  public void testReuseOverHttp() throws IOException {
+    s.stop();
+    CollectorRegistry registry = new CollectorRegistry();
+    BlockingCollector collector = new BlockingCollector(new CountDownLatch(0)).register(registry);
+    s = new HTTPServer(new InetSocketAddress(0), registry, true, 3600 * 1000);
+    assertThat(request("")).contains("blocking 1.0");
+    assertThat(request("")).contains("blocking 1.0");
+    assertThat(requestWithCompression("")).contains("blocking 2.0");
+    assertThat(request("?name[]=other")).isEmpty();
+  }
+
+  @Test
+  public void testStreaming() throws IOException {
+    s.stop();
+    CollectorRegistry registry = new CollectorRegistry();
+    Gauge labelled = Gauge.build("d", "d help").labelNames("l").register(registry);
+    for (int i = 0; i < 10000; i++) {
+      labelled.labels("value" + i).set(i);
+    }
+    s = new HTTPServer(new InetSocketAddress(0), registry, true, true);
+
+    for (int i = 0; i < 2; i++) {
+      URLConnection connection = new URL("http://localhost:" + s.getPort() + "/metrics")
+          .openConnection();
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      connection.connect();
+      assertThat(connection.getHeaderField("Transfer-Encoding")).isEqualTo("chunked");
+      assertThat(connection.getHeaderField("Content-Encoding")).isEqualTo("gzip");
+      Scanner scanner = new Scanner(new GZIPInputStream(connection.getInputStream()), "UTF-8").useDelimiter("\\A");
+      String response = scanner.next();
+      assertThat(response).contains("d{l=\"value9999\",} 9999.0\n");
+      assertThat(response.split("\n")).hasSize(10002);
+    }
+    assertThat(request("?name[]=d")).contains("d{l=\"value0\",} 0.0\n");
+    assertThat(request("?name[]=other")).isEmpty();
+  }
+
+  @Test
+  public void testSnapshots() throws IOException {
+    s.stop();
+    CollectorRegistry registry = new CollectorRegistry();
+    Gauge gauge = Gauge.build("d", "d help").register(registry);
+    SnapshotRenderer snapshots = new SnapshotRenderer(registry, 3600 * 1000);
+    s = new HTTPServer(new InetSocketAddress(0), snapshots, true);
+    gauge.set(1);
+    // Collected as usual until there's a snapshot.
+    assertThat(request("")).contains("d 1.0").doesNotContain(SnapshotRenderer.TIMESTAMP_METRIC);
+
+    snapshots.render();
+    gauge.set(2);
+    assertThat(request("")).contains("d 1.0").contains(SnapshotRenderer.TIMESTAMP_METRIC);
+    assertThat(requestWithCompression("")).contains("d 1.0").contains(SnapshotRenderer.TIMESTAMP_METRIC);
+    assertThat(request("?name[]=d")).contains("d 2.0");
+
+    URLConnection connection = new URL("http://localhost:" + s.getPort() + "/metrics").openConnection();
+    assertThat(connection.getHeaderField("Vary")).isEqualTo("Accept-Encoding");
+  }
+
+  @Test
+  public void testBuilderWithExecutor() throws IOException {
+    s.stop();
+    final ExecutorService pool = Executors.newFixedThreadPool(2);
+    final AtomicInteger executed = new AtomicInteger();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        executed.incrementAndGet();
+        pool.execute(command);
+      }
+    };
+    CollectorRegistry registry = new CollectorRegistry();
+    Gauge.build("d", "d help").register(registry);
+    try {
+      s = HTTPServer.build().address(new InetSocketAddress(0)).registry(registry).executor(executor).create();
+      assertThat(s.getPort()).isPositive();
+      assertThat(request("")).contains("d 0.0");
+      assertThat(executed.get()).isPositive();
+      assertThat(s.executorService).isNotNull();
+      s.stop();
+      // The executor belongs to the caller.
+      assertThat(s.executorService.isShutdown()).isTrue();
+      assertThat(pool.isShutdown()).isFalse();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  static boolean virtualThreadsAvailable() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      return true;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+    s.stop();
+    final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+    CollectorRegistry registry = new CollectorRegistry();
+    new Collector() {
+      public List<MetricFamilySamples> collect() {
+        threads.add(Thread.currentThread());
+        return Collections.<MetricFamilySamples>singletonList(new GaugeMetricFamily("v", "help", 1));
+      }
+    }.register(registry);
+    HTTPServer.Builder builder = HTTPServer.build().port(0).registry(registry).virtualThreads(true);
+    if (!virtualThreadsAvailable()) {
+      try {
+        s = builder.create();
+        fail("Expected exception");
+      } catch (IllegalStateException e) {
+        s = new HTTPServer(new InetSocketAddress(0), registry);
+      }
+      return;
+    }
+    s = builder.create();
+    assertThat(request("")).contains("v 1.0");
+    assertThat(threads).isNotEmpty();
+    for (Thread thread : threads) {
+      assertThat(Thread.class.getMethod("isVirtual").invoke(thread)).isEqualTo(true);
+    }
+  }
+
+  @Test
+  public void testBuilderValidation() throws IOException {
+    try {
+      HTTPServer.build().port(0).stream(true).scrapeReuseMillis(1000).create();
+      fail("Expected exception");
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      HTTPServer.build().port(0).executor(Executors.newSingleThreadExecutor()).virtualThreads(true).create();
+      fail("Expected exception");
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      HTTPServer.build().snapshots(new SnapshotRenderer(new CollectorRegistry(), 1000))
+          .registry(new CollectorRegistry()).create();
+      fail("Expected exception");
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      HTTPServer.build().port(65536);
+      fail("Expected exception");
+    } catch (IllegalArgumentException e) {
+    }
+    try {
+      HTTPServer.build().registry(new CollectorRegistry()).create();
+      fail("Expected exception");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Port hasn't been set.");
+    }
+  }
 }
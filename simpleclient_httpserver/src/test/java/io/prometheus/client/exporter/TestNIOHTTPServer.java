@@ -0,0 +1,289 @@
+package io.prometheus.client.exporter;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestNIOHTTPServer {
+
+  CollectorRegistry registry;
+  NIOHTTPServer s;
+
+  @Before
+  public void init() throws IOException {
+    registry = new CollectorRegistry();
+    Gauge.build("a", "a help").register(registry);
+    Gauge.build("b", "a help").register(registry);
+    Gauge.build("c", "a help").register(registry);
+    s = new NIOHTTPServer(new InetSocketAddress(0), registry);
+  }
+
+  @After
+  public void cleanup() {
+    s.stop();
+  }
+
+  String request(String suffix) throws IOException {
+    String url = "http://localhost:" + s.getPort() + "/metrics" + suffix;
+    URLConnection connection = new URL(url).openConnection();
+    connection.connect();
+    Scanner s = new Scanner(connection.getInputStream(), "UTF-8").useDelimiter("\\A");
+    return s.hasNext() ? s.next() : "";
+  }
+
+  String requestWithCompression(String suffix) throws IOException {
+    String url = "http://localhost:" + s.getPort() + "/metrics" + suffix;
+    URLConnection connection = new URL(url).openConnection();
+    connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+    connection.connect();
+    GZIPInputStream gzs = new GZIPInputStream(connection.getInputStream());
+    Scanner s = new Scanner(gzs).useDelimiter("\\A");
+    return s.hasNext() ? s.next() : "";
+  }
+
+  /**
+   * A response read from a raw socket.
+   */
+  static class Response {
+    String statusLine;
+    final Map<String, String> headers = new HashMap<String, String>();
+    String body;
+  }
+
+  static Response readResponse(InputStream in, boolean head) throws IOException {
+    Response response = new Response();
+    response.statusLine = readLine(in);
+    String line;
+    while (!(line = readLine(in)).isEmpty()) {
+      int colon = line.indexOf(':');
+      response.headers.put(line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim());
+    }
+    int length = head ? 0 : Integer.parseInt(response.headers.get("content-length"));
+    byte[] body = new byte[length];
+    for (int read = 0; read < length; ) {
+      int n = in.read(body, read, length - read);
+      assertThat(n).isPositive();
+      read += n;
+    }
+    response.body = new String(body, "UTF-8");
+    return response;
+  }
+
+  static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      assertThat(b).isNotEqualTo(-1);
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    return line.toString("ISO-8859-1");
+  }
+
+  @Test
+  public void testSimpleRequest() throws IOException {
+    String response = request("");
+    assertThat(response).contains("a 0.0");
+    assertThat(response).contains("b 0.0");
+    assertThat(response).contains("c 0.0");
+  }
+
+  @Test
+  public void testBadParams() throws IOException {
+    String response = request("?x");
+    assertThat(response).contains("a 0.0");
+    assertThat(response).contains("b 0.0");
+    assertThat(response).contains("c 0.0");
+  }
+
+  @Test
+  public void testSingleName() throws IOException {
+    String response = request("?name[]=a");
+    assertThat(response).contains("a 0.0");
+    assertThat(response).doesNotContain("b 0.0");
+    assertThat(response).doesNotContain("c 0.0");
+  }
+
+  @Test
+  public void testMultiName() throws IOException {
+    String response = request("?name[]=a&name[]=b");
+    assertThat(response).contains("a 0.0");
+    assertThat(response).contains("b 0.0");
+    assertThat(response).doesNotContain("c 0.0");
+  }
+
+  @Test
+  public void testDecoding() throws IOException {
+    String response = request("?n%61me[]=%61");
+    assertThat(response).contains("a 0.0");
+    assertThat(response).doesNotContain("b 0.0");
+    assertThat(response).doesNotContain("c 0.0");
+  }
+
+  @Test
+  public void testGzipCompression() throws IOException {
+    String response = requestWithCompression("");
+    assertThat(response).contains("a 0.0");
+    assertThat(response).contains("b 0.0");
+    assertThat(response).contains("c 0.0");
+  }
+
+  @Test
+  public void testKeepAliveAndPipelining() throws IOException {
+    Socket socket = new Socket("localhost", s.getPort());
+    try {
+      OutputStream out = socket.getOutputStream();
+      InputStream in = socket.getInputStream();
+      out.write("GET /metrics?name[]=a HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+      Response first = readResponse(in, false);
+      assertThat(first.statusLine).isEqualTo("HTTP/1.1 200 OK");
+      assertThat(first.headers).doesNotContainKey("connection");
+      assertThat(first.body).contains("a 0.0").doesNotContain("b 0.0");
+
+      // Two requests sent together are answered in order on the same connection.
+      out.write(("GET /metrics?name[]=b HTTP/1.1\r\n\r\n"
+          + "HEAD /metrics HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+      Response second = readResponse(in, false);
+      assertThat(second.body).contains("b 0.0").doesNotContain("a 0.0");
+      Response third = readResponse(in, true);
+      assertThat(third.statusLine).isEqualTo("HTTP/1.1 200 OK");
+      assertThat(third.headers.get("connection")).isEqualTo("close");
+      assertThat(Integer.parseInt(third.headers.get("content-length"))).isPositive();
+      assertThat(in.read()).isEqualTo(-1);
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testHttp10ClosesUnlessKeptAlive() throws IOException {
+    Socket socket = new Socket("localhost", s.getPort());
+    try {
+      OutputStream out = socket.getOutputStream();
+      InputStream in = socket.getInputStream();
+      out.write("GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n".getBytes("ISO-8859-1"));
+      Response first = readResponse(in, false);
+      assertThat(first.headers.get("connection")).isEqualTo("keep-alive");
+      out.write("GET / HTTP/1.0\r\n\r\n".getBytes("ISO-8859-1"));
+      Response second = readResponse(in, false);
+      assertThat(second.headers.get("connection")).isEqualTo("close");
+      assertThat(second.body).isEqualTo(first.body);
+      assertThat(in.read()).isEqualTo(-1);
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testOtherMethodsNotAllowed() throws IOException {
+    Socket socket = new Socket("localhost", s.getPort());
+    try {
+      socket.getOutputStream().write("DELETE /metrics HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+      Response response = readResponse(socket.getInputStream(), false);
+      assertThat(response.statusLine).isEqualTo("HTTP/1.1 405 Method Not Allowed");
+      assertThat(response.headers.get("allow")).isEqualTo("GET, HEAD");
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testMalformedRequest() throws IOException {
+    Socket socket = new Socket("localhost", s.getPort());
+    try {
+      socket.getOutputStream().write("nonsense\r\n\r\n".getBytes("ISO-8859-1"));
+      Response response = readResponse(socket.getInputStream(), false);
+      assertThat(response.statusLine).isEqualTo("HTTP/1.1 400 Bad Request");
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testResponseLargerThanBuffers() throws IOException {
+    Gauge labelled = Gauge.build("d", "d help").labelNames("l").register(registry);
+    for (int i = 0; i < 10000; i++) {
+      labelled.labels("value" + i).set(i);
+    }
+    for (int i = 0; i < 3; i++) {
+      String response = request("?name[]=d");
+      assertThat(response.length()).isGreaterThan(NIOHTTPServer.BUFFER_SIZE * 4);
+      assertThat(response).contains("d{l=\"value0\",} 0.0\n").contains("d{l=\"value9999\",} 9999.0\n");
+      assertThat(response.split("\n")).hasSize(10002);
+    }
+  }
+
+  @Test
+  public void testSlowCollectorDoesNotBlockWorker() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        return Collections.emptyList();
+      }
+
+      @Override
+      public List<MetricFamilySamples> collect(Set<String> includedNames) {
+        if (includedNames.contains("slow")) {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return collect();
+      }
+    }.register(registry);
+    s.stop();
+    ExecutorService executor = Executors.newCachedThreadPool();
+    // A single worker, which also accepts the connections.
+    s = new NIOHTTPServer(new InetSocketAddress(0), registry, 50, 1, false, executor);
+    Socket slow = new Socket("localhost", s.getPort());
+    try {
+      slow.getOutputStream().write("GET /metrics?name[]=slow HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+      Socket socket = new Socket("localhost", s.getPort());
+      try {
+        socket.setSoTimeout(10000);
+        socket.getOutputStream().write("GET /metrics?name[]=a HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+        assertThat(readResponse(socket.getInputStream(), false).body).contains("a 0.0");
+      } finally {
+        socket.close();
+      }
+      release.countDown();
+      slow.setSoTimeout(10000);
+      assertThat(readResponse(slow.getInputStream(), false).statusLine).isEqualTo("HTTP/1.1 200 OK");
+    } finally {
+      release.countDown();
+      slow.close();
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package io.prometheus.client.exporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class TestPooledGZIPOutputStream {
+
+  static byte[] gunzip(byte[] gzipped) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) >= 0) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testMatchesGZIPOutputStream() throws IOException {
+    PooledGZIPOutputStream.Pool pool = new PooledGZIPOutputStream.Pool(2);
+    Random random = new Random(0);
+    for (int length : new int[] {0, 1, 100, 100000}) {
+      byte[] data = new byte[length];
+      for (int i = 0; i < length; i++) {
+        // Compressible, but not trivially.
+        data[i] = (byte) ('a' + random.nextInt(8));
+      }
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(expected);
+      gzip.write(data);
+      gzip.close();
+
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      PooledGZIPOutputStream pooled = new PooledGZIPOutputStream(actual, pool);
+      pooled.write(data, 0, length / 2);
+      for (int i = length / 2; i < length; i++) {
+        pooled.write(data[i]);
+      }
+      pooled.close();
+
+      // Other than the operating system in the header, which older versions set to 0.
+      byte[] actualBytes = actual.toByteArray();
+      byte[] expectedBytes = expected.toByteArray();
+      expectedBytes[9] = actualBytes[9];
+      assertThat(actualBytes).isEqualTo(expectedBytes);
+      assertThat(gunzip(actual.toByteArray())).isEqualTo(data);
+      assertThat(pool.size()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void testDeflaterReusedAfterUnfinishedStream() throws IOException {
+    PooledGZIPOutputStream.Pool pool = new PooledGZIPOutputStream.Pool(2);
+    PooledGZIPOutputStream abandoned = new PooledGZIPOutputStream(new ByteArrayOutputStream(), pool);
+    abandoned.write("partial".getBytes("UTF-8"));
+    abandoned.release();
+    abandoned.release();
+    assertThat(pool.size()).isEqualTo(1);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PooledGZIPOutputStream gzip = new PooledGZIPOutputStream(out, pool);
+    assertThat(pool.size()).isEqualTo(0);
+    gzip.write("complete".getBytes("UTF-8"));
+    gzip.finish();
+    gzip.release();
+    assertThat(new String(gunzip(out.toByteArray()), "UTF-8")).isEqualTo("complete");
+    assertThat(pool.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPoolKeepsAtMostMaxDeflaters() {
+    PooledGZIPOutputStream.Pool pool = new PooledGZIPOutputStream.Pool(2);
+    Deflater[] deflaters = {pool.take(), pool.take(), pool.take()};
+    for (Deflater deflater : deflaters) {
+      pool.offer(deflater);
+    }
+    assertThat(pool.size()).isEqualTo(2);
+    assertEnded(deflaters[2]);
+
+    pool.close();
+    assertThat(pool.size()).isEqualTo(0);
+    assertEnded(deflaters[0]);
+    assertEnded(deflaters[1]);
+    // Returned after the server stopped, such as by a render still in progress.
+    Deflater late = pool.take();
+    pool.offer(late);
+    assertThat(pool.size()).isEqualTo(0);
+    assertEnded(late);
+  }
+
+  private static void assertEnded(Deflater deflater) {
+    try {
+      deflater.getTotalIn();
+      fail("Expected the Deflater to be ended");
+    } catch (NullPointerException e) {
+      // Ended.
+    }
+  }
+}
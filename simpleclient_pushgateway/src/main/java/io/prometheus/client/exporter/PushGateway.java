@@ -1,8 +1,7 @@
 package io.prometheus.client.exporter;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
@@ -286,10 +285,10 @@ public class PushGateway {
 
     try {
       if (!method.equals("DELETE")) {
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), "UTF-8"));
-        TextFormat.write004(writer, registry.metricFamilySamples());
-        writer.flush();
-        writer.close();
+        OutputStream out = connection.getOutputStream();
+        TextFormat.write004(out, registry, Collections.<String>emptySet());
+        out.flush();
+        out.close();
       }
 
       int response = connection.getResponseCode();
@@ -1,6 +1,7 @@
 package io.prometheus.client.exporter;
 
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.SnapshotRenderer;
 import io.prometheus.client.exporter.common.TextFormat;
 
 import javax.servlet.ServletException;
@@ -8,15 +9,17 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 
 public class MetricsServlet extends HttpServlet {
 
   private CollectorRegistry registry;
+  private SnapshotRenderer snapshots;
 
   /**
    * Construct a MetricsServlet for the default registry.
@@ -32,19 +35,59 @@ public class MetricsServlet extends HttpServlet {
     this.registry = registry;
   }
 
+  /**
+   * Construct a MetricsServlet for the snapshots' registry.
+   * <p>
+   * Requests for all the metrics are answered with the latest snapshot, gzipped if the client accepts that. The
+   * snapshots must be started separately. Requests restricted to some names, or made before the first snapshot,
+   * collect from the registry as usual.
+   */
+  public MetricsServlet(SnapshotRenderer snapshots) {
+    this.registry = snapshots.getRegistry();
+    this.snapshots = snapshots;
+  }
+
   @Override
   protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
           throws ServletException, IOException {
     resp.setStatus(HttpServletResponse.SC_OK);
     resp.setContentType(TextFormat.CONTENT_TYPE_004);
 
-    Writer writer = resp.getWriter();
+    Set<String> includedNames = parse(req);
+    SnapshotRenderer.Snapshot snapshot = snapshots != null && includedNames.isEmpty() ? snapshots.getSnapshot() : null;
+    boolean gzip = snapshot != null && acceptsGzip(req);
+    if (snapshot != null) {
+      // Only snapshots are gzipped, depending on the request.
+      resp.setHeader("Vary", "Accept-Encoding");
+      if (gzip) {
+        resp.setHeader("Content-Encoding", "gzip");
+      }
+      resp.setContentLength(snapshot.length(gzip));
+    }
+
+    OutputStream out = resp.getOutputStream();
     try {
-      TextFormat.write004(writer, registry.filteredMetricFamilySamples(parse(req)));
-      writer.flush();
+      if (snapshot != null) {
+        snapshot.writeTo(out, gzip);
+      } else {
+        TextFormat.write004(out, registry, includedNames);
+      }
+      out.flush();
     } finally {
-      writer.close();
+      out.close();
+    }
+  }
+
+  private boolean acceptsGzip(HttpServletRequest req) {
+    Enumeration<String> headers = req.getHeaders("Accept-Encoding");
+    while (headers != null && headers.hasMoreElements()) {
+      for (String encoding : headers.nextElement().split(",")) {
+        if (encoding.trim().equalsIgnoreCase("gzip")) {
+          return true;
+        }
+      }
     }
+    return false;
   }
 
   private Set<String> parse(HttpServletRequest req) {
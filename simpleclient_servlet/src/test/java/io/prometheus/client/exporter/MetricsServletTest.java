@@ -2,19 +2,25 @@ package io.prometheus.client.exporter;
 
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.common.SnapshotRenderer;
 import org.junit.Test;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.fail;
-import static org.mockito.Matchers.anyChar;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -22,6 +28,15 @@ import static org.mockito.Mockito.when;
 
 public class MetricsServletTest {
 
+  private static class ByteArrayServletOutputStream extends ServletOutputStream {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      bytes.write(b);
+    }
+  }
+
   @Test
   public void testWriterFiltersBasedOnParameter() throws IOException, ServletException {
     CollectorRegistry registry = new CollectorRegistry();
@@ -32,37 +47,37 @@ public class MetricsServletTest {
     HttpServletRequest req = mock(HttpServletRequest.class);
     when(req.getParameterValues("name[]")).thenReturn(new String[]{"a", "b", "oneTheDoesntExist", ""});
     HttpServletResponse resp = mock(HttpServletResponse.class);
-    StringWriter stringWriter = new StringWriter();
-    PrintWriter writer = new PrintWriter(stringWriter);
-    when(resp.getWriter()).thenReturn(writer);
+    ByteArrayServletOutputStream out = new ByteArrayServletOutputStream();
+    when(resp.getOutputStream()).thenReturn(out);
 
     new MetricsServlet(registry).doGet(req, resp);
 
-    assertThat(stringWriter.toString()).contains("a 0.0");
-    assertThat(stringWriter.toString()).contains("b 0.0");
-    assertThat(stringWriter.toString()).doesNotContain("c 0.0");
+    String body = out.bytes.toString("UTF-8");
+    assertThat(body).contains("a 0.0");
+    assertThat(body).contains("b 0.0");
+    assertThat(body).doesNotContain("c 0.0");
   }
 
   @Test
-  public void testWriterIsClosedNormally() throws IOException, ServletException {
+  public void testOutputStreamIsClosedNormally() throws IOException, ServletException {
     HttpServletRequest req = mock(HttpServletRequest.class);
     HttpServletResponse resp = mock(HttpServletResponse.class);
-    PrintWriter writer = mock(PrintWriter.class);
-    when(resp.getWriter()).thenReturn(writer);
+    ServletOutputStream out = mock(ServletOutputStream.class);
+    when(resp.getOutputStream()).thenReturn(out);
     CollectorRegistry registry = new CollectorRegistry();
     Gauge a = Gauge.build("a", "a help").register(registry);
 
     new MetricsServlet(registry).doGet(req, resp);
-    verify(writer).close();
+    verify(out).close();
   }
 
   @Test
-  public void testWriterIsClosedOnException() throws IOException, ServletException {
+  public void testOutputStreamIsClosedOnException() throws IOException, ServletException {
     HttpServletRequest req = mock(HttpServletRequest.class);
     HttpServletResponse resp = mock(HttpServletResponse.class);
-    PrintWriter writer = mock(PrintWriter.class);
-    when(resp.getWriter()).thenReturn(writer);
-    doThrow(new RuntimeException()).when(writer).write(anyChar());
+    ServletOutputStream out = mock(ServletOutputStream.class);
+    when(resp.getOutputStream()).thenReturn(out);
+    doThrow(new RuntimeException()).when(out).write(any(byte[].class), anyInt(), anyInt());
     CollectorRegistry registry = new CollectorRegistry();
     Gauge a = Gauge.build("a", "a help").register(registry);
 
@@ -72,6 +87,46 @@ public class MetricsServletTest {
     } catch (Exception e) {
     }
 
-    verify(writer).close();
+    verify(out).close();
+  }
+
+  @Test
+  public void testSnapshots() throws IOException, ServletException {
+    CollectorRegistry registry = new CollectorRegistry();
+    Gauge gauge = Gauge.build("a", "a help").register(registry);
+    SnapshotRenderer snapshots = new SnapshotRenderer(registry, 3600 * 1000);
+    MetricsServlet servlet = new MetricsServlet(snapshots);
+    gauge.set(1);
+    snapshots.render();
+    gauge.set(2);
+
+    HttpServletRequest req = mock(HttpServletRequest.class);
+    HttpServletResponse resp = mock(HttpServletResponse.class);
+    ByteArrayServletOutputStream out = new ByteArrayServletOutputStream();
+    when(resp.getOutputStream()).thenReturn(out);
+    servlet.doGet(req, resp);
+    assertThat(out.bytes.toString("UTF-8")).contains("a 1.0").contains(SnapshotRenderer.TIMESTAMP_METRIC);
+    verify(resp).setContentLength(out.bytes.size());
+    verify(resp).setHeader("Vary", "Accept-Encoding");
+
+    req = mock(HttpServletRequest.class);
+    when(req.getHeaders("Accept-Encoding"))
+        .thenReturn(Collections.enumeration(Collections.singletonList("deflate, gzip")));
+    resp = mock(HttpServletResponse.class);
+    out = new ByteArrayServletOutputStream();
+    when(resp.getOutputStream()).thenReturn(out);
+    servlet.doGet(req, resp);
+    verify(resp).setHeader("Content-Encoding", "gzip");
+    verify(resp).setHeader("Vary", "Accept-Encoding");
+    Scanner scanner = new Scanner(new GZIPInputStream(new ByteArrayInputStream(out.bytes.toByteArray())), "UTF-8");
+    assertThat(scanner.useDelimiter("\\A").next()).contains("a 1.0");
+
+    req = mock(HttpServletRequest.class);
+    when(req.getParameterValues("name[]")).thenReturn(new String[]{"a"});
+    resp = mock(HttpServletResponse.class);
+    out = new ByteArrayServletOutputStream();
+    when(resp.getOutputStream()).thenReturn(out);
+    servlet.doGet(req, resp);
+    assertThat(out.bytes.toString("UTF-8")).contains("a 2.0");
   }
 }
@@ -8,7 +8,7 @@ import io.vertx.core.http.HttpServerRequest;
 import io.vertx.ext.web.RoutingContext;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -26,26 +26,21 @@ import java.util.Set;
 public class MetricsHandler implements Handler<RoutingContext> {
 
   /**
-   * Wrap a Vert.x Buffer as a Writer so it can be used with
+   * Wrap a Vert.x Buffer as an OutputStream so it can be used with
    * TextFormat writer
    */
-  private static class BufferWriter extends Writer {
+  private static class BufferOutputStream extends OutputStream {
 
     private final Buffer buffer = Buffer.buffer();
 
     @Override
-    public void write(char[] cbuf, int off, int len) throws IOException {
-      buffer.appendString(new String(cbuf, off, len));
+    public void write(int b) throws IOException {
+      buffer.appendByte((byte) b);
     }
 
     @Override
-    public void flush() throws IOException {
-      // NO-OP
-    }
-
-    @Override
-    public void close() throws IOException {
-      // NO-OP
+    public void write(byte[] b, int off, int len) throws IOException {
+      buffer.appendBytes(b, off, len);
     }
 
     Buffer getBuffer() {
@@ -72,12 +67,12 @@ public class MetricsHandler implements Handler<RoutingContext> {
   @Override
   public void handle(RoutingContext ctx) {
     try {
-      final BufferWriter writer = new BufferWriter();
-      TextFormat.write004(writer, registry.filteredMetricFamilySamples(parse(ctx.request())));
+      final BufferOutputStream out = new BufferOutputStream();
+      TextFormat.write004(out, registry, parse(ctx.request()));
       ctx.response()
               .setStatusCode(200)
               .putHeader("Content-Type", TextFormat.CONTENT_TYPE_004)
-              .end(writer.getBuffer());
+              .end(out.getBuffer());
     } catch (IOException e) {
       ctx.fail(e);
     }